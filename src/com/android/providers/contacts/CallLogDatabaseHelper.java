@@ -37,7 +37,7 @@ import com.android.providers.contacts.util.PropertyUtils;
 public class CallLogDatabaseHelper {
     private static final String TAG = "CallLogDatabaseHelper";
 
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 5;
 
     private static final boolean DEBUG = false; // DON'T SUBMIT WITH TRUE
 
@@ -60,6 +60,13 @@ public class CallLogDatabaseHelper {
         String VOICEMAIL_STATUS = "voicemail_status";
     }
 
+    public interface Indexes {
+        String CALLS_DATE = "calls_date_index";
+        String CALLS_HIDDEN_DATE = "calls_hidden_date_index";
+        String CALLS_NORMALIZED_NUMBER = "calls_normalized_number_index";
+        String CALLS_SOURCE_PACKAGE = "calls_source_package_index";
+    }
+
     public interface DbProperties {
         String CALL_LOG_LAST_SYNCED = "call_log_last_synced";
         String CALL_LOG_LAST_SYNCED_FOR_SHADOW = "call_log_last_synced_for_shadow";
@@ -156,6 +163,8 @@ public class CallLogDatabaseHelper {
                     CALLS_OPERATOR + " TEXT" +
                     ");");
 
+            createCallsIndexes(db);
+
             db.execSQL("CREATE TABLE " + Tables.VOICEMAIL_STATUS + " (" +
                     VoicemailContract.Status._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                     VoicemailContract.Status.SOURCE_PACKAGE + " TEXT NOT NULL," +
@@ -187,6 +196,10 @@ public class CallLogDatabaseHelper {
             if (oldVersion < 4) {
                 upgradeToVersion4(db);
             }
+
+            if (oldVersion < 5) {
+                upgradeToVersion5(db);
+            }
         }
     }
 
@@ -229,10 +242,55 @@ public class CallLogDatabaseHelper {
     }
 
     /**
-     * Add the {@link Calls.VIA_NUMBER} Column to the CallLog Database.
+     * Add the {@link #CALLS_OPERATOR} Column to the CallLog Database.
      */
     private void upgradeToVersion4(SQLiteDatabase db) {
-        db.execSQL("ALTER TABLE " + Tables.CALLS + " ADD " + CALLS_OPERATOR + " TEXT" + ";");  
+        // Databases created at version 3 may already have the column, which onCreate added
+        // without the version being bumped.
+        if (columnExists(db, Tables.CALLS, CALLS_OPERATOR)) {
+            return;
+        }
+        db.execSQL("ALTER TABLE " + Tables.CALLS + " ADD " + CALLS_OPERATOR + " TEXT" + ";");
+    }
+
+    /**
+     * Add the secondary indexes of the calls table.
+     */
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        createCallsIndexes(db);
+    }
+
+    /**
+     * Create the secondary indexes of the calls table:
+     * <ul>
+     *     <li>date, for the date ordering, the retention deletes and the sync queries.
+     *     <li>phone account hidden and date, for the default query of the provider, which
+     *     excludes hidden calls and sorts by date.
+     *     <li>normalized number, for looking up the calls of a number.
+     *     <li>source package, for the voicemail queries restricted to the caller's package.
+     * </ul>
+     */
+    private static void createCallsIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Indexes.CALLS_DATE + " ON " + Tables.CALLS
+                + " (" + Calls.DATE + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Indexes.CALLS_HIDDEN_DATE + " ON "
+                + Tables.CALLS + " (" + Calls.PHONE_ACCOUNT_HIDDEN + "," + Calls.DATE + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Indexes.CALLS_NORMALIZED_NUMBER + " ON "
+                + Tables.CALLS + " (" + Calls.CACHED_NORMALIZED_NUMBER + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Indexes.CALLS_SOURCE_PACKAGE + " ON "
+                + Tables.CALLS + " (" + Voicemails.SOURCE_PACKAGE + ");");
+    }
+
+    private static boolean columnExists(SQLiteDatabase db, String table, String column) {
+        try (Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            final int nameIndex = c.getColumnIndexOrThrow("name");
+            while (c.moveToNext()) {
+                if (column.equals(c.getString(nameIndex))) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -22,10 +22,13 @@ import static com.android.providers.contacts.util.DbQueryUtils.getInequalityClau
 
 import android.app.AppOpsManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -37,24 +40,29 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.providers.contacts.CallLogDatabaseHelper.DbProperties;
 import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
 import com.android.providers.contacts.util.SelectionBuilder;
 import com.android.providers.contacts.util.UserUtils;
 import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -70,9 +78,27 @@ public class CallLogProvider extends ContentProvider {
 
     private static final int BACKGROUND_TASK_INITIALIZE = 0;
     private static final int BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT = 1;
+    private static final int BACKGROUND_TASK_LISTEN_TO_SUBSCRIPTIONS = 2;
 
     private static final String GROUP_BY = "groupby";
 
+    /**
+     * Query parameters for keyset pagination: return the calls that come after the one with the
+     * given date and ID in the order of {@link #KEYSET_SORT_ORDER}, which is then the sort order
+     * of the query.  Combined with {@link Calls#LIMIT_PARAM_KEY}, each page costs the same however
+     * deep it is, unlike {@link Calls#OFFSET_PARAM_KEY}.  The ID is optional; without it, the
+     * page starts after all the calls at the given date.
+     */
+    /* package */ static final String AFTER_DATE_PARAM_KEY = "after_date";
+    /* package */ static final String AFTER_ID_PARAM_KEY = "after_id";
+
+    /** Sort order of the keyset pagination, newest calls first. */
+    /* package */ static final String KEYSET_SORT_ORDER =
+            Calls.DATE + " DESC, " + Calls._ID + " DESC";
+
+    /** How long a cached operator name is used before it is read again. */
+    private static final long OPERATOR_NAME_CACHE_TTL_MS = 60 * 1000;
+
     /** Selection clause for selecting all calls that were made after a certain time */
     private static final String MORE_RECENT_THAN_SELECTION = Calls.DATE + "> ?";
     /** Selection clause to use to exclude voicemail records.  */
@@ -171,6 +197,17 @@ public class CallLogProvider extends ContentProvider {
     private VoicemailPermissions mVoicemailPermissions;
     private CallLogInsertionHelper mCallLogInsertionHelper;
 
+    // Operator names by subscription ID, and when they were read.  Cleared whenever the
+    // subscriptions change.
+    private final SparseArray<String> mOperatorNames = new SparseArray<String>();
+    private final SparseLongArray mOperatorNameTimes = new SparseLongArray();
+    private boolean mListeningToSubscriptions;
+
+    // Modifier shared by the operations of the batch in progress on each thread, which sends the
+    // call log change notification and broadcast once the batch is committed.
+    private final ThreadLocal<DbModifierWithNotification> mBatchModifier =
+            new ThreadLocal<DbModifierWithNotification>();
+
     protected boolean isShadow() {
         return false;
     }
@@ -270,6 +307,29 @@ public class CallLogProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URL " + uri);
         }
 
+        if (uri.getQueryParameter(AFTER_DATE_PARAM_KEY) != null) {
+            if (uri.getQueryParameter(Calls.OFFSET_PARAM_KEY) != null) {
+                throw new IllegalArgumentException(AFTER_DATE_PARAM_KEY
+                        + " cannot be combined with " + Calls.OFFSET_PARAM_KEY);
+            }
+            if (sortOrder != null && !KEYSET_SORT_ORDER.equals(sortOrder)) {
+                throw new IllegalArgumentException(
+                        AFTER_DATE_PARAM_KEY + " requires the sort order " + KEYSET_SORT_ORDER);
+            }
+            sortOrder = KEYSET_SORT_ORDER;
+
+            // The range on the date alone is what lets SQLite seek in the date indexes.
+            final long afterDate = getLongParam(uri, AFTER_DATE_PARAM_KEY, 0);
+            if (uri.getQueryParameter(AFTER_ID_PARAM_KEY) == null) {
+                // Without an ID, all the calls at that date come before the page.
+                selectionBuilder.addClause(Calls.DATE + "<" + afterDate);
+            } else {
+                final long afterId = getLongParam(uri, AFTER_ID_PARAM_KEY, 0);
+                selectionBuilder.addClause(Calls.DATE + "<=" + afterDate + " AND ("
+                        + Calls.DATE + "<" + afterDate + " OR " + Calls._ID + "<" + afterId + ")");
+            }
+        }
+
         final int limit = getIntParam(uri, Calls.LIMIT_PARAM_KEY, 0);
         final int offset = getIntParam(uri, Calls.OFFSET_PARAM_KEY, 0);
         String limitClause = null;
@@ -313,6 +373,31 @@ public class CallLogProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Gets a long query parameter from a given uri.
+     *
+     * @param uri The uri to extract the query parameter from.
+     * @param key The query parameter key.
+     * @param defaultValue A default value to return if the query parameter does not exist.
+     * @return The value from the query parameter in the Uri.  Or the default value if the parameter
+     * does not exist in the uri.
+     * @throws IllegalArgumentException when the value in the query parameter is not a long.
+     */
+    private long getLongParam(Uri uri, String key, long defaultValue) {
+        String valueString = uri.getQueryParameter(key);
+        if (valueString == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(valueString);
+        } catch (NumberFormatException e) {
+            String msg = "Long required for " + key + " parameter but value '" + valueString +
+                    "' was found instead.";
+            throw new IllegalArgumentException(msg, e);
+        }
+    }
+
     /**
      * Gets an String query parameter from a given uri.
      *
@@ -357,7 +442,7 @@ public class CallLogProvider extends ContentProvider {
                     && values.getAsInteger(Calls.PHONE_ACCOUNT_ID) != null) {
             int subscription = values.getAsInteger(Calls.PHONE_ACCOUNT_ID);
             if (subscription > SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
-                String operator = getNetworkSpnName(subscription);
+                String operator = getOperatorName(subscription);
                 values.put(CallLogDatabaseHelper.CALLS_OPERATOR, operator);
             }
         }
@@ -367,23 +452,87 @@ public class CallLogProvider extends ContentProvider {
             checkIsAllowVoicemailRequest(uri);
             mVoicemailPermissions.checkCallerHasWriteAccess(getCallingPackage());
         }
-        if (mCallsInserter == null) {
-            SQLiteDatabase db = mDbHelper.getWritableDatabase();
-            mCallsInserter = new DatabaseUtils.InsertHelper(db, Tables.CALLS);
-        }
-
         ContentValues copiedValues = new ContentValues(values);
 
         // Add the computed fields to the copied values.
         mCallLogInsertionHelper.addComputedValues(copiedValues);
 
-        long rowId = getDatabaseModifier(mCallsInserter).insert(copiedValues);
+        long rowId = getDatabaseModifier(getCallsInserter()).insert(copiedValues);
         if (rowId > 0) {
             return ContentUris.withAppendedId(uri, rowId);
         }
         return null;
     }
 
+    private synchronized DatabaseUtils.InsertHelper getCallsInserter() {
+        if (mCallsInserter == null) {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            mCallsInserter = new DatabaseUtils.InsertHelper(db, Tables.CALLS);
+        }
+        return mCallsInserter;
+    }
+
+    /**
+     * Inserts all the rows in a single transaction, with a single call log change notification
+     * and broadcast.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        waitForAccess(mReadAccessLatch);
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final DbModifierWithNotification modifier = beginBatch(db);
+        boolean successful = false;
+        try {
+            for (ContentValues rowValues : values) {
+                insert(uri, rowValues);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endBatch(db, modifier, successful);
+        }
+        return values.length;
+    }
+
+    /**
+     * Applies all the operations in a single transaction, with a single call log change
+     * notification and broadcast.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        waitForAccess(mReadAccessLatch);
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final DbModifierWithNotification modifier = beginBatch(db);
+        boolean successful = false;
+        try {
+            final ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            endBatch(db, modifier, successful);
+        }
+    }
+
+    private DbModifierWithNotification beginBatch(SQLiteDatabase db) {
+        final DbModifierWithNotification modifier = new DbModifierWithNotification(Tables.CALLS,
+                db, getCallsInserter(), getContext());
+        modifier.deferCallLogChange();
+        db.beginTransaction();
+        mBatchModifier.set(modifier);
+        return modifier;
+    }
+
+    private void endBatch(SQLiteDatabase db, DbModifierWithNotification modifier,
+            boolean successful) {
+        mBatchModifier.remove();
+        db.endTransaction();
+        if (successful) {
+            modifier.sendDeferredCallLogChange();
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         if (VERBOSE_LOGGING) {
@@ -459,6 +608,10 @@ public class CallLogProvider extends ContentProvider {
      * after the operation is performed.
      */
     private DatabaseModifier getDatabaseModifier(SQLiteDatabase db) {
+        final DbModifierWithNotification batchModifier = mBatchModifier.get();
+        if (batchModifier != null) {
+            return batchModifier;
+        }
         return new DbModifierWithNotification(Tables.CALLS, db, getContext());
     }
 
@@ -467,6 +620,10 @@ public class CallLogProvider extends ContentProvider {
      * only.
      */
     private DatabaseModifier getDatabaseModifier(DatabaseUtils.InsertHelper insertHelper) {
+        final DbModifierWithNotification batchModifier = mBatchModifier.get();
+        if (batchModifier != null) {
+            return batchModifier;
+        }
         return new DbModifierWithNotification(Tables.CALLS, insertHelper, getContext());
     }
 
@@ -748,7 +905,52 @@ public class CallLogProvider extends ContentProvider {
             }
         } else if (task == BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT) {
             adjustForNewPhoneAccountInternal((PhoneAccountHandle) arg);
+        } else if (task == BACKGROUND_TASK_LISTEN_TO_SUBSCRIPTIONS) {
+            registerSubscriptionsChangedListener();
+        }
+    }
+
+    /**
+     * Returns the operator name of the subscription, read at most once per
+     * {@link #OPERATOR_NAME_CACHE_TTL_MS}, so that inserting calls doesn't query telephony
+     * every time.
+     */
+    private String getOperatorName(int subscription) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mOperatorNames) {
+            final int index = mOperatorNames.indexOfKey(subscription);
+            if (index >= 0
+                    && now - mOperatorNameTimes.get(subscription) < OPERATOR_NAME_CACHE_TTL_MS) {
+                return mOperatorNames.valueAt(index);
+            }
         }
+        final String operatorName = getNetworkSpnName(subscription);
+        synchronized (mOperatorNames) {
+            mOperatorNames.put(subscription, operatorName);
+            mOperatorNameTimes.put(subscription, now);
+            if (!mListeningToSubscriptions) {
+                mListeningToSubscriptions = true;
+                scheduleBackgroundTask(BACKGROUND_TASK_LISTEN_TO_SUBSCRIPTIONS, null);
+            }
+        }
+        return operatorName;
+    }
+
+    /**
+     * Clears the cached operator names whenever the subscriptions change.  Runs on the background
+     * thread, whose looper the listener is called on.
+     */
+    private void registerSubscriptionsChangedListener() {
+        SubscriptionManager.from(getContext()).addOnSubscriptionsChangedListener(
+                new OnSubscriptionsChangedListener() {
+                    @Override
+                    public void onSubscriptionsChanged() {
+                        synchronized (mOperatorNames) {
+                            mOperatorNames.clear();
+                            mOperatorNameTimes.clear();
+                        }
+                    }
+                });
     }
 
     private String getNetworkSpnName(int subscription) {
@@ -125,7 +125,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      *   1100-1199 N
      * </pre>
      */
-    static final int DATABASE_VERSION = 1111;
+    static final int DATABASE_VERSION = 1116;
 
     public interface Tables {
         public static final String CONTACTS = "contacts";
@@ -138,6 +138,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String MIMETYPES = "mimetypes";
         public static final String PHONE_LOOKUP = "phone_lookup";
         public static final String NAME_LOOKUP = "name_lookup";
+        public static final String NAME_BLOCKING_KEY = "name_blocking_key";
         public static final String AGGREGATION_EXCEPTIONS = "agg_exceptions";
         public static final String SETTINGS = "settings";
         public static final String DATA = "data";
@@ -150,6 +151,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String VISIBLE_CONTACTS = "visible_contacts";
         public static final String DIRECTORIES = "directories";
         public static final String DEFAULT_DIRECTORY = "default_directory";
+        public static final String PHONEBOOK_BUCKET_COUNTS = "phonebook_bucket_counts";
         public static final String SEARCH_INDEX = "search_index";
         public static final String METADATA_SYNC = "metadata_sync";
         public static final String METADATA_SYNC_STATE = "metadata_sync_state";
@@ -271,6 +273,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 + "INNER JOIN view_raw_contacts ON (name_lookup.raw_contact_id = "
                 + "view_raw_contacts._id)";
 
+        public static final String NAME_BLOCKING_KEY_JOIN_RAW_CONTACTS = "name_blocking_key "
+                + "INNER JOIN view_raw_contacts ON (name_blocking_key.raw_contact_id = "
+                + "view_raw_contacts._id)";
+
         public static final String RAW_CONTACTS_JOIN_ACCOUNTS = Tables.RAW_CONTACTS
                 + " JOIN " + Tables.ACCOUNTS + " ON ("
                 + AccountsColumns.CONCRETE_ID + "=" + RawContactsColumns.CONCRETE_ACCOUNT_ID
@@ -331,6 +337,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     public interface DbProperties {
         String DIRECTORY_SCAN_COMPLETE = "directoryScanComplete";
         String AGGREGATION_ALGORITHM = "aggregation_v2";
+        String AGGREGATION_UPGRADE_CURSOR = "aggregation_upgrade_cursor";
+        String PHOTO_CLEANUP_CURSOR = "photo_cleanup_cursor";
         String KNOWN_ACCOUNTS = "known_accounts";
         String ICU_VERSION = "icu_version";
         String LOCALE = "locale";
@@ -511,6 +519,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String CONCRETE_DATA15 = Tables.DATA + "." + Data.DATA15;
         public static final String CONCRETE_IS_PRIMARY = Tables.DATA + "." + Data.IS_PRIMARY;
         public static final String CONCRETE_PACKAGE_ID = Tables.DATA + "." + PACKAGE_ID;
+
+        /** The photo file ID of a photo row, which is stored as text, as an integer. */
+        public static final String PHOTO_FILE_ID_AS_INTEGER =
+                "CAST(" + Photo.PHOTO_FILE_ID + " AS INTEGER)";
     }
 
     // Used only for legacy API support.
@@ -561,6 +573,36 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String NAME_TYPE = "name_type";
     }
 
+    /**
+     * Columns of {@link Tables#NAME_BLOCKING_KEY}, which holds a copy of the name lookup rows used
+     * for approximate matching, keyed by a short prefix of the normalized name.
+     */
+    public interface NameBlockingKeyColumns extends NameLookupColumns {
+        public static final String BLOCKING_KEY = "blocking_key";
+    }
+
+    /**
+     * Columns of {@link Tables#PHONEBOOK_BUCKET_COUNTS}, which holds the number of contacts in
+     * each address book index bucket, for the contacts in {@link Tables#VISIBLE_CONTACTS} and
+     * {@link Tables#DEFAULT_DIRECTORY}.  Kept up to date by triggers, see
+     * {@link #createContactsTriggers}.
+     */
+    public interface PhonebookBucketCountsColumns {
+        /** {@link #SCOPE_VISIBLE} or {@link #SCOPE_DEFAULT_DIRECTORY} */
+        public static final String SCOPE = "scope";
+        /** 1 for the buckets of the alternative sort order, 0 for the primary one */
+        public static final String ALTERNATIVE = "alternative";
+        public static final String PHONEBOOK_BUCKET = "phonebook_bucket";
+        public static final String PHONEBOOK_LABEL = "phonebook_label";
+        public static final String CONTACT_COUNT = "contact_count";
+
+        public static final int SCOPE_VISIBLE = 0;
+        public static final int SCOPE_DEFAULT_DIRECTORY = 1;
+
+        /** Stored in place of a null bucket, with an empty label */
+        public static final int NO_BUCKET = -1;
+    }
+
     public interface PackagesColumns {
         public static final String _ID = BaseColumns._ID;
         public static final String PACKAGE = "package";
@@ -667,6 +709,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         String CONCRETE_HEIGHT = Tables.PHOTO_FILES + "." + PhotoFiles.HEIGHT;
         String CONCRETE_WIDTH = Tables.PHOTO_FILES + "." + PhotoFiles.WIDTH;
         String CONCRETE_FILESIZE = Tables.PHOTO_FILES + "." + PhotoFiles.FILESIZE;
+
+        /**
+         * Hash of the content of the display photo file, used to share one file between identical
+         * photos.  Null for the files stored before deduplication.
+         */
+        String CONTENT_HASH = "content_hash";
     }
 
     public interface AccountsColumns extends BaseColumns {
@@ -1331,7 +1379,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 PhotoFiles._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                 PhotoFiles.HEIGHT + " INTEGER NOT NULL, " +
                 PhotoFiles.WIDTH + " INTEGER NOT NULL, " +
-                PhotoFiles.FILESIZE + " INTEGER NOT NULL);");
+                PhotoFiles.FILESIZE + " INTEGER NOT NULL, " +
+                PhotoFilesColumns.CONTENT_HASH + " TEXT);");
+        createPhotoFilesContentHashIndex(db);
+        createPhotoFileIdIndexes(db);
 
         // TODO readd the index and investigate a controlled use of it
 //        db.execSQL("CREATE INDEX raw_contacts_agg_index ON " + Tables.RAW_CONTACTS + " (" +
@@ -1451,6 +1502,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 NameLookupColumns.RAW_CONTACT_ID +
         ");");
 
+        createNameBlockingKeyTable(db);
+
         db.execSQL("CREATE TABLE " + Tables.NICKNAME_LOOKUP + " (" +
                 NicknameLookupColumns.NAME + " TEXT," +
                 NicknameLookupColumns.CLUSTER + " TEXT" +
@@ -1528,6 +1581,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 Contacts._ID + " INTEGER PRIMARY KEY" +
         ");");
 
+        createPhonebookBucketCountsTable(db);
+
         db.execSQL("CREATE TABLE " + Tables.STATUS_UPDATES + " (" +
                 StatusUpdatesColumns.DATA_ID + " INTEGER PRIMARY KEY REFERENCES data(_id)," +
                 StatusUpdates.STATUS + " TEXT," +
@@ -1665,8 +1720,383 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Creates the table used to retrieve candidates for approximate name matching. It is kept in
+     * sync with {@link Tables#NAME_LOOKUP} by triggers, see {@link #createContactsTriggers}.
+     */
+    private void createNameBlockingKeyTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.NAME_BLOCKING_KEY + " (" +
+                NameBlockingKeyColumns.BLOCKING_KEY + " TEXT NOT NULL," +
+                NameBlockingKeyColumns.NAME_TYPE + " INTEGER NOT NULL," +
+                NameBlockingKeyColumns.NORMALIZED_NAME + " TEXT NOT NULL," +
+                NameBlockingKeyColumns.RAW_CONTACT_ID + " INTEGER NOT NULL," +
+                NameBlockingKeyColumns.DATA_ID + " INTEGER NOT NULL," +
+                "PRIMARY KEY ("
+                        + NameBlockingKeyColumns.BLOCKING_KEY + ", "
+                        + NameBlockingKeyColumns.NAME_TYPE + ", "
+                        + NameBlockingKeyColumns.NORMALIZED_NAME + ", "
+                        + NameBlockingKeyColumns.RAW_CONTACT_ID + ", "
+                        + NameBlockingKeyColumns.DATA_ID + ")" +
+        ");");
+
+        db.execSQL("CREATE INDEX name_blocking_key_data_id_index ON "
+                + Tables.NAME_BLOCKING_KEY + " (" +
+                NameBlockingKeyColumns.DATA_ID +
+        ");");
+    }
+
+    private void createPhonebookBucketCountsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.PHONEBOOK_BUCKET_COUNTS + " (" +
+                PhonebookBucketCountsColumns.SCOPE + " INTEGER NOT NULL," +
+                PhonebookBucketCountsColumns.ALTERNATIVE + " INTEGER NOT NULL," +
+                PhonebookBucketCountsColumns.PHONEBOOK_BUCKET + " INTEGER NOT NULL," +
+                PhonebookBucketCountsColumns.PHONEBOOK_LABEL + " TEXT NOT NULL," +
+                PhonebookBucketCountsColumns.CONTACT_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+                "PRIMARY KEY ("
+                        + PhonebookBucketCountsColumns.SCOPE + ", "
+                        + PhonebookBucketCountsColumns.ALTERNATIVE + ", "
+                        + PhonebookBucketCountsColumns.PHONEBOOK_BUCKET + ", "
+                        + PhonebookBucketCountsColumns.PHONEBOOK_LABEL + ")" +
+        ");");
+    }
+
+    // Tables whose contacts are counted in Tables.PHONEBOOK_BUCKET_COUNTS, by scope.
+    private static final String[] PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES = new String[] {
+            Tables.VISIBLE_CONTACTS,        // PhonebookBucketCountsColumns.SCOPE_VISIBLE
+            Tables.DEFAULT_DIRECTORY,       // PhonebookBucketCountsColumns.SCOPE_DEFAULT_DIRECTORY
+    };
+
+    // Bucket and label columns of the raw contacts, by value of
+    // PhonebookBucketCountsColumns.ALTERNATIVE.
+    private static final String[][] PHONEBOOK_BUCKET_COUNT_COLUMNS = new String[][] {
+            {RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY,
+                    RawContactsColumns.PHONEBOOK_LABEL_PRIMARY},
+            {RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE,
+                    RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE},
+    };
+
+    /**
+     * Recomputes {@link Tables#PHONEBOOK_BUCKET_COUNTS} from scratch.  A contact is counted in the
+     * bucket of its name raw contact; contacts whose name raw contact is missing are not counted.
+     */
+    private void rebuildPhonebookBucketCounts(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + Tables.PHONEBOOK_BUCKET_COUNTS);
+        for (int scope = 0; scope < PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES.length; scope++) {
+            final String table = PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES[scope];
+
+            // Rows of contacts deleted without going through the raw contacts would be counted
+            // again if the contact ID was ever reused.
+            db.execSQL("DELETE FROM " + table + " WHERE " + Contacts._ID + " NOT IN"
+                    + " (SELECT " + Contacts._ID + " FROM " + Tables.CONTACTS + ")");
+
+            for (int alternative = 0; alternative < PHONEBOOK_BUCKET_COUNT_COLUMNS.length;
+                    alternative++) {
+                final String bucket = phonebookBucketKey(Tables.RAW_CONTACTS + "."
+                        + PHONEBOOK_BUCKET_COUNT_COLUMNS[alternative][0]);
+                final String label = phonebookLabelKey(Tables.RAW_CONTACTS + "."
+                        + PHONEBOOK_BUCKET_COUNT_COLUMNS[alternative][1]);
+                db.execSQL("INSERT INTO " + Tables.PHONEBOOK_BUCKET_COUNTS + " ("
+                        + PhonebookBucketCountsColumns.SCOPE + ", "
+                        + PhonebookBucketCountsColumns.ALTERNATIVE + ", "
+                        + PhonebookBucketCountsColumns.PHONEBOOK_BUCKET + ", "
+                        + PhonebookBucketCountsColumns.PHONEBOOK_LABEL + ", "
+                        + PhonebookBucketCountsColumns.CONTACT_COUNT + ")"
+                        + " SELECT " + scope + ", " + alternative + ", "
+                                + bucket + ", " + label + ", COUNT(*)"
+                        + " FROM " + table
+                        + " JOIN " + Tables.CONTACTS
+                                + " ON (" + ContactsColumns.CONCRETE_ID + "="
+                                + table + "." + Contacts._ID + ")"
+                        + " JOIN " + Tables.RAW_CONTACTS
+                                + " ON (" + RawContactsColumns.CONCRETE_ID + "="
+                                + Tables.CONTACTS + "." + Contacts.NAME_RAW_CONTACT_ID + ")"
+                        + " GROUP BY " + bucket + ", " + label);
+            }
+        }
+    }
+
+    private static String phonebookBucketKey(String bucket) {
+        return "IFNULL(" + bucket + "," + PhonebookBucketCountsColumns.NO_BUCKET + ")";
+    }
+
+    private static String phonebookLabelKey(String label) {
+        return "IFNULL(" + label + ",'')";
+    }
+
+    /**
+     * Returns the trigger statements that add {@code delta} to the count of a bucket, if
+     * {@code condition} holds.  Only increments need {@code mayInsert}, decrements always find
+     * the row.
+     */
+    private static String adjustPhonebookBucketCount(int scope, int alternative, String bucket,
+            String label, String delta, String condition, boolean mayInsert) {
+        final String key = PhonebookBucketCountsColumns.SCOPE + "=" + scope
+                + " AND " + PhonebookBucketCountsColumns.ALTERNATIVE + "=" + alternative
+                + " AND " + PhonebookBucketCountsColumns.PHONEBOOK_BUCKET + "="
+                        + phonebookBucketKey(bucket)
+                + " AND " + PhonebookBucketCountsColumns.PHONEBOOK_LABEL + "="
+                        + phonebookLabelKey(label);
+        final StringBuilder sb = new StringBuilder();
+        if (mayInsert) {
+            sb.append("   INSERT OR IGNORE INTO " + Tables.PHONEBOOK_BUCKET_COUNTS + " ("
+                    + PhonebookBucketCountsColumns.SCOPE + ", "
+                    + PhonebookBucketCountsColumns.ALTERNATIVE + ", "
+                    + PhonebookBucketCountsColumns.PHONEBOOK_BUCKET + ", "
+                    + PhonebookBucketCountsColumns.PHONEBOOK_LABEL + ")"
+                    + " SELECT " + scope + ", " + alternative + ", "
+                            + phonebookBucketKey(bucket) + ", " + phonebookLabelKey(label)
+                    + " WHERE " + condition + ";");
+        }
+        sb.append("   UPDATE " + Tables.PHONEBOOK_BUCKET_COUNTS
+                + " SET " + PhonebookBucketCountsColumns.CONTACT_COUNT + "="
+                        + PhonebookBucketCountsColumns.CONTACT_COUNT + "+(" + delta + ")"
+                + " WHERE " + key + " AND " + condition + ";");
+        return sb.toString();
+    }
+
+    /**
+     * Returns a sub-query selecting the given column of the name raw contact of a contact.
+     */
+    private static String selectNameRawContactColumn(String contactId, String column) {
+        return "(SELECT " + Tables.RAW_CONTACTS + "." + column
+                + " FROM " + Tables.CONTACTS
+                + " JOIN " + Tables.RAW_CONTACTS
+                        + " ON (" + RawContactsColumns.CONCRETE_ID + "="
+                        + Tables.CONTACTS + "." + Contacts.NAME_RAW_CONTACT_ID + ")"
+                + " WHERE " + ContactsColumns.CONCRETE_ID + "=" + contactId + ")";
+    }
+
+    /**
+     * Returns a sub-query selecting the given column of a raw contact.
+     */
+    private static String selectRawContactColumn(String rawContactId, String column) {
+        return "(SELECT " + column + " FROM " + Tables.RAW_CONTACTS
+                + " WHERE " + RawContacts._ID + "=" + rawContactId + ")";
+    }
+
+    /**
+     * Creates the triggers maintaining {@link Tables#PHONEBOOK_BUCKET_COUNTS}.  A contact is
+     * counted as long as it is in one of the scope tables and its name raw contact exists, in the
+     * bucket of the name raw contact.
+     */
+    private void createPhonebookBucketCountsTriggers(SQLiteDatabase db) {
+        final String counts = Tables.PHONEBOOK_BUCKET_COUNTS;
+
+        // Contacts entering or leaving a scope.
+        for (int scope = 0; scope < PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES.length; scope++) {
+            final String table = PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES[scope];
+            final StringBuilder inserted = new StringBuilder();
+            final StringBuilder deleted = new StringBuilder();
+            for (int alternative = 0; alternative < PHONEBOOK_BUCKET_COUNT_COLUMNS.length;
+                    alternative++) {
+                final String[] columns = PHONEBOOK_BUCKET_COUNT_COLUMNS[alternative];
+                inserted.append(adjustPhonebookBucketCount(scope, alternative,
+                        selectNameRawContactColumn("NEW." + Contacts._ID, columns[0]),
+                        selectNameRawContactColumn("NEW." + Contacts._ID, columns[1]),
+                        "1",
+                        "EXISTS " + selectNameRawContactColumn(
+                                "NEW." + Contacts._ID, RawContacts._ID),
+                        true));
+                deleted.append(adjustPhonebookBucketCount(scope, alternative,
+                        selectNameRawContactColumn("OLD." + Contacts._ID, columns[0]),
+                        selectNameRawContactColumn("OLD." + Contacts._ID, columns[1]),
+                        "-1",
+                        "EXISTS " + selectNameRawContactColumn(
+                                "OLD." + Contacts._ID, RawContacts._ID),
+                        false));
+            }
+
+            db.execSQL("DROP TRIGGER IF EXISTS " + counts + "_" + table + "_inserted;");
+            db.execSQL("CREATE TRIGGER " + counts + "_" + table + "_inserted "
+                    + "   AFTER INSERT ON " + table
+                    + " BEGIN "
+                    + inserted
+                    + " END");
+
+            // Before, so that the name raw contact can still be looked up.
+            db.execSQL("DROP TRIGGER IF EXISTS " + counts + "_" + table + "_deleted;");
+            db.execSQL("CREATE TRIGGER " + counts + "_" + table + "_deleted "
+                    + "   BEFORE DELETE ON " + table
+                    + " BEGIN "
+                    + deleted
+                    + " END");
+        }
+
+        // Contacts changing name raw contact, or being deleted.
+        final StringBuilder nameUpdated = new StringBuilder();
+        final StringBuilder contactDeleted = new StringBuilder();
+        for (int scope = 0; scope < PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES.length; scope++) {
+            final String table = PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES[scope];
+            final String inScope = "NEW." + Contacts._ID + " IN " + table;
+            for (int alternative = 0; alternative < PHONEBOOK_BUCKET_COUNT_COLUMNS.length;
+                    alternative++) {
+                final String[] columns = PHONEBOOK_BUCKET_COUNT_COLUMNS[alternative];
+                final String oldRawContactId = "OLD." + Contacts.NAME_RAW_CONTACT_ID;
+                final String newRawContactId = "NEW." + Contacts.NAME_RAW_CONTACT_ID;
+                nameUpdated.append(adjustPhonebookBucketCount(scope, alternative,
+                        selectRawContactColumn(oldRawContactId, columns[0]),
+                        selectRawContactColumn(oldRawContactId, columns[1]),
+                        "-1",
+                        inScope + " AND EXISTS "
+                                + selectRawContactColumn(oldRawContactId, RawContacts._ID),
+                        false));
+                nameUpdated.append(adjustPhonebookBucketCount(scope, alternative,
+                        selectRawContactColumn(newRawContactId, columns[0]),
+                        selectRawContactColumn(newRawContactId, columns[1]),
+                        "1",
+                        inScope + " AND EXISTS "
+                                + selectRawContactColumn(newRawContactId, RawContacts._ID),
+                        true));
+            }
+            contactDeleted.append("   DELETE FROM " + table
+                    + "     WHERE " + Contacts._ID + "=OLD." + Contacts._ID + ";");
+        }
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + counts + "_name_raw_contact_updated;");
+        db.execSQL("CREATE TRIGGER " + counts + "_name_raw_contact_updated "
+                + "   AFTER UPDATE OF " + Contacts.NAME_RAW_CONTACT_ID + " ON " + Tables.CONTACTS
+                + "   WHEN OLD." + Contacts.NAME_RAW_CONTACT_ID
+                        + " IS NOT NEW." + Contacts.NAME_RAW_CONTACT_ID
+                + " BEGIN "
+                + nameUpdated
+                + " END");
+
+        // The aggregator deletes contacts directly; their rows in the scope tables would
+        // otherwise stay behind.
+        db.execSQL("DROP TRIGGER IF EXISTS " + counts + "_contact_deleted;");
+        db.execSQL("CREATE TRIGGER " + counts + "_contact_deleted "
+                + "   BEFORE DELETE ON " + Tables.CONTACTS
+                + " BEGIN "
+                + contactDeleted
+                + " END");
+
+        // Name raw contacts changing bucket, or being deleted.
+        final StringBuilder bucketUpdated = new StringBuilder();
+        final StringBuilder rawContactDeleted = new StringBuilder();
+        for (int scope = 0; scope < PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES.length; scope++) {
+            final String table = PHONEBOOK_BUCKET_COUNT_SCOPE_TABLES[scope];
+            final String newCount = "(SELECT COUNT(*) FROM " + Tables.CONTACTS
+                    + " WHERE " + Contacts.NAME_RAW_CONTACT_ID + "=NEW." + RawContacts._ID
+                    + " AND " + Contacts._ID + " IN " + table + ")";
+            final String oldCount = "(SELECT COUNT(*) FROM " + Tables.CONTACTS
+                    + " WHERE " + Contacts.NAME_RAW_CONTACT_ID + "=OLD." + RawContacts._ID
+                    + " AND " + Contacts._ID + " IN " + table + ")";
+            for (int alternative = 0; alternative < PHONEBOOK_BUCKET_COUNT_COLUMNS.length;
+                    alternative++) {
+                final String[] columns = PHONEBOOK_BUCKET_COUNT_COLUMNS[alternative];
+                bucketUpdated.append(adjustPhonebookBucketCount(scope, alternative,
+                        "OLD." + columns[0], "OLD." + columns[1],
+                        "-" + newCount, newCount + ">0", false));
+                bucketUpdated.append(adjustPhonebookBucketCount(scope, alternative,
+                        "NEW." + columns[0], "NEW." + columns[1],
+                        newCount, newCount + ">0", true));
+                rawContactDeleted.append(adjustPhonebookBucketCount(scope, alternative,
+                        "OLD." + columns[0], "OLD." + columns[1],
+                        "-" + oldCount, oldCount + ">0", false));
+            }
+        }
+
+        final StringBuilder bucketChanged = new StringBuilder();
+        for (String[] columns : PHONEBOOK_BUCKET_COUNT_COLUMNS) {
+            for (String column : columns) {
+                if (bucketChanged.length() > 0) {
+                    bucketChanged.append(" OR ");
+                }
+                bucketChanged.append("OLD." + column + " IS NOT NEW." + column);
+            }
+        }
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + counts + "_bucket_updated;");
+        db.execSQL("CREATE TRIGGER " + counts + "_bucket_updated "
+                + "   AFTER UPDATE OF "
+                        + RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY + ", "
+                        + RawContactsColumns.PHONEBOOK_LABEL_PRIMARY + ", "
+                        + RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + ", "
+                        + RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE
+                        + " ON " + Tables.RAW_CONTACTS
+                + "   WHEN " + bucketChanged
+                + " BEGIN "
+                + bucketUpdated
+                + " END");
+
+        // After, so that contacts whose last raw contact is being deleted are already gone.
+        db.execSQL("DROP TRIGGER IF EXISTS " + counts + "_raw_contact_deleted;");
+        db.execSQL("CREATE TRIGGER " + counts + "_raw_contact_deleted "
+                + "   AFTER DELETE ON " + Tables.RAW_CONTACTS
+                + " BEGIN "
+                + rawContactDeleted
+                + " END");
+    }
+
+    /**
+     * Returns a SQL statement that inserts the blocking keys of {@code nameLookup}, which is either
+     * "NEW" in a trigger or the name lookup table itself.
+     * <p>
+     * The keys of a normalized name are its first two bytes, and its first and third bytes, in
+     * hex.  Names that are one byte long have a single key, the name itself.  Two names that
+     * are similar enough to be approximate matches nearly always have a key in common.  Must be
+     * kept in sync with {@code AbstractContactAggregator.addNameBlockingKeys}.
+     */
+    private static String getNameBlockingKeyInsert(String nameLookup, boolean second) {
+        final String name = nameLookup + "." + NameLookupColumns.NORMALIZED_NAME;
+        final String key = second
+                ? "substr(" + name + ",1,2) || substr(" + name + ",5,2)"
+                : "substr(" + name + ",1,4)";
+        // The second key is the same as the first if the second and third bytes are equal, in
+        // which case its row is ignored.
+        final String where = second
+                ? "length(" + name + ")>=6"
+                : "length(" + name + ")>=2";
+        final String from = nameLookup.equals(Tables.NAME_LOOKUP)
+                ? " FROM " + Tables.NAME_LOOKUP : "";
+        return "INSERT OR IGNORE INTO " + Tables.NAME_BLOCKING_KEY + "("
+                + NameBlockingKeyColumns.BLOCKING_KEY + ","
+                + NameBlockingKeyColumns.NAME_TYPE + ","
+                + NameBlockingKeyColumns.NORMALIZED_NAME + ","
+                + NameBlockingKeyColumns.RAW_CONTACT_ID + ","
+                + NameBlockingKeyColumns.DATA_ID + ")"
+                + " SELECT " + key + ","
+                + nameLookup + "." + NameLookupColumns.NAME_TYPE + ","
+                + name + ","
+                + nameLookup + "." + NameLookupColumns.RAW_CONTACT_ID + ","
+                + nameLookup + "." + NameLookupColumns.DATA_ID
+                + from
+                + " WHERE " + where
+                + " AND " + nameLookup + "." + NameLookupColumns.NAME_TYPE
+                        + " IN " + APPROXIMATE_NAME_LOOKUP_TYPES;
+    }
+
+    private static final String APPROXIMATE_NAME_LOOKUP_TYPES = "("
+            + NameLookupType.NAME_COLLATION_KEY + ","
+            + NameLookupType.EMAIL_BASED_NICKNAME + ","
+            + NameLookupType.NICKNAME + ")";
+
     private void createContactsTriggers(SQLiteDatabase db) {
 
+        createPhonebookBucketCountsTriggers(db);
+
+        // Keep the name blocking keys in sync with the name lookup rows.
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.NAME_LOOKUP + "_inserted;");
+        db.execSQL("CREATE TRIGGER " + Tables.NAME_LOOKUP + "_inserted "
+                + "   AFTER INSERT ON " + Tables.NAME_LOOKUP
+                + " BEGIN "
+                + getNameBlockingKeyInsert("NEW", false) + ";"
+                + getNameBlockingKeyInsert("NEW", true) + ";"
+                + " END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.NAME_LOOKUP + "_deleted;");
+        db.execSQL("CREATE TRIGGER " + Tables.NAME_LOOKUP + "_deleted "
+                + "   AFTER DELETE ON " + Tables.NAME_LOOKUP
+                + " BEGIN "
+                + "   DELETE FROM " + Tables.NAME_BLOCKING_KEY
+                + "     WHERE " + NameBlockingKeyColumns.DATA_ID
+                                + "=OLD." + NameLookupColumns.DATA_ID
+                + "       AND " + NameBlockingKeyColumns.NORMALIZED_NAME
+                                + "=OLD." + NameLookupColumns.NORMALIZED_NAME
+                + "       AND " + NameBlockingKeyColumns.NAME_TYPE
+                                + "=OLD." + NameLookupColumns.NAME_TYPE + ";"
+                + " END");
+
         // Automatically delete Data rows when a raw contact is deleted.
         db.execSQL("DROP TRIGGER IF EXISTS " + Tables.RAW_CONTACTS + "_deleted;");
         db.execSQL("CREATE TRIGGER " + Tables.RAW_CONTACTS + "_deleted "
@@ -2295,6 +2725,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             db.execSQL("DROP TABLE IF EXISTS " + Tables.DATA + ";");
             db.execSQL("DROP TABLE IF EXISTS " + Tables.PHONE_LOOKUP + ";");
             db.execSQL("DROP TABLE IF EXISTS " + Tables.NAME_LOOKUP + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.NAME_BLOCKING_KEY + ";");
             db.execSQL("DROP TABLE IF EXISTS " + Tables.NICKNAME_LOOKUP + ";");
             db.execSQL("DROP TABLE IF EXISTS " + Tables.GROUPS + ";");
             db.execSQL("DROP TABLE IF EXISTS activities;");
@@ -2997,6 +3428,35 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             oldVersion = 1111;
         }
 
+        if (isUpgradeRequired(oldVersion, newVersion, 1112)) {
+            upgradeToVersion1112(db);
+            upgradeViewsAndTriggers = true;
+            oldVersion = 1112;
+        }
+
+        if (isUpgradeRequired(oldVersion, newVersion, 1113)) {
+            upgradeToVersion1113(db);
+            upgradeViewsAndTriggers = true;
+            oldVersion = 1113;
+        }
+
+        if (isUpgradeRequired(oldVersion, newVersion, 1114)) {
+            upgradeToVersion1114(db);
+            oldVersion = 1114;
+        }
+
+        if (isUpgradeRequired(oldVersion, newVersion, 1115)) {
+            upgradeToVersion1115(db);
+            rebuildSqliteStats = true;
+            oldVersion = 1115;
+        }
+
+        if (isUpgradeRequired(oldVersion, newVersion, 1116)) {
+            upgradeToVersion1116(db);
+            upgradeViewsAndTriggers = true;
+            oldVersion = 1116;
+        }
+
         // We extracted "calls" and "voicemail_status" at this point, but we can't remove them here
         // yet, until CallLogDatabaseHelper moves the data.
 
@@ -3653,6 +4113,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void insertNameLookup(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + Tables.NAME_BLOCKING_KEY);
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
 
         SQLiteStatement nameLookupInsert = db.compileStatement(
@@ -4674,6 +5135,64 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         FastScrollingIndexCache.getInstance(mContext).invalidate();
     }
 
+    /**
+     * Adds the name blocking key table, populated from the existing name lookup rows.
+     */
+    public void upgradeToVersion1112(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.NAME_BLOCKING_KEY);
+        createNameBlockingKeyTable(db);
+        db.execSQL(getNameBlockingKeyInsert(Tables.NAME_LOOKUP, false));
+        db.execSQL(getNameBlockingKeyInsert(Tables.NAME_LOOKUP, true));
+    }
+
+    /**
+     * Adds the address book index bucket counts table, populated from the existing contacts.
+     */
+    public void upgradeToVersion1113(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.PHONEBOOK_BUCKET_COUNTS);
+        createPhonebookBucketCountsTable(db);
+        rebuildPhonebookBucketCounts(db);
+    }
+
+    /**
+     * Adds the content hash column to the photo files table.  Existing files are left without a
+     * hash, and are therefore never shared.
+     */
+    public void upgradeToVersion1114(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.PHOTO_FILES
+                + " ADD " + PhotoFilesColumns.CONTENT_HASH + " TEXT;");
+        createPhotoFilesContentHashIndex(db);
+    }
+
+    private void createPhotoFilesContentHashIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS photo_files_content_hash_index ON "
+                + Tables.PHOTO_FILES + " (" + PhotoFilesColumns.CONTENT_HASH + ");");
+    }
+
+    /**
+     * Adds the indexes the photo store cleanup walks the referenced photo file IDs with.
+     */
+    public void upgradeToVersion1115(SQLiteDatabase db) {
+        createPhotoFileIdIndexes(db);
+    }
+
+    /**
+     * Adds the second blocking keys of the names whose first and third bytes are equal, which
+     * used to be left out.  The triggers that add them to new names are recreated with the views.
+     */
+    public void upgradeToVersion1116(SQLiteDatabase db) {
+        db.execSQL(getNameBlockingKeyInsert(Tables.NAME_LOOKUP, true));
+    }
+
+    private void createPhotoFileIdIndexes(SQLiteDatabase db) {
+        // Only the rows that have a data14 are indexed, which are mostly photos.
+        db.execSQL("CREATE INDEX IF NOT EXISTS data_photo_file_id_index ON " + Tables.DATA
+                + " (" + DataColumns.PHOTO_FILE_ID_AS_INTEGER + ") WHERE "
+                + Photo.PHOTO_FILE_ID + " IS NOT NULL;");
+        db.execSQL("CREATE INDEX IF NOT EXISTS stream_item_photos_photo_file_id_index ON "
+                + Tables.STREAM_ITEM_PHOTOS + " (" + StreamItemPhotos.PHOTO_FILE_ID + ");");
+    }
+
     /**
      * This method is only used in upgradeToVersion1101 method, and should not be used in other
      * places now. Because data15 is not used to generate hash_id for photo, and the new generating
@@ -4718,7 +5237,6 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     // Use SHA-1 hash method to generate hash string for the input.
-    @VisibleForTesting
     String generateHashIdForData(byte[] input) {
         synchronized (mMessageDigest) {
             final byte[] hashResult = mMessageDigest.digest(input);
@@ -4861,6 +5379,11 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             updateIndexStats(db, Tables.NAME_LOOKUP,
                     "sqlite_autoindex_name_lookup_1", "35000 3 2 1");
 
+            updateIndexStats(db, Tables.NAME_BLOCKING_KEY,
+                    "name_blocking_key_data_id_index", "50000 4");
+            updateIndexStats(db, Tables.NAME_BLOCKING_KEY,
+                    "sqlite_autoindex_name_blocking_key_1", "50000 100 50 2 1 1");
+
             updateIndexStats(db, Tables.PHONE_LOOKUP,
                     "phone_lookup_index", "3500 3 2 1");
             updateIndexStats(db, Tables.PHONE_LOOKUP,
@@ -4872,6 +5395,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     "data_mimetype_data1_index", "60000 5000 2");
             updateIndexStats(db, Tables.DATA,
                     "data_raw_contact_id", "60000 10");
+            updateIndexStats(db, Tables.DATA,
+                    "data_photo_file_id_index", "50 1");
 
             updateIndexStats(db, Tables.GROUPS,
                     "groups_source_id_account_id_index", "50 2 2 1 1");
@@ -4886,6 +5411,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     null, "500");
             updateIndexStats(db, Tables.STREAM_ITEM_PHOTOS,
                     null, "50");
+            updateIndexStats(db, Tables.STREAM_ITEM_PHOTOS,
+                    "stream_item_photos_photo_file_id_index", "50 1");
 
             updateIndexStats(db, Tables.ACCOUNTS,
                     null, "3");
@@ -4898,6 +5425,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
             updateIndexStats(db, Tables.PHOTO_FILES,
                     null, "50");
+            updateIndexStats(db, Tables.PHOTO_FILES,
+                    "photo_files_content_hash_index", "50 1");
 
             updateIndexStats(db, Tables.DEFAULT_DIRECTORY,
                     null, "1500");
@@ -4916,6 +5445,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     null, "10");
             updateIndexStats(db, Tables.SETTINGS,
                     null, "10");
+            updateIndexStats(db, Tables.PHONEBOOK_BUCKET_COUNTS,
+                    "sqlite_autoindex_phonebook_bucket_counts_1", "120 60 30 1 1");
             updateIndexStats(db, Tables.PACKAGES,
                     null, "0");
             updateIndexStats(db, Tables.DIRECTORIES,
@@ -4981,11 +5512,13 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DELETE FROM " + Tables.ACCOUNTS + ";");
         db.execSQL("DELETE FROM " + Tables.CONTACTS + ";");
         db.execSQL("DELETE FROM " + Tables.RAW_CONTACTS + ";");
+        db.execSQL("DELETE FROM " + Tables.PHONEBOOK_BUCKET_COUNTS + ";");
         db.execSQL("DELETE FROM " + Tables.STREAM_ITEMS + ";");
         db.execSQL("DELETE FROM " + Tables.STREAM_ITEM_PHOTOS + ";");
         db.execSQL("DELETE FROM " + Tables.PHOTO_FILES + ";");
         db.execSQL("DELETE FROM " + Tables.DATA + ";");
         db.execSQL("DELETE FROM " + Tables.PHONE_LOOKUP + ";");
+        db.execSQL("DELETE FROM " + Tables.NAME_BLOCKING_KEY + ";");
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP + ";");
         db.execSQL("DELETE FROM " + Tables.GROUPS + ";");
         db.execSQL("DELETE FROM " + Tables.AGGREGATION_EXCEPTIONS + ";");
@@ -5308,6 +5841,56 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         updateCustomContactVisibility(getWritableDatabase(), -1);
     }
 
+    /**
+     * Update {@link Contacts#IN_VISIBLE_GROUP} for the contacts that have a raw contact in one of
+     * the given accounts or groups, and for the given contacts.  Used instead of
+     * {@link #updateAllVisible} when the visibility of only a few groups or accounts has changed.
+     */
+    public void updateVisibleForChanges(Set<Long> accountIds, Set<Long> groupIds,
+            Set<Long> contactIds) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("(0");
+        if (!accountIds.isEmpty()) {
+            sb.append(" OR " + Contacts._ID + " IN (" +
+                    "SELECT " + RawContacts.CONTACT_ID +
+                    " FROM " + Tables.RAW_CONTACTS +
+                    " WHERE " + RawContactsColumns.ACCOUNT_ID + " IN (");
+            appendIds(sb, accountIds);
+            sb.append("))");
+        }
+        if (!groupIds.isEmpty()) {
+            sb.append(" OR " + Contacts._ID + " IN (" +
+                    "SELECT " + RawContactsColumns.CONCRETE_CONTACT_ID +
+                    " FROM " + Tables.DATA +
+                    " JOIN " + Tables.RAW_CONTACTS + " ON (" +
+                            DataColumns.CONCRETE_RAW_CONTACT_ID + "=" +
+                            RawContactsColumns.CONCRETE_ID + ")" +
+                    " WHERE " + DataColumns.CONCRETE_MIMETYPE_ID + "=" +
+                            getMimeTypeId(GroupMembership.CONTENT_ITEM_TYPE) +
+                    " AND " + GroupMembership.GROUP_ROW_ID + " IN (");
+            appendIds(sb, groupIds);
+            sb.append("))");
+        }
+        if (!contactIds.isEmpty()) {
+            sb.append(" OR " + Contacts._ID + " IN (");
+            appendIds(sb, contactIds);
+            sb.append(")");
+        }
+        sb.append(") AND ");
+        updateCustomContactVisibility(getWritableDatabase(), sb.toString());
+    }
+
+    private static void appendIds(StringBuilder sb, Set<Long> ids) {
+        boolean first = true;
+        for (Long id : ids) {
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(id);
+            first = false;
+        }
+    }
+
     /**
      * Updates contact visibility and return true iff the visibility was actually changed.
      */
@@ -5405,12 +5988,18 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * If {@code optionalContactId} is non-negative, it'll update only for the specified contact.
      */
     private void updateCustomContactVisibility(SQLiteDatabase db, long optionalContactId) {
+        updateCustomContactVisibility(db, (optionalContactId < 0) ? "" :
+                (Contacts._ID + "=" + optionalContactId + " AND "));
+    }
+
+    /**
+     * Same as above, for the contacts matching {@code contactIdSelect}, which is either empty or
+     * a condition on the contacts table followed by " AND ".
+     */
+    private void updateCustomContactVisibility(SQLiteDatabase db, String contactIdSelect) {
         final long groupMembershipMimetypeId = getMimeTypeId(GroupMembership.CONTENT_ITEM_TYPE);
         String[] selectionArgs = new String[] {String.valueOf(groupMembershipMimetypeId)};
 
-        final String contactIdSelect = (optionalContactId < 0) ? "" :
-                (Contacts._ID + "=" + optionalContactId + " AND ");
-
         // First delete what needs to be deleted, then insert what needs to be added.
         // Since flash writes are very expensive, this approach is much better than
         // delete-all-insert-all.
@@ -46,21 +46,17 @@ import android.database.MatrixCursor;
 import android.database.MatrixCursor.RowBuilder;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.net.Uri.Builder;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
-import android.os.ParcelFileDescriptor.AutoCloseInputStream;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.StrictMode;
@@ -114,6 +110,7 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseLongArray;
 
 import com.android.common.content.ProjectionMap;
 import com.android.common.content.SyncStateContentProviderHelper;
@@ -136,6 +133,7 @@ import com.android.providers.contacts.ContactsDatabaseHelper.MetadataSyncStateCo
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
 import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.PhonebookBucketCountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.PhotoFilesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.PreAuthorizedUris;
 import com.android.providers.contacts.ContactsDatabaseHelper.PresenceColumns;
@@ -161,6 +159,7 @@ import com.android.providers.contacts.aggregation.ContactAggregator;
 import com.android.providers.contacts.aggregation.ContactAggregator2;
 import com.android.providers.contacts.aggregation.ProfileAggregator;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
+import com.android.providers.contacts.aggregation.util.DeferredAggregationQueue;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.android.providers.contacts.database.DeletedContactsTableUtil;
 import com.android.providers.contacts.database.MoreDatabaseUtils;
@@ -169,13 +168,13 @@ import com.android.providers.contacts.enterprise.EnterprisePolicyGuard;
 import com.android.providers.contacts.util.Clock;
 import com.android.providers.contacts.util.ContactsPermissions;
 import com.android.providers.contacts.util.DbQueryUtils;
+import com.android.providers.contacts.util.MemoryFileUtils;
+import com.android.providers.contacts.util.MemoryFileUtils.BufferOutputStream;
 import com.android.providers.contacts.util.NeededForTesting;
 import com.android.providers.contacts.util.UserUtils;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
 
-import libcore.io.IoUtils;
-
 import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
 import com.google.android.collect.Sets;
@@ -184,11 +183,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -198,6 +195,7 @@ import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -229,6 +227,28 @@ public class ContactsProvider2 extends AbstractContactsProvider
           " ifnull(" + RawContacts.TIMES_CONTACTED + ",0)+1 " +
           " WHERE " + RawContacts.CONTACT_ID + "=?";
 
+    /**
+     * Method of {@link #call} returning the thumbnails of several contacts, or of several photo
+     * data rows, in one round trip instead of opening them one by one.  The IDs are passed in the
+     * {@link #THUMBNAILS_KEY_CONTACT_IDS} or {@link #THUMBNAILS_KEY_PHOTO_IDS} long array extra.
+     * <p>
+     * The response holds the thumbnails packed one after another in a shared memory region,
+     * {@link #THUMBNAILS_KEY_DESCRIPTOR}, and their lengths in the order of the IDs,
+     * {@link #THUMBNAILS_KEY_LENGTHS}; an ID without a thumbnail has a length of -1.  There is no
+     * descriptor if none of the IDs has a thumbnail.
+     * <p>
+     * This method is not part of {@link ContactsContract}, so the method name and the keys are
+     * only visible to this package; other clients have to pass the same string values.
+     */
+    /* package */ static final String THUMBNAILS_METHOD = "thumbnails";
+    /* package */ static final String THUMBNAILS_KEY_CONTACT_IDS = "contact_ids";
+    /* package */ static final String THUMBNAILS_KEY_PHOTO_IDS = "photo_ids";
+    /* package */ static final String THUMBNAILS_KEY_DESCRIPTOR = "descriptor";
+    /* package */ static final String THUMBNAILS_KEY_LENGTHS = "lengths";
+
+    /** Maximum number of IDs of a {@link #THUMBNAILS_METHOD} call. */
+    private static final int MAX_THUMBNAILS_PER_CALL = 1000;
+
     /* package */ static final String PHONEBOOK_COLLATOR_NAME = "PHONEBOOK";
 
     // Regex for splitting query strings - we split on any group of non-alphanumeric characters,
@@ -248,7 +268,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private static final int BACKGROUND_TASK_OPEN_WRITE_ACCESS = 1;
     private static final int BACKGROUND_TASK_UPDATE_ACCOUNTS = 3;
     private static final int BACKGROUND_TASK_UPDATE_LOCALE = 4;
-    private static final int BACKGROUND_TASK_UPGRADE_AGGREGATION_ALGORITHM = 5;
+    @VisibleForTesting
+    static final int BACKGROUND_TASK_UPGRADE_AGGREGATION_ALGORITHM = 5;
     private static final int BACKGROUND_TASK_UPDATE_SEARCH_INDEX = 6;
     private static final int BACKGROUND_TASK_UPDATE_PROVIDER_STATUS = 7;
     private static final int BACKGROUND_TASK_UPDATE_DIRECTORIES = 8;
@@ -257,6 +278,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private static final int BACKGROUND_TASK_CLEAN_DELETE_LOG = 11;
     private static final int BACKGROUND_TASK_UPDATE_DEFAULT_CONTACTS = 12;
     private static final int BACKGROUND_TASK_PRELOAD_CONTACT = 13;
+    @VisibleForTesting
+    static final int BACKGROUND_TASK_AGGREGATE_DEFERRED = 14;
+    private static final int BACKGROUND_TASK_RESUME_DEFERRED_AGGREGATION = 15;
+    private static final int BACKGROUND_TASK_CLEANUP_PHOTOS_SLICE = 16;
 
     protected static final int STATUS_NORMAL = 0;
     protected static final int STATUS_UPGRADING = 1;
@@ -272,6 +297,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
     /** Rate limit (in milliseconds) for photo cleanup.  Do it at most once per day. */
     private static final int PHOTO_CLEANUP_RATE_LIMIT = 24 * 60 * 60 * 1000;
 
+    /** Number of photo file IDs collected by each slice of the photo cleanup. */
+    private static final int PHOTO_CLEANUP_SLICE_SIZE = 1024;
+
+    /** Delay (in milliseconds) between the slices of the photo cleanup. */
+    private static final long PHOTO_CLEANUP_SLICE_DELAY_MS = 1000;
+
     /** Maximum length of a phone number that can be inserted into the database */
     private static final int PHONE_NUMBER_LENGTH_LIMIT = 1000;
 
@@ -296,8 +327,24 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private static final int AGGREGATION_ALGORITHM_NEW_VERSION = 5;
 
+    /** Number of raw contacts re-aggregated per transaction by the aggregation upgrade. */
+    private static final int AGGREGATION_UPGRADE_CHUNK_SIZE = 500;
+
     private static final String AGGREGATE_CONTACTS = "sync.contacts.aggregate";
 
+    /**
+     * If set to true, raw contacts are aggregated in the background after the transaction that
+     * inserted or changed them has been committed, instead of right before the commit.  Until
+     * then a new raw contact is shown as a contact on its own.
+     */
+    private static final String DEFER_AGGREGATION = "sync.contacts.defer_aggregation";
+
+    /** Number of raw contacts aggregated per transaction when aggregation is deferred. */
+    private static final int DEFERRED_AGGREGATION_SLICE_SIZE = 100;
+
+    /** How long a query waits for the deferred aggregation of the caller's own changes. */
+    private static final long DEFERRED_AGGREGATION_WAIT_TIMEOUT_MS = 5000;
+
     private static final String CONTACT_MEMORY_FILE_NAME = "contactAssetFile";
 
     /**
@@ -319,6 +366,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
             + Contacts.DISPLAY_NAME + " COLLATE LOCALIZED ASC";
     private static String WITHOUT_SIM_FLAG  = "no_sim";
 
+    /**
+     * Query parameter of {@link Contacts#CONTENT_URI} that limits the result to the contacts in
+     * a visible group, i.e. those of {@link Tables#VISIBLE_CONTACTS}.
+     */
+    static final String VISIBLE_CONTACTS_ONLY = "visible_contacts_only";
+
     private boolean isWhereAppended = false;
 
     public static final String ADD_GROUP_MEMBERS = "add_group_members";
@@ -1537,8 +1590,26 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private boolean mAccountUpdateListenerRegistered;
     private boolean mOkToOpenAccess = true;
 
+    // Set when the visibility of all contacts needs to be recomputed at commit.
     private boolean mVisibleTouched = false;
 
+    // Accounts, groups and contacts whose visibility needs to be recomputed at commit.
+    private final HashSet<Long> mVisibilityChangedAccountIds = new HashSet<Long>();
+    private final HashSet<Long> mVisibilityChangedGroupIds = new HashSet<Long>();
+    private final HashSet<Long> mVisibilityChangedContactIds = new HashSet<Long>();
+
+    private int mAggregationUpgradeChunkSize = AGGREGATION_UPGRADE_CHUNK_SIZE;
+
+    // Whether the aggregation algorithm upgrade has started and not finished yet, including
+    // between its chunks, so that the provider status stays STATUS_UPGRADING until it is done.
+    private boolean mAggregationUpgradeInProgress;
+
+    private boolean mDeferAggregation;
+    private final DeferredAggregationQueue mDeferredAggregations = new DeferredAggregationQueue();
+
+    // Calling UID -> sequence number of the last raw contact it deferred the aggregation of
+    private final SparseLongArray mDeferredAggregationSequenceByUid = new SparseLongArray();
+
     private boolean mSyncToNetwork;
     private boolean mSyncToMetadataNetWork;
 
@@ -1553,9 +1624,37 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private FastScrollingIndexCache mFastScrollingIndexCache;
 
+    private final PhotoCache mPhotoCache =
+            new PhotoCache(PhotoCache.DEFAULT_MAX_THUMBNAIL_BYTES);
+
+    /**
+     * Photos written through display photo file descriptors are processed two at a time, with a
+     * few more being written or waiting.  Opens past that are refused.  The photos read are
+     * capped in size, so that these bound the memory they take.
+     */
+    private static final int PHOTO_INGESTION_MAX_CONCURRENT = 2;
+    private static final int PHOTO_INGESTION_MAX_QUEUED = 6;
+    /** Written photos larger than this are refused. */
+    private static final int PHOTO_INGESTION_MAX_BYTES = 8 * 1024 * 1024;
+
+    private final PhotoIngestionExecutor mPhotoIngestionExecutor = new PhotoIngestionExecutor(
+            PHOTO_INGESTION_MAX_CONCURRENT, PHOTO_INGESTION_MAX_QUEUED, PHOTO_INGESTION_MAX_BYTES);
+
+    /**
+     * Multi-contact vCards of more than a chunk of contacts are composed a chunk per thread, with
+     * a bounded number of chunks composed or waiting to be written.
+     */
+    private static final int VCARD_EXPORT_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int VCARD_EXPORT_CHUNK_SIZE = 100;
+    private static final int VCARD_EXPORT_MAX_PENDING_CHUNKS = 2 * VCARD_EXPORT_THREADS;
+
+    private VCardExporter mVCardExporter;
+
     // Stats about FastScrollingIndex.
     private int mFastScrollingIndexCacheRequestCount;
     private int mFastScrollingIndexCacheMissCount;
+    private int mFastScrollingIndexCountsHitCount;
     private long mTotalTimeFastScrollingIndexGenerate;
 
     // MetadataSync flag.
@@ -1639,6 +1738,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // Initialize the pre-authorized URI duration.
         mPreAuthorizedUriDuration = DEFAULT_PREAUTHORIZED_URI_EXPIRATION;
 
+        mDeferAggregation = SystemProperties.getBoolean(DEFER_AGGREGATION, false);
+
         scheduleBackgroundTask(BACKGROUND_TASK_INITIALIZE);
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_ACCOUNTS);
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_LOCALE);
@@ -1646,6 +1747,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_SEARCH_INDEX);
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_PROVIDER_STATUS);
         scheduleBackgroundTask(BACKGROUND_TASK_OPEN_WRITE_ACCESS);
+        if (mDeferAggregation) {
+            scheduleBackgroundTask(BACKGROUND_TASK_RESUME_DEFERRED_AGGREGATION);
+        }
         scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_PHOTOS);
         scheduleBackgroundTask(BACKGROUND_TASK_CLEAN_DELETE_LOG);
         if (isPreloadRjilContactInfoEnabled) {
@@ -1667,6 +1771,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 mContactsPhotoStore);
     }
 
+    @VisibleForTesting
+    public void setDeferAggregationForTest(boolean deferAggregation) {
+        mDeferAggregation = deferAggregation;
+    }
+
+    @VisibleForTesting
+    void setAggregationUpgradeChunkSizeForTest(int chunkSize) {
+        mAggregationUpgradeChunkSize = chunkSize;
+    }
+
     /**
      * (Re)allocates all locale-sensitive structures.
      */
@@ -1843,12 +1957,20 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(task, arg));
     }
 
+    protected void scheduleBackgroundTaskDelayed(int task, long delayMillis) {
+        mBackgroundHandler.sendEmptyMessageDelayed(task, delayMillis);
+    }
+
     protected void performBackgroundTask(int task, Object arg) {
         // Make sure we operate on the contacts db by default.
         switchToContactMode();
         switch (task) {
             case BACKGROUND_TASK_INITIALIZE: {
                 initForDefaultLocale();
+                // An upgrade interrupted by a restart is resumed from its persisted cursor.
+                mAggregationUpgradeInProgress = isAggregationUpgradeNeeded()
+                        && !"0".equals(mContactsHelper.getProperty(
+                                DbProperties.AGGREGATION_UPGRADE_CURSOR, "0"));
                 mReadAccessLatch.countDown();
                 mReadAccessLatch = null;
                 break;
@@ -1924,13 +2046,24 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 if (now - mLastPhotoCleanup > PHOTO_CLEANUP_RATE_LIMIT) {
                     mLastPhotoCleanup = now;
 
-                    // Clean up photo stores for both contacts and profiles.
-                    switchToContactMode();
-                    cleanupPhotoStore();
-                    switchToProfileMode();
-                    cleanupPhotoStore();
+                    // Start a pass, or resume the one interrupted by the last shutdown.
+                    scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_PHOTOS_SLICE);
+                }
+                break;
+            }
 
-                    switchToContactMode(); // Switch to the default, just in case.
+            case BACKGROUND_TASK_CLEANUP_PHOTOS_SLICE: {
+                // Clean up a slice of the photo stores for both contacts and profiles, and
+                // give the other background tasks and the database some room before the next.
+                switchToContactMode();
+                boolean unfinished = cleanupNextPhotoStoreSlice();
+                switchToProfileMode();
+                unfinished |= cleanupNextPhotoStoreSlice();
+
+                switchToContactMode(); // Switch to the default, just in case.
+                if (unfinished) {
+                    scheduleBackgroundTaskDelayed(BACKGROUND_TASK_CLEANUP_PHOTOS_SLICE,
+                            PHOTO_CLEANUP_SLICE_DELAY_MS);
                 }
                 break;
             }
@@ -1949,7 +2082,21 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 importPreloadContact();
                 break;
             }
+
+            case BACKGROUND_TASK_RESUME_DEFERRED_AGGREGATION: {
+                resumeDeferredAggregationInBackground();
+                break;
+            }
+
+            case BACKGROUND_TASK_AGGREGATE_DEFERRED: {
+                aggregateDeferredInBackground();
+                break;
+            }
         }
+
+        // Background tasks write to the database outside of the provider transactions.
+        invalidateAggregationSuggestions();
+        mPhotoCache.invalidate();
     }
 
     public void onLocaleChanged() {
@@ -2073,6 +2220,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 && mProviderStatus != STATUS_NO_ACCOUNTS_NO_CONTACTS) {
             return;
         }
+        if (mAggregationUpgradeInProgress) {
+            // Between two chunks of the upgrade; it sets the status back once it's done.
+            setProviderStatus(STATUS_UPGRADING);
+            return;
+        }
 
         // No accounts/no contacts status is true if there are no account and
         // there are no contacts or one profile contact
@@ -2092,88 +2244,171 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    /**
+     * Runs a full photo store garbage collection pass, slice after slice.
+     */
     @VisibleForTesting
     protected void cleanupPhotoStore() {
+        long start = 0;
+        do {
+            start = cleanupPhotoStoreSlice(start, PHOTO_CLEANUP_SLICE_SIZE);
+        } while (start != 0);
+    }
+
+    /**
+     * Runs the next slice of the photo store garbage collection of the current mode, resuming
+     * from the progress saved by the last one.  Returns true if the pass is not finished yet.
+     */
+    private boolean cleanupNextPhotoStoreSlice() {
+        final ContactsDatabaseHelper dbHelper = mDbHelper.get();
+        final long start = Long.parseLong(
+                dbHelper.getProperty(DbProperties.PHOTO_CLEANUP_CURSOR, "0"));
+        final long next = cleanupPhotoStoreSlice(start, PHOTO_CLEANUP_SLICE_SIZE);
+        dbHelper.setProperty(DbProperties.PHOTO_CLEANUP_CURSOR, String.valueOf(next));
+        return next != 0;
+    }
+
+    /**
+     * Garbage collects the photo files whose IDs are in [start, start + size): the photo files
+     * that no data row or stream item photo references are deleted, and the references to photo
+     * files that no longer exist are cleared.  Identical photos share a photo file, so a file ID
+     * may be referenced by several rows; the file is kept as long as any of them remains.
+     *
+     * @return The start of the next slice, which skips the IDs that are neither referenced nor
+     *     in the photo store, or 0 if this was the last one.
+     */
+    @VisibleForTesting
+    long cleanupPhotoStoreSlice(long start, int size) {
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
+        final long end = start + size;
+
+        // Mark the photo file IDs of the range that are in use.  Both queries are range scans of
+        // the photo file ID indexes.
+        final BitSet usedPhotoFileIds = new BitSet(size);
+        markPhotoFileIds(db, getPhotoFileIdQuery(
+                DataColumns.PHOTO_FILE_ID_AS_INTEGER + ">=" + start + " AND "
+                        + DataColumns.PHOTO_FILE_ID_AS_INTEGER + "<" + end, null),
+                start, usedPhotoFileIds);
+        markPhotoFileIds(db, getStreamItemPhotoFileIdQuery(
+                StreamItemPhotosColumns.CONCRETE_PHOTO_FILE_ID + ">=" + start + " AND "
+                        + StreamItemPhotosColumns.CONCRETE_PHOTO_FILE_ID + "<" + end, null),
+                start, usedPhotoFileIds);
+
+        // Sweep the photo store.  Any photos of the range that aren't in use will be deleted, and
+        // the ones in use that no longer exist will be returned for us to clear out in the DB.
+        final long[] missingPhotoFileIds = mPhotoStore.get().cleanup(start, end, usedPhotoFileIds);
+        if (missingPhotoFileIds.length > 0) {
+            clearPhotoFileReferences(db, missingPhotoFileIds);
+        }
+
+        // The next slice starts at the first photo file ID past this one that is referenced or
+        // stored, so that gaps in the IDs are skipped.
+        long next = mPhotoStore.get().getNextKey(end);
+        next = getNextPhotoFileId(db, getPhotoFileIdQuery(
+                DataColumns.PHOTO_FILE_ID_AS_INTEGER + ">=" + end, "1"), next);
+        next = getNextPhotoFileId(db, getStreamItemPhotoFileIdQuery(
+                StreamItemPhotosColumns.CONCRETE_PHOTO_FILE_ID + ">=" + end, "1"), next);
+        return next;
+    }
+
+    /**
+     * Returns the query for the photo file IDs of the photo data rows matching the selection, in
+     * ascending order.  The data column is text, and only its integer value is indexed.
+     */
+    private String getPhotoFileIdQuery(String selection, String limit) {
+        final long photoMimeTypeId = mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
+        return SQLiteQueryBuilder.buildQueryString(false, Tables.DATA,
+                new String[] {DataColumns.PHOTO_FILE_ID_AS_INTEGER},
+                DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId
+                        + " AND " + Photo.PHOTO_FILE_ID + " IS NOT NULL AND " + selection,
+                null, null, DataColumns.PHOTO_FILE_ID_AS_INTEGER, limit);
+    }
+
+    /**
+     * Returns the query for the photo file IDs of the stream item photos matching the selection,
+     * in ascending order.  The photos of stream items that no longer exist don't count.
+     */
+    private static String getStreamItemPhotoFileIdQuery(String selection, String limit) {
+        return SQLiteQueryBuilder.buildQueryString(false, Tables.STREAM_ITEM_PHOTOS + " JOIN "
+                + Tables.STREAM_ITEMS + " ON " + StreamItemPhotosColumns.CONCRETE_STREAM_ITEM_ID
+                + "=" + StreamItemsColumns.CONCRETE_ID,
+                new String[] {StreamItemPhotosColumns.CONCRETE_PHOTO_FILE_ID}, selection,
+                null, null, StreamItemPhotosColumns.CONCRETE_PHOTO_FILE_ID, limit);
+    }
 
-        // Assemble the set of photo store file IDs that are in use, and send those to the photo
-        // store.  Any photos that aren't in that set will be deleted, and any photos that no
-        // longer exist in the photo store will be returned for us to clear out in the DB.
-        long photoMimeTypeId = mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
-        Cursor c = db.query(Views.DATA, new String[] {Data._ID, Photo.PHOTO_FILE_ID},
-                DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId + " AND "
-                        + Photo.PHOTO_FILE_ID + " IS NOT NULL", null, null, null, null);
-        Set<Long> usedPhotoFileIds = Sets.newHashSet();
-        Map<Long, Long> photoFileIdToDataId = Maps.newHashMap();
+    /**
+     * Sets the bits of the photo file IDs returned by the given query, relative to {@code start}.
+     */
+    private static void markPhotoFileIds(SQLiteDatabase db, String query, long start,
+            BitSet used) {
+        final Cursor c = db.rawQuery(query, null);
         try {
             while (c.moveToNext()) {
-                long dataId = c.getLong(0);
-                long photoFileId = c.getLong(1);
-                usedPhotoFileIds.add(photoFileId);
-                photoFileIdToDataId.put(photoFileId, dataId);
+                used.set((int) (c.getLong(0) - start));
             }
         } finally {
             c.close();
         }
+    }
 
-        // Also query for all social stream item photos.
-        c = db.query(Tables.STREAM_ITEM_PHOTOS + " JOIN " + Tables.STREAM_ITEMS
-                + " ON " + StreamItemPhotos.STREAM_ITEM_ID + "=" + StreamItemsColumns.CONCRETE_ID,
-                new String[] {
-                        StreamItemPhotosColumns.CONCRETE_ID,
-                        StreamItemPhotosColumns.CONCRETE_STREAM_ITEM_ID,
-                        StreamItemPhotos.PHOTO_FILE_ID
-                },
-                null, null, null, null, null);
-        Map<Long, Long> photoFileIdToStreamItemPhotoId = Maps.newHashMap();
-        Map<Long, Long> streamItemPhotoIdToStreamItemId = Maps.newHashMap();
+    /**
+     * Returns the photo file ID returned by the given query if it comes before {@code next}, or
+     * {@code next} otherwise.  0 stands for no photo file ID.
+     */
+    private static long getNextPhotoFileId(SQLiteDatabase db, String query, long next) {
+        final Cursor c = db.rawQuery(query, null);
         try {
-            while (c.moveToNext()) {
-                long streamItemPhotoId = c.getLong(0);
-                long streamItemId = c.getLong(1);
-                long photoFileId = c.getLong(2);
-                usedPhotoFileIds.add(photoFileId);
-                photoFileIdToStreamItemPhotoId.put(photoFileId, streamItemPhotoId);
-                streamItemPhotoIdToStreamItemId.put(streamItemPhotoId, streamItemId);
+            if (c.moveToFirst() && (next == 0 || c.getLong(0) < next)) {
+                return c.getLong(0);
             }
+            return next;
         } finally {
             c.close();
         }
+    }
 
-        // Run the photo store cleanup.
-        Set<Long> missingPhotoIds = mPhotoStore.get().cleanup(usedPhotoFileIds);
-
-        // If any of the keys we're using no longer exist, clean them up.  We need to do these
-        // using internal APIs or direct DB access to avoid permission errors.
-        if (!missingPhotoIds.isEmpty()) {
+    /**
+     * Clears the references to the given photo files, which no longer exist.  We need to do
+     * this using internal APIs or direct DB access to avoid permission errors.
+     */
+    private void clearPhotoFileReferences(SQLiteDatabase db, long[] photoFileIds) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < photoFileIds.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(photoFileIds[i]);
+        }
+        final String ids = sb.toString();
+        final long photoMimeTypeId = mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
+        try {
+            // Need to set the db listener because we need to run onCommit afterwards.
+            // Make sure to use the proper listener depending on the current mode.
+            db.beginTransactionWithListener(inProfileMode() ? mProfileProvider : this);
+            final Cursor c = db.query(Tables.DATA, new String[] {Data._ID},
+                    DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId + " AND "
+                            + Photo.PHOTO_FILE_ID + " IS NOT NULL AND "
+                            + DataColumns.PHOTO_FILE_ID_AS_INTEGER + " IN (" + ids + ")",
+                    null, null, null, null);
             try {
-                // Need to set the db listener because we need to run onCommit afterwards.
-                // Make sure to use the proper listener depending on the current mode.
-                db.beginTransactionWithListener(inProfileMode() ? mProfileProvider : this);
-                for (long missingPhotoId : missingPhotoIds) {
-                    if (photoFileIdToDataId.containsKey(missingPhotoId)) {
-                        long dataId = photoFileIdToDataId.get(missingPhotoId);
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.putNull(Photo.PHOTO_FILE_ID);
-                        updateData(ContentUris.withAppendedId(Data.CONTENT_URI, dataId),
-                                updateValues, null, null, /* callerIsSyncAdapter =*/false,
-                                /* callerIsMetadataSyncAdapter =*/false);
-                    }
-                    if (photoFileIdToStreamItemPhotoId.containsKey(missingPhotoId)) {
-                        // For missing photos that were in stream item photos, just delete the
-                        // stream item photo.
-                        long streamItemPhotoId = photoFileIdToStreamItemPhotoId.get(missingPhotoId);
-                        db.delete(Tables.STREAM_ITEM_PHOTOS, StreamItemPhotos._ID + "=?",
-                                new String[] {String.valueOf(streamItemPhotoId)});
-                    }
+                while (c.moveToNext()) {
+                    ContentValues updateValues = new ContentValues();
+                    updateValues.putNull(Photo.PHOTO_FILE_ID);
+                    updateData(ContentUris.withAppendedId(Data.CONTENT_URI, c.getLong(0)),
+                            updateValues, null, null, /* callerIsSyncAdapter =*/false,
+                            /* callerIsMetadataSyncAdapter =*/false);
                 }
-                db.setTransactionSuccessful();
-            } catch (Exception e) {
-                // Cleanup failure is not a fatal problem.  We'll try again later.
-                Log.e(TAG, "Failed to clean up outdated photo references", e);
             } finally {
-                db.endTransaction();
+                c.close();
             }
+
+            // For missing photos that were in stream item photos, just delete the stream item
+            // photo.
+            db.delete(Tables.STREAM_ITEM_PHOTOS,
+                    StreamItemPhotos.PHOTO_FILE_ID + " IN (" + ids + ")", null);
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // Cleanup failure is not a fatal problem.  We'll try again later.
+            Log.e(TAG, "Failed to clean up outdated photo references", e);
+        } finally {
+            db.endTransaction();
         }
     }
 
@@ -2311,6 +2546,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mProfileHelper.wipeData();
         mContactsPhotoStore.clear();
         mProfilePhotoStore.clear();
+        mPhotoCache.invalidate();
         mProviderStatus = STATUS_NO_ACCOUNTS_NO_CONTACTS;
         initForDefaultLocale();
     }
@@ -2483,10 +2719,100 @@ public class ContactsProvider2 extends AbstractContactsProvider
             }
             undemoteContact(mDbHelper.get().getWritableDatabase(), id);
             return null;
+        } else if (THUMBNAILS_METHOD.equals(method)) {
+            ContactsPermissions.enforceCallingOrSelfPermission(getContext(), READ_PERMISSION);
+            if (extras == null) {
+                throw new IllegalArgumentException("Contact or photo IDs must be specified.");
+            }
+            final long[] contactIds = extras.getLongArray(THUMBNAILS_KEY_CONTACT_IDS);
+            final long[] ids = contactIds != null
+                    ? contactIds : extras.getLongArray(THUMBNAILS_KEY_PHOTO_IDS);
+            if (ids == null) {
+                throw new IllegalArgumentException("Contact or photo IDs must be specified.");
+            }
+            if (ids.length > MAX_THUMBNAILS_PER_CALL) {
+                throw new IllegalArgumentException(
+                        "At most " + MAX_THUMBNAILS_PER_CALL + " thumbnails can be requested.");
+            }
+            return getThumbnails(ids, contactIds != null);
         }
         return null;
     }
 
+    /**
+     * Returns the thumbnails of the given contacts or photo data rows for
+     * {@link #THUMBNAILS_METHOD}.  The ones in the photo cache are served directly, the others
+     * are read with a single query.
+     */
+    private Bundle getThumbnails(long[] ids, boolean byContactId) {
+        final byte[][] thumbnails = new byte[ids.length][];
+        final StringBuilder uncachedIds = new StringBuilder();
+        for (int i = 0; i < ids.length; i++) {
+            thumbnails[i] = mPhotoCache.getThumbnail(byContactId
+                    ? PhotoCache.getContactKey(ids[i]) : PhotoCache.getDataKey(ids[i]));
+            if (thumbnails[i] == null) {
+                uncachedIds.append(uncachedIds.length() == 0 ? "" : ",").append(ids[i]);
+            }
+        }
+
+        if (uncachedIds.length() > 0) {
+            final long generation = mPhotoCache.getGeneration();
+            final String idColumn = byContactId ? RawContacts.CONTACT_ID : Data._ID;
+            final String selection = byContactId
+                    ? Data._ID + "=" + Contacts.PHOTO_ID
+                    : DataColumns.MIMETYPE_ID + "="
+                            + mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
+            final SQLiteDatabase db = mDbHelper.get().getReadableDatabase();
+            final HashMap<Long, byte[]> queried = new HashMap<Long, byte[]>();
+            final Cursor c = db.rawQuery("SELECT " + idColumn + "," + Photo.PHOTO
+                    + " FROM " + Views.DATA + " WHERE " + selection
+                    + " AND " + idColumn + " IN (" + uncachedIds + ")", null);
+            try {
+                while (c.moveToNext()) {
+                    final byte[] thumbnail = c.getBlob(1);
+                    if (thumbnail != null) {
+                        queried.put(c.getLong(0), thumbnail);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            for (int i = 0; i < ids.length; i++) {
+                if (thumbnails[i] == null) {
+                    thumbnails[i] = queried.get(ids[i]);
+                    if (thumbnails[i] != null) {
+                        mPhotoCache.putThumbnail(byContactId ? PhotoCache.getContactKey(ids[i])
+                                : PhotoCache.getDataKey(ids[i]), generation, thumbnails[i]);
+                    }
+                }
+            }
+        }
+
+        final int[] lengths = new int[ids.length];
+        int totalLength = 0;
+        for (int i = 0; i < ids.length; i++) {
+            lengths[i] = thumbnails[i] == null ? -1 : thumbnails[i].length;
+            totalLength += thumbnails[i] == null ? 0 : thumbnails[i].length;
+        }
+        final Bundle response = new Bundle();
+        response.putIntArray(THUMBNAILS_KEY_LENGTHS, lengths);
+        if (totalLength > 0) {
+            final BufferOutputStream stream = new BufferOutputStream(totalLength);
+            for (byte[] thumbnail : thumbnails) {
+                if (thumbnail != null) {
+                    stream.write(thumbnail, 0, thumbnail.length);
+                }
+            }
+            try {
+                response.putParcelable(THUMBNAILS_KEY_DESCRIPTOR, stream.toParcelFileDescriptor());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create a file descriptor", e);
+            }
+        }
+        return response;
+    }
+
     /**
      * Pre-authorizes the given URI, adding an expiring permission token to it and placing that
      * in our map of pre-authorized URIs.
@@ -2595,6 +2921,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
             mContactAggregator.clearPendingAggregations();
             mContactTransactionContext.clearExceptSearchIndexUpdates();
         }
+
+        mAggregator.get().invalidateAggregationSuggestions();
+        mPhotoCache.invalidate();
     }
 
     @Override
@@ -2615,13 +2944,27 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         flushTransactionalChanges();
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
-        mAggregator.get().aggregateInTransaction(mTransactionContext.get(), db);
+        if (mDeferAggregation && !forProfile) {
+            deferAggregation(mAggregator.get().takeRawContactsMarkedForAggregation());
+        } else {
+            mAggregator.get().aggregateInTransaction(mTransactionContext.get(), db);
+        }
+        mAggregator.get().invalidateAggregationSuggestions();
+        mPhotoCache.invalidate();
         if (mVisibleTouched) {
             mVisibleTouched = false;
+            clearVisibilityChanges();
             mDbHelper.get().updateAllVisible();
 
             // Need to rebuild the fast-indxer bundle.
             invalidateFastScrollingIndexCache();
+        } else if (!mVisibilityChangedAccountIds.isEmpty()
+                || !mVisibilityChangedGroupIds.isEmpty()
+                || !mVisibilityChangedContactIds.isEmpty()) {
+            mDbHelper.get().updateVisibleForChanges(mVisibilityChangedAccountIds,
+                    mVisibilityChangedGroupIds, mVisibilityChangedContactIds);
+            clearVisibilityChanges();
+            invalidateFastScrollingIndexCache();
         }
 
         updateSearchIndexInTransaction();
@@ -2649,6 +2992,163 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         mDbHelper.get().invalidateAllCache();
+        // The aggregation exceptions changed by the transaction are back in the database.
+        mAggregator.get().invalidateAggregationExceptionCache();
+        mVisibleTouched = false;
+        clearVisibilityChanges();
+    }
+
+    private void clearVisibilityChanges() {
+        mVisibilityChangedAccountIds.clear();
+        mVisibilityChangedGroupIds.clear();
+        mVisibilityChangedContactIds.clear();
+    }
+
+    /**
+     * Records the accounts of the settings matching the selection as needing their contacts'
+     * visibility recomputed.
+     */
+    private void markSettingsVisibilityChanged(String selection, String[] selectionArgs) {
+        final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
+        final Cursor c = db.query(Tables.SETTINGS, new String[] {
+                Settings.ACCOUNT_NAME, Settings.ACCOUNT_TYPE, Settings.DATA_SET},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final Long accountId = mDbHelper.get().getAccountIdOrNull(
+                        AccountWithDataSet.get(c.getString(0), c.getString(1), c.getString(2)));
+                if (accountId != null) {
+                    mVisibilityChangedAccountIds.add(accountId);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Queues raw contacts for aggregation in the background, after the current transaction.
+     * New raw contacts already have a contact of their own, created by
+     * {@link AbstractContactAggregator#onRawContactInsert}, until then.
+     */
+    private void deferAggregation(long[] rawContactIds) {
+        if (rawContactIds.length == 0) {
+            return;
+        }
+        long sequence = 0;
+        for (long rawContactId : rawContactIds) {
+            sequence = mDeferredAggregations.enqueue(rawContactId);
+        }
+        synchronized (mDeferredAggregationSequenceByUid) {
+            mDeferredAggregationSequenceByUid.put(Binder.getCallingUid(), sequence);
+        }
+
+        scheduleDeferredAggregation();
+    }
+
+    /**
+     * Schedules {@link #BACKGROUND_TASK_AGGREGATE_DEFERRED} unless it is already queued.
+     */
+    private void scheduleDeferredAggregation() {
+        if (!mBackgroundHandler.hasMessages(BACKGROUND_TASK_AGGREGATE_DEFERRED)) {
+            scheduleBackgroundTask(BACKGROUND_TASK_AGGREGATE_DEFERRED);
+        }
+    }
+
+    /**
+     * Queues the raw contacts whose deferred aggregation was interrupted by a restart.
+     */
+    private void resumeDeferredAggregationInBackground() {
+        switchToContactMode();
+        final long[] rawContactIds = mContactAggregator.queryRawContactsNeedingAggregation(
+                mContactsHelper.getReadableDatabase());
+        if (rawContactIds.length != 0) {
+            Log.i(TAG, "Resuming deferred aggregation of " + rawContactIds.length
+                    + " raw contacts");
+            deferAggregation(rawContactIds);
+        }
+    }
+
+    /**
+     * Aggregates the next {@link #DEFERRED_AGGREGATION_SLICE_SIZE} deferred raw contacts in a
+     * transaction of their own, and schedules itself again until the queue is empty.
+     */
+    private void aggregateDeferredInBackground() {
+        final long[] rawContactIds = mDeferredAggregations.poll(DEFERRED_AGGREGATION_SLICE_SIZE);
+        if (rawContactIds.length == 0) {
+            mDeferredAggregations.finishSlice();
+            return;
+        }
+
+        switchToContactMode();
+        final long start = SystemClock.elapsedRealtime();
+        boolean success = false;
+        try {
+            final SQLiteDatabase db = mContactsHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                mContactAggregator.markDeferredForAggregation(db, rawContactIds);
+                mContactAggregator.aggregateInTransaction(mTransactionContext.get(), db);
+                updateSearchIndexInTransaction();
+                db.setTransactionSuccessful();
+                success = true;
+            } finally {
+                mTransactionContext.get().clearAll();
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            // The raw contacts keep their own contacts, and are retried on the next start since
+            // they are still flagged as needing aggregation.
+            Log.e(TAG, "Deferred aggregation of " + rawContactIds.length
+                    + " raw contacts failed", e);
+        } finally {
+            if (!success) {
+                mContactAggregator.clearPendingAggregations();
+            }
+            mDeferredAggregations.finishSlice();
+        }
+
+        if (success) {
+            if (VERBOSE_LOGGING) {
+                Log.v(TAG, "Aggregated " + rawContactIds.length + " deferred raw contacts in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+            invalidateFastScrollingIndexCache();
+            notifyChange(false, false);
+        }
+        if (!mDeferredAggregations.isEmpty()) {
+            scheduleDeferredAggregation();
+        }
+    }
+
+    /**
+     * Gives read-your-writes semantics to the queries that return aggregates while aggregation
+     * is deferred: if the calling app has changed raw contacts whose aggregation is still
+     * pending, waits for it (for a bounded time).
+     */
+    private void waitForDeferredAggregation(int match, SQLiteDatabase db) {
+        if (!mDeferAggregation || inProfileMode() || !isAggregateQuery(match)) {
+            return;
+        }
+        final long sequence;
+        synchronized (mDeferredAggregationSequenceByUid) {
+            sequence = mDeferredAggregationSequenceByUid.get(Binder.getCallingUid(), 0);
+        }
+        // The worker needs the write lock, so never wait while holding it, nor on the worker.
+        if (sequence == 0 || db.inTransaction()
+                || Looper.myLooper() == mBackgroundHandler.getLooper()) {
+            return;
+        }
+        if (!mDeferredAggregations.await(sequence, DEFERRED_AGGREGATION_WAIT_TIMEOUT_MS)) {
+            Log.w(TAG, "Timed out waiting for deferred aggregation, "
+                    + mDeferredAggregations.size() + " raw contacts pending");
+        }
+    }
+
+    private static boolean isAggregateQuery(int match) {
+        return (match >= CONTACTS && match <= CONTACTS_FILTER_ENTERPRISE)
+                || match == PHONE_LOOKUP
+                || match == AGGREGATION_SUGGESTIONS;
     }
 
     private void updateSearchIndexInTransaction() {
@@ -2801,6 +3301,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     protected void notifyChange(boolean syncToNetwork, boolean syncToMetadataNetwork) {
+        // The changes are committed by now, drop the suggestions and photos read while
+        // committing.
+        invalidateAggregationSuggestions();
+        mPhotoCache.invalidate();
+
         getContext().getContentResolver().notifyChange(ContactsContract.AUTHORITY_URI, null,
                 syncToNetwork);
 
@@ -2808,6 +3313,15 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 null, syncToMetadataNetwork);
     }
 
+    private void invalidateAggregationSuggestions() {
+        if (mContactAggregator != null) {
+            mContactAggregator.invalidateAggregationSuggestions();
+        }
+        if (mProfileAggregator != null) {
+            mProfileAggregator.invalidateAggregationSuggestions();
+        }
+    }
+
     protected void setProviderStatus(int status) {
         if (mProviderStatus != status) {
             mProviderStatus = status;
@@ -3474,7 +3988,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         if (values.containsKey(Groups.GROUP_VISIBLE)) {
-            mVisibleTouched = true;
+            mVisibilityChangedGroupIds.add(groupId);
         }
         return groupId;
     }
@@ -3524,7 +4038,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
         final long id = db.insert(Tables.SETTINGS, null, values);
 
         if (values.containsKey(Settings.UNGROUPED_VISIBLE)) {
-            mVisibleTouched = true;
+            final Long accountId = mDbHelper.get().getAccountIdOrNull(
+                    AccountWithDataSet.get(accountName, accountType, dataSet));
+            if (accountId != null) {
+                mVisibilityChangedAccountIds.add(accountId);
+            }
         }
 
         return id;
@@ -4012,28 +4530,38 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mGroupIdCache.clear();
         final long groupMembershipMimetypeId = mDbHelper.get()
                 .getMimeTypeId(GroupMembership.CONTENT_ITEM_TYPE);
-        db.delete(Tables.DATA, DataColumns.MIMETYPE_ID + "="
-                + groupMembershipMimetypeId + " AND " + GroupMembership.GROUP_ROW_ID + "="
-                + groupId, null);
 
+        // Only the members of the group can change visibility.
+        final Cursor c = db.rawQuery("SELECT DISTINCT " + RawContactsColumns.CONCRETE_CONTACT_ID
+                + " FROM " + Tables.DATA_JOIN_RAW_CONTACTS
+                + " WHERE " + DataColumns.CONCRETE_MIMETYPE_ID + "=" + groupMembershipMimetypeId
+                + " AND " + GroupMembership.GROUP_ROW_ID + "=" + groupId, null);
         try {
-            if (callerIsSyncAdapter) {
-                return db.delete(Tables.GROUPS, Groups._ID + "=" + groupId, null);
+            while (c.moveToNext()) {
+                mVisibilityChangedContactIds.add(c.getLong(0));
             }
-
-            final ContentValues values = new ContentValues();
-            values.put(Groups.DELETED, 1);
-            values.put(Groups.DIRTY, 1);
-            return db.update(Tables.GROUPS, values, Groups._ID + "=" + groupId, null);
         } finally {
-            mVisibleTouched = true;
+            c.close();
         }
+
+        db.delete(Tables.DATA, DataColumns.MIMETYPE_ID + "="
+                + groupMembershipMimetypeId + " AND " + GroupMembership.GROUP_ROW_ID + "="
+                + groupId, null);
+
+        if (callerIsSyncAdapter) {
+            return db.delete(Tables.GROUPS, Groups._ID + "=" + groupId, null);
+        }
+
+        final ContentValues values = new ContentValues();
+        values.put(Groups.DELETED, 1);
+        values.put(Groups.DIRTY, 1);
+        return db.update(Tables.GROUPS, values, Groups._ID + "=" + groupId, null);
     }
 
     private int deleteSettings(String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
+        markSettingsVisibilityChanged(selection, selectionArgs);
         final int count = db.delete(Tables.SETTINGS, selection, selectionArgs);
-        mVisibleTouched = true;
         return count;
     }
 
@@ -4060,7 +4588,6 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     public int deleteRawContact(long rawContactId, long contactId, boolean callerIsSyncAdapter) {
-        mAggregator.get().invalidateAggregationExceptionCache();
         mProviderStatusUpdateNeeded = true;
 
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
@@ -4091,6 +4618,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
             db.delete(Tables.PRESENCE, PresenceColumns.RAW_CONTACT_ID + "=" + rawContactId, null);
             count = db.delete(Tables.RAW_CONTACTS, RawContacts._ID + "=" + rawContactId, null);
             mTransactionContext.get().markRawContactChangedOrDeletedOrInserted(rawContactId);
+            // The raw contact's aggregation exceptions are deleted by a trigger.
+            mAggregator.get().onRawContactDeleted(rawContactId);
         } else {
             count = markRawContactAsDeleted(db, rawContactId, callerIsSyncAdapter);
         }
@@ -4597,9 +5126,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (!callerIsSyncAdapter && !updatedValues.containsKey(Groups.DIRTY)) {
             updatedValues.put(Groups.DIRTY, 1);
         }
-        if (updatedValues.containsKey(Groups.GROUP_VISIBLE)) {
-            mVisibleTouched = true;
-        }
+        final boolean isVisibilityChanging = updatedValues.containsKey(Groups.GROUP_VISIBLE);
 
         // Prepare for account change
         final boolean isAccountNameChanging = updatedValues.containsKey(Groups.ACCOUNT_NAME);
@@ -4645,6 +5172,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 // Finally do the actual update.
                 final int count = db.update(Tables.GROUPS, updatedValues,
                         GroupsColumns.CONCRETE_ID + "=?", mSelectionArgs1);
+                if (count > 0 && isVisibilityChanging) {
+                    mVisibilityChangedGroupIds.add(groupId);
+                }
 
                 if ((count > 0)
                         && !TextUtils.isEmpty(accountName)
@@ -4672,10 +5202,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private int updateSettings(ContentValues values, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
-        final int count = db.update(Tables.SETTINGS, values, selection, selectionArgs);
-        if (values.containsKey(Settings.UNGROUPED_VISIBLE)) {
+        final boolean isAccountChanging = values.containsKey(Settings.ACCOUNT_NAME)
+                || values.containsKey(Settings.ACCOUNT_TYPE)
+                || values.containsKey(Settings.DATA_SET);
+        if (isAccountChanging) {
+            // Settings moving between accounts; not worth tracking.
             mVisibleTouched = true;
+        } else if (values.containsKey(Settings.UNGROUPED_VISIBLE)) {
+            markSettingsVisibilityChanged(selection, selectionArgs);
         }
+        final int count = db.update(Tables.SETTINGS, values, selection, selectionArgs);
         return count;
     }
 
@@ -5079,7 +5615,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         final AbstractContactAggregator aggregator = mAggregator.get();
-        aggregator.invalidateAggregationExceptionCache();
+        aggregator.onAggregationExceptionChanged(rawContactId1, rawContactId2, exceptionType);
         aggregator.markForAggregation(rawContactId1, RawContacts.AGGREGATION_MODE_DEFAULT, true);
         aggregator.markForAggregation(rawContactId2, RawContacts.AGGREGATION_MODE_DEFAULT, true);
 
@@ -5571,9 +6107,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     cursor.close();
                 }
 
-                for (Long contactId : orphanContactIds) {
-                    mAggregator.get().updateAggregateData(mTransactionContext.get(), contactId);
-                }
+                mAggregator.get().updateAggregateData(mTransactionContext.get(),
+                        orphanContactIds);
                 dbHelper.updateAllVisible();
 
                 // Don't bother updating the search index if we're in profile mode - there is no
@@ -5934,7 +6469,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // The expression used in bundleLetterCountExtras() to get count.
         String addressBookIndexerCountExpression = null;
 
+        // The scope of the phonebook bucket counts that matches the query, or -1 if none does.
+        int phonebookBucketCountScope = -1;
+
         final int match = sUriMatcher.match(uri);
+        waitForDeferredAggregation(match, db);
         switch (match) {
             case SYNCSTATE:
             case PROFILE_SYNCSTATE:
@@ -5944,6 +6483,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case CONTACTS: {
                 setTablesAndProjectionMapForContacts(qb, projection);
                 appendLocalDirectoryAndAccountSelectionIfNeeded(qb, directoryId, uri);
+                final boolean visibleOnly = readBooleanQueryParameter(uri,
+                        VISIBLE_CONTACTS_ONLY, false);
+                if (visibleOnly) {
+                    qb.appendWhere(" AND (" + Contacts._ID + " IN "
+                            + Tables.VISIBLE_CONTACTS + ")");
+                }
+                phonebookBucketCountScope = getPhonebookBucketCountScope(uri, selection,
+                        selectionArgs, directoryId, visibleOnly);
                 break;
             }
 
@@ -7309,7 +7856,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (readBooleanQueryParameter(uri, Contacts.EXTRA_ADDRESS_BOOK_INDEX, false)) {
             bundleFastScrollingIndexExtras(cursor, uri, db, qb, selection,
                     selectionArgs, sortOrder, addressBookIndexerCountExpression,
-                    cancellationSignal);
+                    phonebookBucketCountScope, cancellationSignal);
         }
         if (snippetDeferred) {
             cursor = addDeferredSnippetingExtra(cursor);
@@ -7759,19 +8306,28 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     /**
      * Add the "fast scrolling index" bundle, generated by {@link #getFastScrollingIndexExtras},
-     * to a cursor as extras.  It first checks {@link FastScrollingIndexCache} to see if we
-     * already have a cached result.
+     * to a cursor as extras.  Queries over all the contacts of a scope of
+     * {@link Tables#PHONEBOOK_BUCKET_COUNTS} are answered from the counts.  Otherwise it first
+     * checks {@link FastScrollingIndexCache} to see if we already have a cached result.
      */
     private void bundleFastScrollingIndexExtras(Cursor cursor, Uri queryUri,
             final SQLiteDatabase db, SQLiteQueryBuilder qb, String selection,
             String[] selectionArgs, String sortOrder, String countExpression,
-            CancellationSignal cancellationSignal) {
+            int phonebookBucketCountScope, CancellationSignal cancellationSignal) {
 
         if (!(cursor instanceof AbstractCursor)) {
             Log.w(TAG, "Unable to bundle extras.  Cursor is not AbstractCursor.");
             return;
         }
         Bundle b;
+        if (phonebookBucketCountScope >= 0) {
+            b = getFastScrollingIndexExtrasFromCounts(db, phonebookBucketCountScope, sortOrder);
+            if (b != null) {
+                mFastScrollingIndexCountsHitCount++;
+                ((AbstractCursor) cursor).setExtras(b);
+                return;
+            }
+        }
         // Note even though FastScrollingIndexCache is thread-safe, we really need to put the
         // put-get pair in a single synchronized block, so that even if multiple-threads request the
         // same index at the same time (which actually happens on the phone app) we only execute
@@ -7814,6 +8370,92 @@ public class ContactsProvider2 extends AbstractContactsProvider
         ((AbstractCursor) cursor).setExtras(b);
     }
 
+    /**
+     * Returns the scope of {@link Tables#PHONEBOOK_BUCKET_COUNTS} whose contacts are exactly the
+     * ones returned by a {@link #CONTACTS} query, or -1 if there is none.  Only the conditions
+     * the query builder adds itself are taken into account, so any selection rules it out.
+     */
+    private int getPhonebookBucketCountScope(Uri uri, String selection, String[] selectionArgs,
+            long directoryId, boolean visibleOnly) {
+        if (!TextUtils.isEmpty(selection)
+                || (selectionArgs != null && selectionArgs.length > 0)
+                || getQueryParameter(uri, RawContacts.ACCOUNT_NAME) != null
+                || getQueryParameter(uri, WITHOUT_SIM_FLAG) != null) {
+            return -1;
+        }
+        if (directoryId == Directory.DEFAULT && !visibleOnly) {
+            return PhonebookBucketCountsColumns.SCOPE_DEFAULT_DIRECTORY;
+        }
+        if (directoryId == -1 && visibleOnly) {
+            return PhonebookBucketCountsColumns.SCOPE_VISIBLE;
+        }
+        return -1;
+    }
+
+    private static final class PhonebookBucketCountsQuery {
+        public static final String[] COLUMNS = new String[] {
+            PhonebookBucketCountsColumns.PHONEBOOK_BUCKET,
+            PhonebookBucketCountsColumns.PHONEBOOK_LABEL,
+            PhonebookBucketCountsColumns.CONTACT_COUNT,
+        };
+
+        public static final int PHONEBOOK_BUCKET = 0;
+        public static final int PHONEBOOK_LABEL = 1;
+        public static final int CONTACT_COUNT = 2;
+
+        public static final String SELECTION =
+                PhonebookBucketCountsColumns.SCOPE + "=? AND "
+                + PhonebookBucketCountsColumns.ALTERNATIVE + "=? AND "
+                + PhonebookBucketCountsColumns.CONTACT_COUNT + ">0";
+
+        public static final String ORDER_BY =
+                PhonebookBucketCountsColumns.PHONEBOOK_BUCKET + ", "
+                + PhonebookBucketCountsColumns.PHONEBOOK_LABEL;
+    }
+
+    /**
+     * Builds the address book index from the maintained per-bucket counts, in O(buckets).
+     * Returns null if the index cannot be derived from the counts, in which case it has to be
+     * computed by {@link #getFastScrollingIndexExtras}: for a sort order other than the
+     * ascending primary or alternative sort key, when some contacts have no bucket, or when a
+     * bucket has several labels, whose order depends on the collation of the names.
+     */
+    private static Bundle getFastScrollingIndexExtrasFromCounts(SQLiteDatabase db, int scope,
+            String sortOrder) {
+        final int alternative;
+        if (sortOrder == null || TextUtils.equals(sortOrder, Contacts.SORT_KEY_PRIMARY)) {
+            alternative = 0;
+        } else if (TextUtils.equals(sortOrder, Contacts.SORT_KEY_ALTERNATIVE)) {
+            alternative = 1;
+        } else {
+            return null;
+        }
+
+        final Cursor c = db.query(Tables.PHONEBOOK_BUCKET_COUNTS,
+                PhonebookBucketCountsQuery.COLUMNS, PhonebookBucketCountsQuery.SELECTION,
+                new String[] {String.valueOf(scope), String.valueOf(alternative)},
+                null, null, PhonebookBucketCountsQuery.ORDER_BY);
+        try {
+            final int numLabels = c.getCount();
+            final String[] labels = new String[numLabels];
+            final int[] counts = new int[numLabels];
+            int previousBucket = PhonebookBucketCountsColumns.NO_BUCKET;
+            for (int i = 0; i < numLabels; i++) {
+                c.moveToNext();
+                final int bucket = c.getInt(PhonebookBucketCountsQuery.PHONEBOOK_BUCKET);
+                if (bucket == PhonebookBucketCountsColumns.NO_BUCKET || bucket == previousBucket) {
+                    return null;
+                }
+                previousBucket = bucket;
+                labels[i] = c.getString(PhonebookBucketCountsQuery.PHONEBOOK_LABEL);
+                counts[i] = c.getInt(PhonebookBucketCountsQuery.CONTACT_COUNT);
+            }
+            return FastScrollingIndexCache.buildExtraBundle(labels, counts);
+        } finally {
+            c.close();
+        }
+    }
+
     private static final class AddressBookIndexQuery {
         public static final String NAME = "name";
         public static final String BUCKET = "bucket";
@@ -9002,7 +9644,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         switch (match) {
             case CONTACTS_ID_PHOTO: {
                 long contactId = Long.parseLong(uri.getPathSegments().get(1));
-                return openPhotoAssetFile(db, uri, mode,
+                return openPhotoAssetFile(db, uri, mode, PhotoCache.getContactKey(contactId),
                         Data._ID + "=" + Contacts.PHOTO_ID + " AND " +
                                 RawContacts.CONTACT_ID + "=?",
                         new String[] {String.valueOf(contactId)});
@@ -9014,6 +9656,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
                             "Display photos retrieved by contact ID can only be read.");
                 }
                 long contactId = Long.parseLong(uri.getPathSegments().get(1));
+                final Long cachedPhotoFileId = mPhotoCache.getPhotoFileId(contactId);
+                if (cachedPhotoFileId != null) {
+                    return openDisplayPhotoForRead(cachedPhotoFileId);
+                }
+                final long generation = mPhotoCache.getGeneration();
                 Cursor c = db.query(Tables.CONTACTS,
                         new String[] {Contacts.PHOTO_FILE_ID},
                         Contacts._ID + "=?", new String[] {String.valueOf(contactId)},
@@ -9021,6 +9668,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 try {
                     if (c.moveToFirst()) {
                         long photoFileId = c.getLong(0);
+                        mPhotoCache.putPhotoFileId(contactId, generation, photoFileId);
                         return openDisplayPhotoForRead(photoFileId);
                     }
                     // No contact for this ID.
@@ -9085,6 +9733,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                             }
                             long photoId = c.getLong(c.getColumnIndex(Contacts.PHOTO_ID));
                             return openPhotoAssetFile(db, uri, mode,
+                                    PhotoCache.getDataKey(photoId),
                                     Data._ID + "=?", new String[] {String.valueOf(photoId)});
                         } finally {
                             c.close();
@@ -9105,7 +9754,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     }
 
                     long photoId = c.getLong(c.getColumnIndex(Contacts.PHOTO_ID));
-                    return openPhotoAssetFile(db, uri, mode,
+                    return openPhotoAssetFile(db, uri, mode, PhotoCache.getDataKey(photoId),
                             Data._ID + "=?", new String[] {String.valueOf(photoId)});
                 } finally {
                     c.close();
@@ -9159,7 +9808,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case DATA_ID: {
                 long dataId = Long.parseLong(uri.getPathSegments().get(1));
                 long photoMimetypeId = mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
-                return openPhotoAssetFile(db, uri, mode,
+                return openPhotoAssetFile(db, uri, mode, PhotoCache.getDataKey(dataId),
                         Data._ID + "=? AND " + DataColumns.MIMETYPE_ID + "=" + photoMimetypeId,
                         new String[]{String.valueOf(dataId)});
             }
@@ -9167,8 +9816,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case PROFILE_AS_VCARD: {
                 // When opening a contact as file, we pass back contents as a
                 // vCard-encoded stream. We build into a local buffer first,
-                // then pipe into MemoryFile once the exact size is known.
-                final ByteArrayOutputStream localStream = new ByteArrayOutputStream();
+                // then copy into a MemoryFile once the exact size is known.
+                final BufferOutputStream localStream = new BufferOutputStream();
                 outputRawContactsAsVCard(uri, localStream, null, null);
                 return buildAssetFileDescriptor(localStream);
             }
@@ -9176,8 +9825,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case CONTACTS_AS_VCARD: {
                 // When opening a contact as file, we pass back contents as a
                 // vCard-encoded stream. We build into a local buffer first,
-                // then pipe into MemoryFile once the exact size is known.
-                final ByteArrayOutputStream localStream = new ByteArrayOutputStream();
+                // then copy into a MemoryFile once the exact size is known.
+                final BufferOutputStream localStream = new BufferOutputStream();
                 outputRawContactsAsVCard(uri, localStream, null, null);
                 return buildAssetFileDescriptor(localStream);
             }
@@ -9186,6 +9835,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 final String lookupKeys = uri.getPathSegments().get(2);
                 final String[] lookupKeyList = lookupKeys.split(":");
                 final StringBuilder inBuilder = new StringBuilder();
+                final long[] contactIds = new long[lookupKeyList.length];
                 Uri queryUri = Contacts.CONTENT_URI;
 
                 // SQLite has limits on how many parameters can be used
@@ -9198,16 +9848,22 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     // TODO: Figure out what to do if the profile contact is in the list.
                     long contactId = lookupContactIdByLookupKey(db, lookupKey);
                     inBuilder.append(contactId);
+                    contactIds[index] = contactId;
                     index++;
                 }
 
-                inBuilder.append(')');
-                final String selection = Contacts._ID + " IN " + inBuilder.toString();
+                // Many contacts are streamed to a pipe as they are composed, in parallel.
+                final VCardExporter exporter = getVCardExporter();
+                if (exporter.shouldExportInChunks(contactIds.length)) {
+                    return outputContactsAsVCardInChunks(exporter, uri, contactIds);
+                }
 
                 // When opening a contact as file, we pass back contents as a
                 // vCard-encoded stream. We build into a local buffer first,
-                // then pipe into MemoryFile once the exact size is known.
-                final ByteArrayOutputStream localStream = new ByteArrayOutputStream();
+                // then copy into a MemoryFile once the exact size is known.
+                final BufferOutputStream localStream = new BufferOutputStream();
+                inBuilder.append(')');
+                final String selection = Contacts._ID + " IN " + inBuilder.toString();
                 outputRawContactsAsVCard(queryUri, localStream, selection, null);
                 return buildAssetFileDescriptor(localStream);
             }
@@ -9322,20 +9978,45 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return getContext().getContentResolver().openAssetFileDescriptor(corpUri, mode);
     }
 
-    private AssetFileDescriptor openPhotoAssetFile(
-            SQLiteDatabase db, Uri uri, String mode, String selection, String[] selectionArgs)
+    /**
+     * Opens the thumbnail of a photo data row, from the photo cache if it has been read recently.
+     * @param cacheKey The key of the thumbnail in {@link #mPhotoCache}, derived from the ID in
+     *     the URI.
+     */
+    private AssetFileDescriptor openPhotoAssetFile(SQLiteDatabase db, Uri uri, String mode,
+            String cacheKey, String selection, String[] selectionArgs)
             throws FileNotFoundException {
         if (!"r".equals(mode)) {
             throw new FileNotFoundException(
                     mDbHelper.get().exceptionMessage("Mode " + mode + " not supported.", uri));
         }
 
-        String sql = "SELECT " + Photo.PHOTO + " FROM " + Views.DATA + " WHERE " + selection;
+        byte[] thumbnail = mPhotoCache.getThumbnail(cacheKey);
+        if (thumbnail == null) {
+            final long generation = mPhotoCache.getGeneration();
+            String sql = "SELECT " + Photo.PHOTO + " FROM " + Views.DATA + " WHERE " + selection;
+            Cursor c = db.rawQuery(sql, selectionArgs);
+            try {
+                if (!c.moveToFirst()) {
+                    // The contact or data row does not exist.
+                    throw new FileNotFoundException(uri.toString());
+                }
+                thumbnail = c.getBlob(0);
+            } finally {
+                c.close();
+            }
+            if (thumbnail == null) {
+                return null;
+            }
+            mPhotoCache.putThumbnail(cacheKey, generation, thumbnail);
+        }
+
         try {
             return makeAssetFileDescriptor(
-                    DatabaseUtils.blobFileDescriptorForQuery(db, sql, selectionArgs));
-        } catch (SQLiteDoneException e) {
-            // This will happen if the DB query returns no rows (i.e. contact does not exist).
+                    MemoryFileUtils.createDescriptor(thumbnail, thumbnail.length),
+                    thumbnail.length);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create a file descriptor for the photo of " + uri, e);
             throw new FileNotFoundException(uri.toString());
         }
     }
@@ -9383,12 +10064,15 @@ public class ContactsProvider2 extends AbstractContactsProvider
      */
     private AssetFileDescriptor openDisplayPhotoForWrite(
             long rawContactId, long dataId, Uri uri, String mode) {
-
         try {
-            ParcelFileDescriptor[] pipeFds = ParcelFileDescriptor.createPipe();
-            PipeMonitor pipeMonitor = new PipeMonitor(rawContactId, dataId, pipeFds[0]);
-            pipeMonitor.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Object[]) null);
-            return new AssetFileDescriptor(pipeFds[1], 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+            final ParcelFileDescriptor writeFd =
+                    mPhotoIngestionExecutor.ingest(new PipeMonitor(rawContactId, dataId));
+            if (writeFd == null) {
+                // Refuse the write rather than drop the photo once it's written.
+                Log.w(TAG, "Too many photos being processed, refusing to write " + uri);
+                return null;
+            }
+            return new AssetFileDescriptor(writeFd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
         } catch (IOException ioe) {
             Log.e(TAG, "Could not create temp image file in mode " + mode);
             return null;
@@ -9396,106 +10080,75 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     /**
-     * Async task that monitors the given file descriptor (the read end of a pipe) for
-     * the writer finishing.  If the data from the pipe contains a valid image, the image
-     * is either inserted into the given raw contact or updated in the given data row.
+     * Handles the image written to the pipe once the writer is finished.  If the data contains a
+     * valid image, the image is either inserted into the given raw contact or updated in the
+     * given data row.
      */
-    private class PipeMonitor extends AsyncTask<Object, Object, Object> {
-        private final ParcelFileDescriptor mDescriptor;
+    private class PipeMonitor implements PhotoIngestionExecutor.PhotoHandler {
         private final long mRawContactId;
         private final long mDataId;
-        private PipeMonitor(long rawContactId, long dataId, ParcelFileDescriptor descriptor) {
+        private PipeMonitor(long rawContactId, long dataId) {
             mRawContactId = rawContactId;
             mDataId = dataId;
-            mDescriptor = descriptor;
         }
 
         @Override
-        protected Object doInBackground(Object... params) {
-            AutoCloseInputStream is = new AutoCloseInputStream(mDescriptor);
-            try {
-                Bitmap b = BitmapFactory.decodeStream(is);
-                if (b != null) {
-                    waitForAccess(mWriteAccessLatch);
-                    PhotoProcessor processor =
-                            new PhotoProcessor(b, getMaxDisplayPhotoDim(), getMaxThumbnailDim());
-
-                    // Store the compressed photo in the photo store.
-                    PhotoStore photoStore = ContactsContract.isProfileId(mRawContactId)
-                            ? mProfilePhotoStore
-                            : mContactsPhotoStore;
-                    long photoFileId = photoStore.insert(processor);
-
-                    // Depending on whether we already had a data row to attach the photo
-                    // to, do an update or insert.
-                    if (mDataId != 0) {
-                        // Update the data record with the new photo.
-                        ContentValues updateValues = new ContentValues();
-
-                        // Signal that photo processing has already been handled.
-                        updateValues.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
-
-                        if (photoFileId != 0) {
-                            updateValues.put(Photo.PHOTO_FILE_ID, photoFileId);
-                        }
-                        updateValues.put(Photo.PHOTO, processor.getThumbnailPhotoBytes());
-                        update(ContentUris.withAppendedId(Data.CONTENT_URI, mDataId),
-                                updateValues, null, null);
-                    } else {
-                        // Insert a new primary data record with the photo.
-                        ContentValues insertValues = new ContentValues();
+        public void onPhotoWritten(byte[] photoBytes) throws IOException {
+            waitForAccess(mWriteAccessLatch);
+            PhotoProcessor processor = new PhotoProcessor(
+                    photoBytes, getMaxDisplayPhotoDim(), getMaxThumbnailDim());
+
+            // Store the compressed photo in the photo store.
+            PhotoStore photoStore = ContactsContract.isProfileId(mRawContactId)
+                    ? mProfilePhotoStore
+                    : mContactsPhotoStore;
+            long photoFileId = photoStore.insert(processor);
+
+            // Depending on whether we already had a data row to attach the photo
+            // to, do an update or insert.
+            if (mDataId != 0) {
+                // Update the data record with the new photo.
+                ContentValues updateValues = new ContentValues();
+
+                // Signal that photo processing has already been handled.
+                updateValues.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
+
+                if (photoFileId != 0) {
+                    updateValues.put(Photo.PHOTO_FILE_ID, photoFileId);
+                }
+                updateValues.put(Photo.PHOTO, processor.getThumbnailPhotoBytes());
+                update(ContentUris.withAppendedId(Data.CONTENT_URI, mDataId),
+                        updateValues, null, null);
+            } else {
+                // Insert a new primary data record with the photo.
+                ContentValues insertValues = new ContentValues();
 
-                        // Signal that photo processing has already been handled.
-                        insertValues.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
-
-                        insertValues.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
-                        insertValues.put(Data.IS_PRIMARY, 1);
-                        if (photoFileId != 0) {
-                            insertValues.put(Photo.PHOTO_FILE_ID, photoFileId);
-                        }
-                        insertValues.put(Photo.PHOTO, processor.getThumbnailPhotoBytes());
-                        insert(RawContacts.CONTENT_URI.buildUpon()
-                                .appendPath(String.valueOf(mRawContactId))
-                                .appendPath(RawContacts.Data.CONTENT_DIRECTORY).build(),
-                                insertValues);
-                    }
+                // Signal that photo processing has already been handled.
+                insertValues.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
 
+                insertValues.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
+                insertValues.put(Data.IS_PRIMARY, 1);
+                if (photoFileId != 0) {
+                    insertValues.put(Photo.PHOTO_FILE_ID, photoFileId);
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } finally {
-                IoUtils.closeQuietly(is);
+                insertValues.put(Photo.PHOTO, processor.getThumbnailPhotoBytes());
+                insert(RawContacts.CONTENT_URI.buildUpon()
+                        .appendPath(String.valueOf(mRawContactId))
+                        .appendPath(RawContacts.Data.CONTENT_DIRECTORY).build(),
+                        insertValues);
             }
-            return null;
         }
     }
 
     /**
      * Returns an {@link AssetFileDescriptor} backed by the
-     * contents of the given {@link ByteArrayOutputStream}.
+     * contents of the given {@link BufferOutputStream}.  The contents are copied straight into
+     * shared memory, so no thread is needed to feed the caller.
      */
-    private AssetFileDescriptor buildAssetFileDescriptor(ByteArrayOutputStream stream) {
+    private AssetFileDescriptor buildAssetFileDescriptor(BufferOutputStream stream) {
         try {
             stream.flush();
-
-            final ParcelFileDescriptor[] fds = ParcelFileDescriptor.createPipe();
-            final FileDescriptor outFd = fds[1].getFileDescriptor();
-
-            AsyncTask<Object, Object, Object> task = new AsyncTask<Object, Object, Object>() {
-                @Override
-                protected Object doInBackground(Object... params) {
-                    try (FileOutputStream fout = new FileOutputStream(outFd)) {
-                        fout.write(stream.toByteArray());
-                    } catch (IOException|RuntimeException e) {
-                        Log.w(TAG, "Failure closing pipe", e);
-                    }
-                    IoUtils.closeQuietly(outFd);
-                    return null;
-                }
-            };
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Object[])null);
-
-            return makeAssetFileDescriptor(fds[0]);
+            return makeAssetFileDescriptor(stream.toParcelFileDescriptor(), stream.size());
         } catch (IOException e) {
             Log.w(TAG, "Problem writing stream into an ParcelFileDescriptor: " + e.toString());
             return null;
@@ -9519,11 +10172,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             Uri uri, OutputStream stream, String selection, String[] selectionArgs) {
 
         final Context context = this.getContext();
-        int vcardconfig = VCardConfig.VCARD_TYPE_DEFAULT;
-        if(uri.getBooleanQueryParameter(Contacts.QUERY_PARAMETER_VCARD_NO_PHOTO, false)) {
-            vcardconfig |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
-        }
-        final VCardComposer composer = new VCardComposer(context, vcardconfig, false);
+        final VCardComposer composer = new VCardComposer(context, getVCardConfig(uri), false);
         Writer writer = null;
         final Uri rawContactsUri;
         if (mapsToProfileDb(uri)) {
@@ -9559,6 +10208,37 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    /**
+     * Returns an {@link AssetFileDescriptor} the given contacts are written to in the vCard
+     * format, composing them in chunks in parallel, or null if the pipe can't be created.
+     */
+    private AssetFileDescriptor outputContactsAsVCardInChunks(
+            VCardExporter exporter, Uri uri, long[] contactIds) {
+        try {
+            return makeAssetFileDescriptor(exporter.exportToPipe(Contacts.CONTENT_URI,
+                    contactIds, getVCardConfig(uri), RawContactsEntity.CONTENT_URI));
+        } catch (IOException e) {
+            Log.e(TAG, "IOException: " + e);
+            return null;
+        }
+    }
+
+    private static int getVCardConfig(Uri uri) {
+        int vcardconfig = VCardConfig.VCARD_TYPE_DEFAULT;
+        if (uri.getBooleanQueryParameter(Contacts.QUERY_PARAMETER_VCARD_NO_PHOTO, false)) {
+            vcardconfig |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
+        }
+        return vcardconfig;
+    }
+
+    private synchronized VCardExporter getVCardExporter() {
+        if (mVCardExporter == null) {
+            mVCardExporter = new VCardExporter(getContext(), VCARD_EXPORT_THREADS,
+                    VCARD_EXPORT_CHUNK_SIZE, VCARD_EXPORT_MAX_PENDING_CHUNKS);
+        }
+        return mVCardExporter;
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
@@ -10003,15 +10683,28 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return version < PROPERTY_AGGREGATION_ALGORITHM_VERSION;
     }
 
+    /**
+     * Re-aggregates the next {@link #AGGREGATION_UPGRADE_CHUNK_SIZE} visible raw contacts, in
+     * raw contact ID order, and schedules itself again until all of them have been re-aggregated.
+     * Raw contacts already flagged as needing aggregation are re-aggregated too, visible or not.
+     * Each chunk is committed on its own together with the ID of the last raw contact it covered,
+     * so writers only wait for one chunk at a time and an interrupted upgrade resumes where it
+     * left off.
+     */
     private void upgradeAggregationAlgorithmInBackground() {
-        Log.i(TAG, "Upgrading aggregation algorithm");
-
-        final long start = SystemClock.elapsedRealtime();
+        if (!mAggregationUpgradeInProgress) {
+            Log.i(TAG, "Upgrading aggregation algorithm");
+            mAggregationUpgradeInProgress = true;
+        } else if (mProviderStatus != STATUS_UPGRADING) {
+            Log.i(TAG, "Resuming aggregation algorithm upgrade");
+        }
         setProviderStatus(STATUS_UPGRADING);
 
-        // Re-aggregate all visible raw contacts.
+        final long start = SystemClock.elapsedRealtime();
+        boolean done = true;
         try {
-            int count = 0;
+            long cursor = 0;
+            long lastRawContactId = -1;
             SQLiteDatabase db = null;
             boolean success = false;
             boolean transactionStarted = false;
@@ -10019,17 +10712,25 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 // Re-aggregation is only for the contacts DB.
                 switchToContactMode();
                 db = mContactsHelper.getWritableDatabase();
+                cursor = Long.parseLong(
+                        mContactsHelper.getProperty(DbProperties.AGGREGATION_UPGRADE_CURSOR, "0"));
 
                 // Start the actual process.
                 db.beginTransaction();
                 transactionStarted = true;
 
-                count = mContactAggregator.markAllVisibleForAggregation(db);
-                mContactAggregator.aggregateInTransaction(mTransactionContext.get(), db);
-
-                updateSearchIndexInTransaction();
-
-                updateAggregationAlgorithmVersion();
+                lastRawContactId = mContactAggregator.markVisibleForAggregation(db, cursor,
+                        mAggregationUpgradeChunkSize);
+                if (lastRawContactId != -1) {
+                    mContactAggregator.aggregateInTransaction(mTransactionContext.get(), db);
+                    updateSearchIndexInTransaction();
+                    mContactsHelper.setProperty(DbProperties.AGGREGATION_UPGRADE_CURSOR,
+                            String.valueOf(lastRawContactId));
+                    done = false;
+                } else {
+                    mContactsHelper.setProperty(DbProperties.AGGREGATION_UPGRADE_CURSOR, "0");
+                    updateAggregationAlgorithmVersion();
+                }
 
                 db.setTransactionSuccessful();
 
@@ -10039,12 +10740,18 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 if (transactionStarted) {
                     db.endTransaction();
                 }
+                if (!success) {
+                    mContactAggregator.clearPendingAggregations();
+                }
                 final long end = SystemClock.elapsedRealtime();
-                Log.i(TAG, "Aggregation algorithm upgraded for " + count + " raw contacts"
+                Log.i(TAG, "Aggregation algorithm upgrade "
+                        + (done ? "finished" : "re-aggregated raw contacts "
+                                + (cursor + 1) + ".." + lastRawContactId)
                         + (success ? (" in " + (end - start) + "ms") : " failed"));
             }
         } catch (RuntimeException e) {
             Log.e(TAG, "Failed to upgrade aggregation algorithm; continuing anyway.", e);
+            done = true;
 
             // Got some exception during re-aggregation.  Re-aggregation isn't that important, so
             // just bump the aggregation algorithm version and let the provider start normally.
@@ -10052,6 +10759,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 final SQLiteDatabase db =  mContactsHelper.getWritableDatabase();
                 db.beginTransaction();
                 try {
+                    mContactsHelper.setProperty(DbProperties.AGGREGATION_UPGRADE_CURSOR, "0");
                     updateAggregationAlgorithmVersion();
                     db.setTransactionSuccessful();
                 } finally {
@@ -10064,7 +10772,21 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 Log.e(TAG, "Failed to bump aggregation algorithm version; continuing anyway.", e2);
             }
         } finally { // Need one more finally because endTransaction() may fail.
-            setProviderStatus(STATUS_NORMAL);
+            if (done) {
+                mAggregationUpgradeInProgress = false;
+                setProviderStatus(STATUS_NORMAL);
+
+                // Locale changes are ignored while upgrading, so double check.
+                if (!mCurrentLocales.isCurrent()) {
+                    scheduleBackgroundTask(BACKGROUND_TASK_CHANGE_LOCALE);
+                }
+            } else {
+                // Let clients know that the upgrade is making progress, and queue the next chunk
+                // behind any other pending background task.
+                getContext().getContentResolver().notifyChange(
+                        ProviderStatus.CONTENT_URI, null, false);
+                scheduleBackgroundTask(BACKGROUND_TASK_UPGRADE_AGGREGATION_ALGORITHM);
+            }
         }
     }
 
@@ -10427,13 +11149,32 @@ public class ContactsProvider2 extends AbstractContactsProvider
             pw.print("Contact aggregator type: " + mContactAggregator.getClass() + "\n");
         }
         pw.println();
+        pw.print("Deferred aggregation: " + (mDeferAggregation ? "enabled" : "disabled")
+                + ", pending=" + mDeferredAggregations.size() + "\n");
+        pw.println();
         pw.print("FastScrollingIndex stats:\n");
-        pw.printf("  request=%d  miss=%d (%d%%)  avg time=%dms\n",
+        pw.printf("  request=%d  miss=%d (%d%%)  avg time=%dms  from counts=%d\n",
                 mFastScrollingIndexCacheRequestCount,
                 mFastScrollingIndexCacheMissCount,
                 safeDiv(mFastScrollingIndexCacheMissCount * 100,
                         mFastScrollingIndexCacheRequestCount),
-                safeDiv(mTotalTimeFastScrollingIndexGenerate, mFastScrollingIndexCacheMissCount));
+                safeDiv(mTotalTimeFastScrollingIndexGenerate, mFastScrollingIndexCacheMissCount),
+                mFastScrollingIndexCountsHitCount);
+        pw.println();
+        pw.print("Photo cache stats:\n");
+        mPhotoCache.dump(pw);
+        pw.println();
+        pw.print("Photo ingestion stats:\n");
+        mPhotoIngestionExecutor.dump(pw);
+        pw.println();
+        pw.print("vCard export stats:\n");
+        final VCardExporter vCardExporter;
+        synchronized (this) {
+            vCardExporter = mVCardExporter;
+        }
+        if (vCardExporter != null) {
+            vCardExporter.dump(pw);
+        }
         pw.println();
         pw.println();
 
@@ -72,6 +72,25 @@ public class DbModifierWithNotification implements DatabaseModifier {
     private final boolean mIsCallsTable;
     private final VoicemailPermissions mVoicemailPermissions;
 
+    private boolean mDeferCallLogChange;
+    private boolean mCallLogChanged;
+    private final List<VoicemailChange> mDeferredVoicemailChanges =
+            new ArrayList<VoicemailChange>();
+    private final List<Uri> mDeferredVoicemailsMarkedRead = new ArrayList<Uri>();
+
+    /** A voicemail change notification deferred until {@link #sendDeferredCallLogChange()}. */
+    private static class VoicemailChange {
+        final Uri mNotificationUri;
+        final Set<String> mModifiedPackages;
+        final String[] mIntentActions;
+
+        VoicemailChange(Uri notificationUri, Set<String> modifiedPackages,
+                String[] intentActions) {
+            mNotificationUri = notificationUri;
+            mModifiedPackages = modifiedPackages;
+            mIntentActions = intentActions;
+        }
+    }
 
     public DbModifierWithNotification(String tableName, SQLiteDatabase db, Context context) {
         this(tableName, db, null, context);
@@ -82,7 +101,7 @@ public class DbModifierWithNotification implements DatabaseModifier {
         this(tableName, null, insertHelper, context);
     }
 
-    private DbModifierWithNotification(String tableName, SQLiteDatabase db,
+    public DbModifierWithNotification(String tableName, SQLiteDatabase db,
             InsertHelper insertHelper, Context context) {
         mTableName = tableName;
         mDb = db;
@@ -128,7 +147,44 @@ public class DbModifierWithNotification implements DatabaseModifier {
         return rowId;
     }
 
+    /**
+     * Defers the call log change notification and broadcast until
+     * {@link #sendDeferredCallLogChange()}, so that a batch of operations sends them once.  The
+     * voicemail notifications and broadcasts are deferred as well, so that none goes out before
+     * the batch commits.
+     */
+    public void deferCallLogChange() {
+        mDeferCallLogChange = true;
+    }
+
+    /**
+     * Sends the call log change notification and broadcast deferred since
+     * {@link #deferCallLogChange()}, if the call log has changed in the meantime, and the
+     * voicemail notifications and broadcasts deferred along with it, in order.  Must only be
+     * called once the changes are committed.
+     */
+    public void sendDeferredCallLogChange() {
+        mDeferCallLogChange = false;
+        for (VoicemailChange change : mDeferredVoicemailChanges) {
+            notifyVoicemailChange(change.mNotificationUri, change.mModifiedPackages,
+                    change.mIntentActions);
+        }
+        mDeferredVoicemailChanges.clear();
+        for (Uri uri : mDeferredVoicemailsMarkedRead) {
+            notifyVoicemailMarkedRead(uri);
+        }
+        mDeferredVoicemailsMarkedRead.clear();
+        if (mCallLogChanged) {
+            mCallLogChanged = false;
+            notifyCallLogChange();
+        }
+    }
+
     private void notifyCallLogChange() {
+        if (mDeferCallLogChange) {
+            mCallLogChanged = true;
+            return;
+        }
         mContext.getContentResolver().notifyChange(Calls.CONTENT_URI, null, false);
 
         Intent intent = new Intent("android.intent.action.CALL_LOG_CHANGE");
@@ -189,16 +245,24 @@ public class DbModifierWithNotification implements DatabaseModifier {
             notifyCallLogChange();
         }
         if (hasMarkedRead) {
-            // A "New" voicemail has been marked as read by the server. This voicemail is no longer
-            // new but the content consumer might still think it is. ACTION_NEW_VOICEMAIL should
-            // trigger a rescan of new voicemails.
-            mContext.sendBroadcast(
-                    new Intent(VoicemailContract.ACTION_NEW_VOICEMAIL, uri),
-                    READ_VOICEMAIL);
+            notifyVoicemailMarkedRead(uri);
         }
         return count;
     }
 
+    private void notifyVoicemailMarkedRead(Uri uri) {
+        if (mDeferCallLogChange) {
+            mDeferredVoicemailsMarkedRead.add(uri);
+            return;
+        }
+        // A "New" voicemail has been marked as read by the server. This voicemail is no longer
+        // new but the content consumer might still think it is. ACTION_NEW_VOICEMAIL should
+        // trigger a rescan of new voicemails.
+        mContext.sendBroadcast(
+                new Intent(VoicemailContract.ACTION_NEW_VOICEMAIL, uri),
+                READ_VOICEMAIL);
+    }
+
     @Override
     public int delete(String table, String whereClause, String[] whereArgs) {
         Set<String> packagesModified = getModifiedPackages(whereClause, whereArgs);
@@ -283,6 +347,11 @@ public class DbModifierWithNotification implements DatabaseModifier {
 
     private void notifyVoicemailChange(Uri notificationUri, Set<String> modifiedPackages,
             String... intentActions) {
+        if (mDeferCallLogChange) {
+            mDeferredVoicemailChanges.add(
+                    new VoicemailChange(notificationUri, modifiedPackages, intentActions));
+            return;
+        }
         // Notify the observers.
         // Must be done only once, even if there are multiple broadcast intents.
         mContext.getContentResolver().notifyChange(notificationUri, null, true);
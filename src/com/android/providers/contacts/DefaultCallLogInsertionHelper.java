@@ -21,6 +21,7 @@ import android.content.Context;
 import android.provider.CallLog.Calls;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.i18n.phonenumbers.NumberParseException;
 import com.android.i18n.phonenumbers.PhoneNumberUtil;
@@ -39,16 +40,36 @@ import java.util.Set;
  * It checks for legacy unknown numbers and updates number presentation.
  * <p>
  * It uses {@link PhoneNumberOfflineGeocoder} to compute the geocoded location of a phone number.
+ * The geocoded location and normalized number of the recently inserted numbers are cached, since
+ * parsing and geocoding a number is the most expensive part of an insertion, and the same numbers
+ * tend to come back.
  */
 /*package*/ class DefaultCallLogInsertionHelper implements CallLogInsertionHelper {
     private static DefaultCallLogInsertionHelper sInstance;
 
     private static final Set<String> LEGACY_UNKNOWN_NUMBERS = Sets.newHashSet("-1", "-2", "-3");
 
+    /** Maximum number of numbers whose computed values are cached. */
+    private static final int NUMBER_CACHE_SIZE = 128;
+
+    /** Values computed for a number in a country. */
+    private static final class ComputedNumber {
+        final String geocodedLocation;
+        final String normalizedNumber;
+
+        ComputedNumber(String geocodedLocation, String normalizedNumber) {
+            this.geocodedLocation = geocodedLocation;
+            this.normalizedNumber = normalizedNumber;
+        }
+    }
+
     private final CountryMonitor mCountryMonitor;
     private PhoneNumberUtil mPhoneNumberUtil;
     private PhoneNumberOfflineGeocoder mPhoneNumberOfflineGeocoder;
     private final Locale mLocale;
+    // Keyed by country ISO and number.  The locale never changes for an instance.
+    private final LruCache<String, ComputedNumber> mNumberCache =
+            new LruCache<String, ComputedNumber>(NUMBER_CACHE_SIZE);
 
     public static synchronized DefaultCallLogInsertionHelper getInstance(Context context) {
         if (sInstance == null) {
@@ -67,11 +88,11 @@ import java.util.Set;
         // Insert the current country code, so we know the country the number belongs to.
         String countryIso = getCurrentCountryIso();
         values.put(Calls.COUNTRY_ISO, countryIso);
+        final String number = values.getAsString(Calls.NUMBER);
+        final ComputedNumber computed = getComputedNumber(number, countryIso);
         // Insert the geocoded location, so that we do not need to compute it on the fly.
-        values.put(Calls.GEOCODED_LOCATION,
-                getGeocodedLocationFor(values.getAsString(Calls.NUMBER), countryIso));
+        values.put(Calls.GEOCODED_LOCATION, computed.geocodedLocation);
 
-        final String number = values.getAsString(Calls.NUMBER);
         if (LEGACY_UNKNOWN_NUMBERS.contains(number)) {
             values.put(Calls.NUMBER_PRESENTATION, Calls.PRESENTATION_UNKNOWN);
             values.put(Calls.NUMBER, "");
@@ -79,14 +100,29 @@ import java.util.Set;
 
         // Check for a normalized number; if not present attempt to determine one now.
         if (!values.containsKey(Calls.CACHED_NORMALIZED_NUMBER) &&
-                !TextUtils.isEmpty(number)) {
-            String normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-            if (!TextUtils.isEmpty(normalizedNumber)) {
-                values.put(Calls.CACHED_NORMALIZED_NUMBER, normalizedNumber);
-            }
+                !TextUtils.isEmpty(computed.normalizedNumber)) {
+            values.put(Calls.CACHED_NORMALIZED_NUMBER, computed.normalizedNumber);
         }
     }
 
+    /**
+     * Returns the geocoded location and normalized number of the number, from the cache if it
+     * has been inserted recently.
+     */
+    private ComputedNumber getComputedNumber(String number, String countryIso) {
+        if (TextUtils.isEmpty(number)) {
+            return new ComputedNumber(computeGeocodedLocation(number, countryIso), null);
+        }
+        final String key = countryIso + "|" + number;
+        ComputedNumber computed = mNumberCache.get(key);
+        if (computed == null) {
+            computed = new ComputedNumber(computeGeocodedLocation(number, countryIso),
+                    PhoneNumberUtils.formatNumberToE164(number, countryIso));
+            mNumberCache.put(key, computed);
+        }
+        return computed;
+    }
+
     private String getCurrentCountryIso() {
         return mCountryMonitor.getCountryIso();
     }
@@ -115,6 +151,10 @@ import java.util.Set;
 
     @Override
     public String getGeocodedLocationFor(String number, String countryIso) {
+        return getComputedNumber(number, countryIso).geocodedLocation;
+    }
+
+    private String computeGeocodedLocation(String number, String countryIso) {
         PhoneNumber structuredPhoneNumber = parsePhoneNumber(number, countryIso);
         if (structuredPhoneNumber != null) {
             return getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
@@ -17,99 +17,150 @@
 package com.android.providers.contacts;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.StrictMode;
 import android.preference.PreferenceManager;
 import android.provider.ContactsContract.Contacts;
-import android.text.TextUtils;
+import android.util.AtomicFile;
 import android.util.Log;
 
-import com.google.android.collect.Maps;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executor;
 
 /**
  * Cache for the "fast scrolling index".
  *
  * It's a cache from "keys" and "bundles" (see {@link #mCache} for what they are).  The cache
- * content is also persisted in the shared preferences, so it'll survive even if the process
- * is killed or the device reboots.
+ * content is also persisted in a file, so it'll survive even if the process is killed or the
+ * device reboots.
  *
  * All the content will be invalidated when the provider detects an operation that could potentially
  * change the index.
  *
- * There's no maximum number for cached entries.  It's okay because we store keys and values in
- * a compact form in both the in-memory cache and the preferences.  Also the query in question
- * (the query for contact lists) has relatively low number of variations.
+ * The number of entries is bounded: keys include the selection and its arguments, so there is no
+ * limit to the number of variations, and the least recently used entries are dropped.
+ *
+ * The file is only read when the cache is first used, and is written back on a background thread,
+ * so the queries don't wait for the disk.  Invalidating the cache deletes the file right away, so
+ * that an index which is no longer valid is never restored after the process is killed.
  *
  * This class is thread-safe.
  */
 public class FastScrollingIndexCache {
     private static final String TAG = "LetterCountCache";
 
+    /**
+     * Key of the cache content in the shared preferences, where it used to be stored.
+     */
+    private static final String LEGACY_PREFERENCE_KEY = "LetterCountCache";
+
     @VisibleForTesting
-    static final String PREFERENCE_KEY = "LetterCountCache";
+    static final String FILE_NAME = "fast_scrolling_index_cache";
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 32;
+
+    private static final int FILE_MAGIC = 0x46534943; // "FSIC"
+    private static final int FILE_VERSION = 1;
 
     /**
      * Separator used for in-memory structure.
      */
     private static final String SEPARATOR = "\u0001";
-    private static final Pattern SEPARATOR_PATTERN = Pattern.compile(SEPARATOR);
 
     /**
-     * Separator used for serializing values for preferences.
+     * Maximum length of a string in the file, in modified UTF-8.  See
+     * {@link DataOutputStream#writeUTF}.
      */
-    private static final String SAVE_SEPARATOR = "\u0002";
-    private static final Pattern SAVE_SEPARATOR_PATTERN = Pattern.compile(SAVE_SEPARATOR);
+    private static final int MAX_UTF_LENGTH = 65535;
 
-    private final SharedPreferences mPrefs;
+    private final AtomicFile mFile;
+    private final Executor mExecutor;
 
-    private boolean mPreferenceLoaded;
+    /**
+     * Held while the file is written or deleted, so that a write of content taken before an
+     * invalidation can't complete after the invalidation deleted the file.  Taken before
+     * {@link #mCache}.
+     */
+    private final Object mFileLock = new Object();
+
+    private boolean mLoaded;
+    private boolean mSaveScheduled;
 
     /**
-     * In-memory cache.
+     * In-memory cache, in the least recently used order.
      *
      * It's essentially a map from keys, which are query parameters passed to {@link #get}, to
      * values, which are {@link Bundle}s that will be appended to a {@link Cursor} as extras.
      *
-     * However, in order to save memory, we store stringified keys and values in the cache.
-     * Key strings are generated by {@link #buildCacheKey} and values are generated by
-     * {@link #buildCacheValue}.
-     *
-     * We store those strings joined with {@link #SAVE_SEPARATOR} as the separator when saving
-     * to shared preferences.
+     * In order to save memory, keys are stringified by {@link #buildCacheKey} and only the titles
+     * and counts of the bundles are stored.
      */
-    private final Map<String, String> mCache = Maps.newHashMap();
+    private final LinkedHashMap<String, Entry> mCache =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    @VisibleForTesting
+    static final class Entry {
+        final String[] titles;
+        final int[] counts;
+
+        Entry(String[] titles, int[] counts) {
+            this.titles = titles;
+            this.counts = counts;
+        }
+    }
 
     private static FastScrollingIndexCache sSingleton;
 
-    public static FastScrollingIndexCache getInstance(Context context) {
+    public static FastScrollingIndexCache getInstance(final Context context) {
         if (sSingleton == null) {
-            final StrictMode.ThreadPolicy old = StrictMode.allowThreadDiskReads();
-            try {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                sSingleton = new FastScrollingIndexCache(prefs);
-            } finally {
-                StrictMode.setThreadPolicy(old);
-            }
+            sSingleton = new FastScrollingIndexCache(
+                    new File(context.getCacheDir(), FILE_NAME), AsyncTask.SERIAL_EXECUTOR);
+
+            // Drop the copy that older versions kept in the shared preferences.
+            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PreferenceManager.getDefaultSharedPreferences(context).edit()
+                            .remove(LEGACY_PREFERENCE_KEY).apply();
+                }
+            });
         }
         return sSingleton;
     }
 
+    /**
+     * Creates a cache persisted in {@code file}, written back by {@code executor}.
+     */
     @VisibleForTesting
-    static synchronized FastScrollingIndexCache getInstanceForTest(
-            SharedPreferences prefs) {
-        sSingleton = new FastScrollingIndexCache(prefs);
+    static synchronized FastScrollingIndexCache getInstanceForTest(File file, Executor executor) {
+        sSingleton = new FastScrollingIndexCache(file, executor);
         return sSingleton;
     }
 
-    private FastScrollingIndexCache(SharedPreferences prefs) {
-        mPrefs = prefs;
+    private FastScrollingIndexCache(File file, Executor executor) {
+        mFile = new AtomicFile(file);
+        mExecutor = executor;
     }
 
     /**
@@ -145,22 +196,6 @@ public class FastScrollingIndexCache {
         return sb.toString();
     }
 
-    @VisibleForTesting
-    static String buildCacheValue(String[] titles, int[] counts) {
-        final StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < titles.length; i++) {
-            if (i > 0) {
-                appendIfNotNull(sb, SEPARATOR);
-            }
-            appendIfNotNull(sb, titles[i]);
-            appendIfNotNull(sb, SEPARATOR);
-            appendIfNotNull(sb, Integer.toString(counts[i]));
-        }
-
-        return sb.toString();
-    }
-
     /**
      * Creates and returns a {@link Bundle} that is appended to a {@link Cursor} as extras.
      */
@@ -171,61 +206,25 @@ public class FastScrollingIndexCache {
         return bundle;
     }
 
-    @VisibleForTesting
-    static Bundle buildExtraBundleFromValue(String value) {
-        final String[] values;
-        if (TextUtils.isEmpty(value)) {
-            values = new String[0];
-        } else {
-            values = SEPARATOR_PATTERN.split(value);
-        }
-
-        if ((values.length) % 2 != 0) {
-            return null; // malformed
-        }
-
-        try {
-            final int numTitles = values.length / 2;
-            final String[] titles = new String[numTitles];
-            final int[] counts = new int[numTitles];
-
-            for (int i = 0; i < numTitles; i++) {
-                titles[i] = values[i * 2];
-                counts[i] = Integer.parseInt(values[i * 2 + 1]);
-            }
-
-            return buildExtraBundle(titles, counts);
-        } catch (RuntimeException e) {
-            Log.w(TAG, "Failed to parse cached value", e);
-            return null; // malformed
-        }
-    }
-
     public Bundle get(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
             String countExpression) {
         synchronized (mCache) {
             ensureLoaded();
             final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
                     countExpression);
-            final String value = mCache.get(key);
-            if (value == null) {
+            final Entry entry = mCache.get(key);
+            if (entry == null) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     Log.v(TAG, "Miss: " + key);
                 }
                 return null;
             }
 
-            final Bundle b = buildExtraBundleFromValue(value);
-            if (b == null) {
-                // Value was malformed for whatever reason.
-                mCache.remove(key);
-                save();
-            } else {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "Hit:  " + key);
-                }
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Hit:  " + key);
             }
-            return b;
+            // The caller owns the bundle, so hand out copies of the arrays.
+            return buildExtraBundle(entry.titles.clone(), entry.counts.clone());
         }
     }
 
@@ -235,14 +234,18 @@ public class FastScrollingIndexCache {
      */
     public void put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
             String countExpression, Bundle bundle) {
+        final String[] titles = bundle.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
+        final int[] counts = bundle.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS);
+        if (titles == null || counts == null || titles.length != counts.length) {
+            Log.w(TAG, "Not caching malformed bundle");
+            return;
+        }
         synchronized (mCache) {
             ensureLoaded();
             final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
                     countExpression);
-            mCache.put(key, buildCacheValue(
-                    bundle.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
-                    bundle.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS)));
-            save();
+            mCache.put(key, new Entry(titles.clone(), counts.clone()));
+            scheduleSave();
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.v(TAG, "Put: " + key);
@@ -251,10 +254,13 @@ public class FastScrollingIndexCache {
     }
 
     public void invalidate() {
-        synchronized (mCache) {
-            mPrefs.edit().remove(PREFERENCE_KEY).commit();
-            mCache.clear();
-            mPreferenceLoaded = true;
+        synchronized (mFileLock) {
+            synchronized (mCache) {
+                // Nothing loaded from the file will ever be valid again.
+                mLoaded = true;
+                mCache.clear();
+            }
+            mFile.delete();
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.v(TAG, "Invalidated");
@@ -263,64 +269,189 @@ public class FastScrollingIndexCache {
     }
 
     /**
-     * Store the cache to the preferences.
-     *
-     * We concatenate all key+value pairs into one string and save it.
+     * Writes the cache back to the file on the executor.  Several changes made before the write
+     * runs are written at once.
      */
+    private void scheduleSave() {
+        if (mSaveScheduled) {
+            return;
+        }
+        mSaveScheduled = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
     private void save() {
-        final StringBuilder sb = new StringBuilder();
-        for (String key : mCache.keySet()) {
-            if (sb.length() > 0) {
-                appendIfNotNull(sb, SAVE_SEPARATOR);
+        synchronized (mFileLock) {
+            final Map<String, Entry> snapshot;
+            synchronized (mCache) {
+                mSaveScheduled = false;
+                snapshot = new LinkedHashMap<String, Entry>(mCache);
+            }
+
+            if (snapshot.isEmpty()) {
+                mFile.delete();
+                return;
+            }
+
+            FileOutputStream out = null;
+            try {
+                out = mFile.startWrite();
+                writeEntries(new BufferedOutputStream(out), snapshot);
+                mFile.finishWrite(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save", e);
+                if (out != null) {
+                    mFile.failWrite(out);
+                }
+                // The previous content may not match the cache anymore.
+                mFile.delete();
             }
-            appendIfNotNull(sb, key);
-            appendIfNotNull(sb, SAVE_SEPARATOR);
-            appendIfNotNull(sb, mCache.get(key));
         }
-        mPrefs.edit().putString(PREFERENCE_KEY, sb.toString()).apply();
     }
 
     private void ensureLoaded() {
-        if (mPreferenceLoaded) return;
+        if (mLoaded) return;
 
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
             Log.v(TAG, "Loading...");
         }
 
         // Even when we fail to load, don't retry loading again.
-        mPreferenceLoaded = true;
+        mLoaded = true;
 
-        boolean successfullyLoaded = false;
+        InputStream in = null;
         try {
-            final String savedValue = mPrefs.getString(PREFERENCE_KEY, null);
+            in = new BufferedInputStream(mFile.openRead());
+            readEntries(in, mCache);
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+        } catch (IOException e) {
+            onLoadFailed(e);
+        } catch (RuntimeException e) {
+            // But don't crash apps!
+            onLoadFailed(e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
 
-            if (!TextUtils.isEmpty(savedValue)) {
+    private void onLoadFailed(Exception e) {
+        Log.w(TAG, "Failed to load", e);
+        // Start over with an empty cache, and drop the malformed file.
+        mCache.clear();
+        scheduleSave();
+    }
 
-                final String[] keysAndValues = SAVE_SEPARATOR_PATTERN.split(savedValue);
+    /**
+     * Writes the entries in the binary format read by {@link #readEntries}, from the least
+     * recently used to the most recently used one.  Entries with a key or a title too long for
+     * the format are skipped.
+     */
+    @VisibleForTesting
+    static void writeEntries(OutputStream os, Map<String, Entry> entries) throws IOException {
+        int count = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (isWritable(e.getKey(), e.getValue())) {
+                count++;
+            }
+        }
 
-                if ((keysAndValues.length % 2) != 0) {
-                    return; // malformed
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(count);
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            final Entry entry = e.getValue();
+            if (!isWritable(e.getKey(), entry)) {
+                continue;
+            }
+            out.writeUTF(e.getKey());
+            out.writeInt(entry.titles.length);
+            for (int i = 0; i < entry.titles.length; i++) {
+                final String title = entry.titles[i];
+                out.writeBoolean(title != null);
+                if (title != null) {
+                    out.writeUTF(title);
                 }
+                out.writeInt(entry.counts[i]);
+            }
+        }
+        out.flush();
+    }
 
-                for (int i = 1; i < keysAndValues.length; i += 2) {
-                    final String key = keysAndValues[i - 1];
-                    final String value = keysAndValues[i];
+    private static boolean isWritable(String key, Entry entry) {
+        if (getUtfLength(key) > MAX_UTF_LENGTH) {
+            return false;
+        }
+        for (String title : entry.titles) {
+            if (title != null && getUtfLength(title) > MAX_UTF_LENGTH) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Loaded: " + key);
-                    }
+    /**
+     * Returns the length of {@code s} in modified UTF-8, as written by
+     * {@link DataOutputStream#writeUTF}.
+     */
+    private static int getUtfLength(String s) {
+        final int length = s.length();
+        if (length <= MAX_UTF_LENGTH / 3) {
+            // Each character takes at most 3 bytes.
+            return length;
+        }
+        int utfLength = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                utfLength++;
+            } else if (c < 0x800) {
+                utfLength += 2;
+            } else {
+                utfLength += 3;
+            }
+        }
+        return utfLength;
+    }
 
-                    mCache.put(key, value);
-                }
+    /**
+     * Reads entries written by {@link #writeEntries} into {@code entries}.  Throws an
+     * {@link IOException} if the content is malformed.
+     */
+    @VisibleForTesting
+    static void readEntries(InputStream is, Map<String, Entry> entries) throws IOException {
+        final DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+            throw new IOException("Unknown format");
+        }
+        final int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Bad entry count: " + size);
+        }
+        for (int n = 0; n < size; n++) {
+            final String key = in.readUTF();
+            final int length = in.readInt();
+            if (length < 0 || length > Character.MAX_VALUE) {
+                throw new IOException("Bad title count: " + length);
             }
-            successfullyLoaded = true;
-        } catch (RuntimeException e) {
-            Log.w(TAG, "Failed to load from preferences", e);
-            // But don't crash apps!
-        } finally {
-            if (!successfullyLoaded) {
-                invalidate();
+            final String[] titles = new String[length];
+            final int[] counts = new int[length];
+            for (int i = 0; i < length; i++) {
+                titles[i] = in.readBoolean() ? in.readUTF() : null;
+                counts[i] = in.readInt();
             }
+            entries.put(key, new Entry(titles, counts));
         }
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory cache of the photos recently served by
+ * {@link ContactsProvider2#openAssetFile}, so that scrolling back and forth through a list does
+ * not read the same thumbnails from the database again.
+ * <p>
+ * Two things are cached: the thumbnail bytes, in an LRU bounded by their total size, and the
+ * display photo file ID of contacts, in an LRU bounded by the number of entries.  The file
+ * descriptors handed out for display photos cannot be reused (they are closed once sent to the
+ * caller), but resolving the contact to its photo file was the only database access.
+ * <p>
+ * Photos depend on data, raw contact and aggregation changes, so like the aggregation suggestion
+ * cache, entries are tied to a generation bumped by {@link #invalidate()} whenever the database
+ * may have changed, and a value read while a change was being committed is never stored.  The
+ * cache is accessed by the binder threads and the writer concurrently, so all methods are
+ * synchronized.
+ */
+public class PhotoCache {
+    /** Default byte budget of the thumbnails. */
+    public static final int DEFAULT_MAX_THUMBNAIL_BYTES = 512 * 1024;
+
+    private static final int MAX_PHOTO_FILE_IDS = 256;
+
+    private final int mMaxThumbnailBytes;
+
+    // Keys are the data ID ("d" prefix) or contact ID ("c" prefix) the thumbnail was opened by.
+    private final LinkedHashMap<String, byte[]> mThumbnails =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private int mThumbnailBytes;
+
+    private final LinkedHashMap<Long, Long> mPhotoFileIds =
+            new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                    return size() > MAX_PHOTO_FILE_IDS;
+                }
+            };
+
+    private long mGeneration;
+
+    // Stats
+    private int mRequestCount;
+    private int mHitCount;
+    private int mInvalidationCount;
+
+    public PhotoCache(int maxThumbnailBytes) {
+        mMaxThumbnailBytes = maxThumbnailBytes;
+    }
+
+    public static String getDataKey(long dataId) {
+        return "d" + dataId;
+    }
+
+    public static String getContactKey(long contactId) {
+        return "c" + contactId;
+    }
+
+    /**
+     * Returns the current generation, to be passed to the put methods.  Must be read before
+     * querying the database.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Drops all entries.  Called whenever the contacts database may have changed.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        if (!mThumbnails.isEmpty() || !mPhotoFileIds.isEmpty()) {
+            mInvalidationCount++;
+        }
+        mThumbnails.clear();
+        mThumbnailBytes = 0;
+        mPhotoFileIds.clear();
+    }
+
+    /**
+     * Returns the cached thumbnail for the key, or null if there is none.  The returned array
+     * must not be modified.
+     */
+    public synchronized byte[] getThumbnail(String key) {
+        return countRequest(mThumbnails.get(key));
+    }
+
+    /**
+     * Stores the thumbnail read at {@code generation} for the key, unless the cache has been
+     * invalidated since or the thumbnail alone would take more than a quarter of the budget.
+     */
+    public synchronized void putThumbnail(String key, long generation, byte[] thumbnail) {
+        if (generation != mGeneration || thumbnail.length > mMaxThumbnailBytes / 4) {
+            return;
+        }
+        final byte[] previous = mThumbnails.put(key, thumbnail);
+        if (previous != null) {
+            mThumbnailBytes -= previous.length;
+        }
+        mThumbnailBytes += thumbnail.length;
+
+        // Trim the least recently used entries.
+        while (mThumbnailBytes > mMaxThumbnailBytes) {
+            final Map.Entry<String, byte[]> eldest = mThumbnails.entrySet().iterator().next();
+            mThumbnailBytes -= eldest.getValue().length;
+            mThumbnails.remove(eldest.getKey());
+        }
+    }
+
+    /**
+     * Returns the cached display photo file ID of the contact, or null if there is none.
+     */
+    public synchronized Long getPhotoFileId(long contactId) {
+        return countRequest(mPhotoFileIds.get(contactId));
+    }
+
+    /**
+     * Stores the display photo file ID of the contact read at {@code generation}, unless the
+     * cache has been invalidated since.
+     */
+    public synchronized void putPhotoFileId(long contactId, long generation, long photoFileId) {
+        if (generation == mGeneration) {
+            mPhotoFileIds.put(contactId, photoFileId);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getThumbnailBytes() {
+        return mThumbnailBytes;
+    }
+
+    private <T> T countRequest(T value) {
+        mRequestCount++;
+        if (value != null) {
+            mHitCount++;
+        }
+        return value;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.printf("  request=%d  hit=%d (%d%%)  invalidations=%d  thumbnails=%d (%d bytes)"
+                + "  photo file ids=%d\n",
+                mRequestCount, mHitCount, mRequestCount == 0 ? 0 : mHitCount * 100 / mRequestCount,
+                mInvalidationCount, mThumbnails.size(), mThumbnailBytes, mPhotoFileIds.size());
+    }
+}
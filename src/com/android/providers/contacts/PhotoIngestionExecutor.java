@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.os.ParcelFileDescriptor;
+import android.os.ParcelFileDescriptor.AutoCloseInputStream;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the reading, decoding and processing of the photos written through display photo file
+ * descriptors, with a bounded number of photos processed at once and waiting in line.
+ * <p>
+ * A slot is reserved for each photo before its pipe is handed out, and the open is refused if
+ * there is none, so that the writer knows its photo won't be stored.  The slot is given back once
+ * the photo has been processed.  Each pipe is read on a thread of its own, so a writer that stalls
+ * only holds up its own photo, and a photo larger than the maximum size is refused by closing the
+ * pipe on the writer.  The slots bound both the number of reader threads and the memory held by
+ * the photos read, and no binder thread waits for one.
+ */
+public class PhotoIngestionExecutor {
+    private static final String TAG = "PhotoIngestion";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Processes the bytes written to a pipe handed out by {@link #ingest}.
+     */
+    public interface PhotoHandler {
+        void onPhotoWritten(byte[] photoBytes) throws IOException;
+    }
+
+    private final ThreadPoolExecutor mReaderExecutor;
+    private final ThreadPoolExecutor mExecutor;
+    private final Semaphore mSlots;
+    private final int mMaxSlots;
+    private final int mMaxPhotoBytes;
+
+    // Stats
+    private final AtomicInteger mActiveCount = new AtomicInteger();
+    private final AtomicInteger mReadingCount = new AtomicInteger();
+    private int mProcessedCount;
+    private int mRejectedCount;
+    private int mTooLargeCount;
+    private int mMaxQueueDepth;
+    private long mTotalProcessingTime;
+    private long mMaxProcessingTime;
+
+    /**
+     * @param maxConcurrent The maximum number of photos processed at once.
+     * @param maxQueued The maximum number of photos being written or waiting to be processed.
+     * @param maxPhotoBytes The maximum size of a written photo.
+     */
+    public PhotoIngestionExecutor(int maxConcurrent, int maxQueued, int maxPhotoBytes) {
+        mMaxSlots = maxConcurrent + maxQueued;
+        mSlots = new Semaphore(mMaxSlots);
+        mMaxPhotoBytes = maxPhotoBytes;
+        mExecutor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                newThreadFactory("PhotoIngestion #"));
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        // Readers mostly wait for their writer, there is one per slot in use.
+        mReaderExecutor = new ThreadPoolExecutor(mMaxSlots, mMaxSlots,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                newThreadFactory("PhotoPipeReader #"));
+        mReaderExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory newThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, namePrefix + mCount.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Reserves a slot for a photo if one is free.
+     */
+    private boolean reserve() {
+        final boolean reserved = mSlots.tryAcquire();
+        synchronized (this) {
+            if (reserved) {
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, getQueueDepth());
+            } else {
+                mRejectedCount++;
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Processes a photo in a reserved slot, and gives the slot back once done.
+     */
+    private void execute(final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mActiveCount.incrementAndGet();
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to process a photo", e);
+                } finally {
+                    final long time = SystemClock.elapsedRealtime() - start;
+                    mActiveCount.decrementAndGet();
+                    mSlots.release();
+                    onProcessed(time);
+                }
+            }
+        });
+    }
+
+    private synchronized void onProcessed(long time) {
+        mProcessedCount++;
+        mTotalProcessingTime += time;
+        mMaxProcessingTime = Math.max(mMaxProcessingTime, time);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Photo processed in " + time + "ms, queue depth=" + getQueueDepth());
+        }
+    }
+
+    /**
+     * Number of photos being written or waiting to be processed.
+     */
+    public int getQueueDepth() {
+        return Math.max(0, mMaxSlots - mSlots.availablePermits() - mActiveCount.get());
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.printf("  processed=%d  avg time=%dms  max time=%dms  active=%d  queued=%d"
+                + "  max queued=%d  rejected=%d  too large=%d  reading=%d\n",
+                mProcessedCount,
+                mProcessedCount == 0 ? 0 : mTotalProcessingTime / mProcessedCount,
+                mMaxProcessingTime, mActiveCount.get(), getQueueDepth(), mMaxQueueDepth,
+                mRejectedCount, mTooLargeCount, mReadingCount.get());
+    }
+}
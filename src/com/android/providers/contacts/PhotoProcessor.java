@@ -131,7 +131,7 @@ import java.io.IOException;
      */
     public PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim)
             throws IOException {
-        this(BitmapFactory.decodeByteArray(originalBytes, 0, originalBytes.length),
+        this(decodeSampledBitmap(originalBytes, maxDisplayPhotoDim, false),
                 maxDisplayPhotoDim, maxThumbnailPhotoDim, false);
     }
 
@@ -168,10 +168,44 @@ import java.io.IOException;
      */
     public PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
             boolean forceCropToSquare) throws IOException {
-        this(BitmapFactory.decodeByteArray(originalBytes, 0, originalBytes.length),
+        this(decodeSampledBitmap(originalBytes, maxDisplayPhotoDim, forceCropToSquare),
                 maxDisplayPhotoDim, maxThumbnailPhotoDim, forceCropToSquare);
     }
 
+    /**
+     * Decodes the image in the given bytes, subsampled as much as possible while keeping it at
+     * least as large as the display photo, so that large images are never decoded at their full
+     * size.  Returns null if the bytes are not a valid image.
+     */
+    private static Bitmap decodeSampledBitmap(byte[] bytes, int maxDim,
+            boolean forceCropToSquare) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(
+                options.outWidth, options.outHeight, maxDim, forceCropToSquare);
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    /**
+     * Returns the largest power of two the image can be subsampled by while the side that
+     * {@link #getNormalizedBitmap} scales to {@code maxDim} stays at least {@code maxDim} long:
+     * the longer side, or the shorter one when cropping to a square.
+     */
+    @VisibleForTesting
+    static int computeSampleSize(int width, int height, int maxDim, boolean forceCropToSquare) {
+        final int dim = forceCropToSquare ? Math.min(width, height) : Math.max(width, height);
+        int sampleSize = 1;
+        while (dim / (sampleSize * 2) >= maxDim) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     /**
      * Processes the original image, producing a scaled-down display photo and thumbnail photo.
      * @throws IOException If bitmap decoding or scaling fails.
@@ -16,38 +16,103 @@
 package com.android.providers.contacts;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
+import android.os.Process;
 import android.provider.ContactsContract.PhotoFiles;
+import android.text.format.DateUtils;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.PhotoFilesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Photo storage system that stores the files directly onto the hard disk
  * in the specified directory.
+ * <p>
+ * Files are spread over {@link #SHARD_COUNT} sub-directories by the low bits of their photo file
+ * ID, so that no directory grows too large.  The IDs and sizes of the files are kept in an index
+ * file, so that opening the store does not need to list and stat every file.  The index is
+ * written back after changes, and verified against the directories after it is loaded, on a
+ * background thread of its own, since listing every file can take a while; until then,
+ * {@link #get} may return an entry whose file has been deleted behind the store's back, which
+ * readers already have to cope with.
+ * <p>
+ * The entries are accessed by the reader threads and by the background tasks concurrently, so
+ * all the methods accessing them are synchronized.
+ * <p>
+ * Identical display photos, e.g. the same picture synced from several accounts, share a single
+ * file and photo file ID: the hash of the content is recorded with the photo file row and looked
+ * up on insert.  A shared file is kept as long as any row references it, since
+ * {@link #cleanup} is given the set of all the IDs in use.
  */
 public class PhotoStore {
 
     private static final Object MKDIRS_LOCK = new Object();
 
+    private static final long INDEX_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Writes back and verifies the indexes of all the stores.  The verification lists and stats
+     * every file, so it does not run on a shared executor where it would hold up other tasks.
+     */
+    private static ThreadPoolExecutor sIndexExecutor;
+
     private final String TAG = PhotoStore.class.getSimpleName();
 
     // Directory name under the root directory for photo storage.
     private final String DIRECTORY = "photos";
 
+    // Name of the index file in the photo storage directory.
+    @VisibleForTesting
+    static final String INDEX_FILE_NAME = "index";
+
+    // Number of sub-directories the photo files are spread over.  Must be a power of two.
+    @VisibleForTesting
+    static final int SHARD_COUNT = 256;
+
+    private static final int INDEX_MAGIC = 0x50534958; // "PSIX"
+    private static final int INDEX_VERSION = 1;
+
+    // Temporary files older than this are left over from a crash, and deleted by the verification.
+    private static final long STALE_TEMP_FILE_AGE_MS = DateUtils.HOUR_IN_MILLIS;
+
+    private static final String[] PHOTO_FILE_BY_HASH_PROJECTION = new String[] {
+            PhotoFiles._ID
+    };
+    private static final String PHOTO_FILE_BY_HASH_SELECTION =
+            PhotoFilesColumns.CONTENT_HASH + "=? AND " + PhotoFiles.FILESIZE + "=?";
+
+    /** The index of the entries, and whether writing it back has been scheduled. */
+    private final AtomicFile mIndexFile;
+    private final Executor mExecutor;
+    private boolean mIndexSaveScheduled;
+
     /** Map of keys to entries in the directory. */
-    private final Map<Long, Entry> mEntries;
+    private final TreeMap<Long, Entry> mEntries;
 
     /** Total amount of space currently used by the photo store in bytes. */
     private long mTotalSize = 0;
@@ -67,7 +132,38 @@ public class PhotoStore {
      * @param databaseHelper Helper class for obtaining a database instance.
      */
     public PhotoStore(File rootDirectory, ContactsDatabaseHelper databaseHelper) {
+        this(rootDirectory, databaseHelper, getIndexExecutor());
+    }
+
+    private static synchronized Executor getIndexExecutor() {
+        if (sIndexExecutor == null) {
+            sIndexExecutor = new ThreadPoolExecutor(1, 1, INDEX_THREAD_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "PhotoStoreIndex");
+                        }
+                    });
+            sIndexExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sIndexExecutor;
+    }
+
+    /**
+     * Same as above, with the executor used to write back and verify the index.
+     */
+    @VisibleForTesting
+    PhotoStore(File rootDirectory, ContactsDatabaseHelper databaseHelper, Executor executor) {
         mStorePath = new File(rootDirectory, DIRECTORY);
+        mIndexFile = new AtomicFile(new File(mStorePath, INDEX_FILE_NAME));
+        mExecutor = executor;
         synchronized (MKDIRS_LOCK) {
             if (!mStorePath.exists()) {
                 if (!mStorePath.mkdirs()) {
@@ -77,18 +173,27 @@ public class PhotoStore {
             }
         }
         mDatabaseHelper = databaseHelper;
-        mEntries = new HashMap<Long, Entry>();
+        mEntries = new TreeMap<Long, Entry>();
         initialize();
     }
 
     /**
      * Clears the photo storage. Deletes all files from disk.
      */
-    public void clear() {
+    public synchronized void clear() {
         File[] files = mStorePath.listFiles();
         if (files != null) {
             for (File file : files) {
-                cleanupFile(file);
+                if (file.isDirectory()) {
+                    File[] shardFiles = file.listFiles();
+                    if (shardFiles != null) {
+                        for (File shardFile : shardFiles) {
+                            cleanupFile(shardFile);
+                        }
+                    }
+                } else {
+                    cleanupFile(file);
+                }
             }
         }
         if (mDb == null) {
@@ -100,38 +205,224 @@ public class PhotoStore {
     }
 
     @VisibleForTesting
-    public long getTotalSize() {
+    public synchronized long getTotalSize() {
         return mTotalSize;
     }
 
     /**
      * Returns the entry with the specified key if it exists, null otherwise.
      */
-    public Entry get(long key) {
+    public synchronized Entry get(long key) {
         return mEntries.get(key);
     }
 
     /**
-     * Initializes the PhotoStore by scanning for all files currently in the
-     * specified root directory.
+     * Initializes the PhotoStore from the index, or by scanning for all files currently in the
+     * specified root directory if there is no usable index.
      */
     public final void initialize() {
+        // Get a reference to the database.
+        mDb = mDatabaseHelper.getWritableDatabase();
+
+        if (loadIndex()) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    verifyIndex();
+                }
+            });
+            return;
+        }
+
         File[] files = mStorePath.listFiles();
         if (files == null) {
             return;
         }
-        for (File file : files) {
-            try {
-                Entry entry = new Entry(file);
-                putEntry(entry.id, entry);
-            } catch (NumberFormatException nfe) {
-                // Not a valid photo store entry - delete the file.
-                cleanupFile(file);
+        synchronized (this) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    File[] shardFiles = file.listFiles();
+                    if (shardFiles != null) {
+                        for (File shardFile : shardFiles) {
+                            addFile(shardFile);
+                        }
+                    }
+                } else if (!file.equals(mIndexFile.getBaseFile())) {
+                    // Files of the flat layout used by older versions are moved to their
+                    // shard directory.  A file that can't be moved is deleted, since the store
+                    // only ever looks for it, and deletes it, in its shard directory.
+                    try {
+                        File target =
+                                getTargetFileForPhotoFileId(Long.parseLong(file.getName()));
+                        if (!file.renameTo(target)) {
+                            Log.w(TAG, "Unable to move " + file + " to " + target);
+                            cleanupFile(file);
+                            continue;
+                        }
+                        addFile(target);
+                    } catch (NumberFormatException nfe) {
+                        // Not a valid photo store entry - delete the file.
+                        cleanupFile(file);
+                    }
+                }
             }
         }
+        scheduleIndexSave();
+    }
 
-        // Get a reference to the database.
-        mDb = mDatabaseHelper.getWritableDatabase();
+    /**
+     * Adds the entry for a photo file found on disk, or deletes it if it is not a photo file.
+     */
+    private void addFile(File file) {
+        try {
+            Entry entry = new Entry(file);
+            putEntry(entry.id, entry);
+        } catch (NumberFormatException nfe) {
+            // Not a valid photo store entry - delete the file.
+            cleanupFile(file);
+        }
+    }
+
+    /**
+     * Loads the entries from the index file.  Returns false if there is no index or it could not
+     * be read, in which case the entries are left empty.
+     */
+    private synchronized boolean loadIndex() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mIndexFile.openRead()));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown index format");
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final long id = in.readLong();
+                final long size = in.readLong();
+                putEntry(id, new Entry(id, size, getFileForPhotoFileId(id).getAbsolutePath()));
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the photo store index, rescanning", e);
+            mEntries.clear();
+            mTotalSize = 0;
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the index back on the executor.  Several changes made before the write runs are
+     * written at once.
+     */
+    private synchronized void scheduleIndexSave() {
+        if (mIndexSaveScheduled) {
+            return;
+        }
+        mIndexSaveScheduled = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                saveIndex();
+            }
+        });
+    }
+
+    private void saveIndex() {
+        final List<Entry> entries;
+        synchronized (this) {
+            mIndexSaveScheduled = false;
+            entries = new ArrayList<Entry>(mEntries.values());
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mIndexFile.startWrite();
+            final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+            dos.writeInt(INDEX_MAGIC);
+            dos.writeInt(INDEX_VERSION);
+            dos.writeInt(entries.size());
+            for (Entry entry : entries) {
+                dos.writeLong(entry.id);
+                dos.writeLong(entry.size);
+            }
+            dos.flush();
+            mIndexFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the photo store index", e);
+            if (out != null) {
+                mIndexFile.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Reconciles the entries loaded from the index with the files on disk: files the index
+     * missed are added, entries whose file is gone are dropped, and sizes are refreshed.  Each
+     * file is re-checked under the lock, so that concurrent inserts and removals win.
+     */
+    @VisibleForTesting
+    void verifyIndex() {
+        final Set<Long> seen = new HashSet<Long>();
+        boolean changed = false;
+
+        File[] files = mStorePath.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    File[] shardFiles = file.listFiles();
+                    if (shardFiles == null) {
+                        continue;
+                    }
+                    for (File shardFile : shardFiles) {
+                        final long id;
+                        try {
+                            id = Long.parseLong(shardFile.getName());
+                        } catch (NumberFormatException nfe) {
+                            continue;
+                        }
+                        seen.add(id);
+                        synchronized (this) {
+                            final Entry entry = mEntries.get(id);
+                            if (shardFile.exists()
+                                    && (entry == null || entry.size != shardFile.length())) {
+                                putEntry(id, new Entry(shardFile));
+                                changed = true;
+                            }
+                        }
+                    }
+                } else if (!file.equals(mIndexFile.getBaseFile())
+                        && !file.getName().endsWith(".bak")
+                        && System.currentTimeMillis() - file.lastModified()
+                                > STALE_TEMP_FILE_AGE_MS) {
+                    cleanupFile(file);
+                }
+            }
+        }
+
+        synchronized (this) {
+            final List<Long> missing = new ArrayList<Long>();
+            for (Long id : mEntries.keySet()) {
+                if (!seen.contains(id) && !getFileForPhotoFileId(id).exists()) {
+                    missing.add(id);
+                }
+            }
+            for (Long id : missing) {
+                mTotalSize -= mEntries.remove(id).size;
+                changed = true;
+            }
+            if (changed) {
+                Log.i(TAG, "Photo store index updated, " + mEntries.size() + " entries");
+                scheduleIndexSave();
+            }
+        }
     }
 
     /**
@@ -145,7 +436,7 @@ public class PhotoStore {
      * @param keysInUse The set of all keys that are in use in the photo store.
      * @return The set of the keys in use that refer to non-existent entries.
      */
-    public Set<Long> cleanup(Set<Long> keysInUse) {
+    public synchronized Set<Long> cleanup(Set<Long> keysInUse) {
         Set<Long> keysToRemove = new HashSet<Long>();
         keysToRemove.addAll(mEntries.keySet());
         keysToRemove.removeAll(keysInUse);
@@ -162,6 +453,49 @@ public class PhotoStore {
         return missingKeys;
     }
 
+    /**
+     * Returns the smallest key in the photo store that is at least {@code key}, or 0 if there is
+     * none.
+     */
+    public synchronized long getNextKey(long key) {
+        final Long nextKey = mEntries.ceilingKey(key);
+        return nextKey == null ? 0 : nextKey;
+    }
+
+    /**
+     * Same as {@link #cleanup(Set)}, restricted to the photo file IDs in [start, end), so that
+     * the store can be collected a slice at a time.
+     *
+     * @param keysInUse The keys in use in the range, bit {@code i} standing for {@code start + i}.
+     * @return The keys in use in the range that refer to non-existent entries.
+     */
+    public synchronized long[] cleanup(long start, long end, BitSet keysInUse) {
+        final List<Long> keysToRemove = new ArrayList<Long>();
+        for (Long key : mEntries.subMap(start, end).keySet()) {
+            if (!keysInUse.get((int) (key - start))) {
+                keysToRemove.add(key);
+            }
+        }
+        if (!keysToRemove.isEmpty()) {
+            Log.d(TAG, "cleanup removing " + keysToRemove.size() + " entries in " + start + ".."
+                    + (end - 1));
+            for (long key : keysToRemove) {
+                remove(key);
+            }
+        }
+
+        final BitSet missingKeys = (BitSet) keysInUse.clone();
+        for (Long key : mEntries.subMap(start, end).keySet()) {
+            missingKeys.clear((int) (key - start));
+        }
+        final long[] result = new long[missingKeys.cardinality()];
+        int i = 0;
+        for (int bit = missingKeys.nextSetBit(0); bit >= 0; bit = missingKeys.nextSetBit(bit + 1)) {
+            result[i++] = start + bit;
+        }
+        return result;
+    }
+
     /**
      * Inserts the photo in the given photo processor into the photo store.  If the display photo
      * is already thumbnail-sized or smaller, this will do nothing (and will return 0).
@@ -193,8 +527,15 @@ public class PhotoStore {
             // temp file to match.
             File file = null;
             try {
-                // Write the display photo to a temp file.
+                // Share the file of an identical photo if there is one.
                 byte[] photoBytes = photoProcessor.getDisplayPhotoBytes();
+                final String contentHash = mDatabaseHelper.generateHashIdForData(photoBytes);
+                final long existingId = findPhotoFileId(contentHash, photoBytes.length);
+                if (existingId != 0) {
+                    return existingId;
+                }
+
+                // Write the display photo to a temp file.
                 file = File.createTempFile("img", null, mStorePath);
                 FileOutputStream fos = new FileOutputStream(file);
                 fos.write(photoBytes);
@@ -205,14 +546,18 @@ public class PhotoStore {
                 values.put(PhotoFiles.HEIGHT, height);
                 values.put(PhotoFiles.WIDTH, width);
                 values.put(PhotoFiles.FILESIZE, photoBytes.length);
+                values.put(PhotoFilesColumns.CONTENT_HASH, contentHash);
                 long id = mDb.insert(Tables.PHOTO_FILES, null, values);
                 if (id != 0) {
                     // Rename the temp file.
-                    File target = getFileForPhotoFileId(id);
-                    if (file.renameTo(target)) {
-                        Entry entry = new Entry(target);
-                        putEntry(entry.id, entry);
-                        return id;
+                    synchronized (this) {
+                        File target = getTargetFileForPhotoFileId(id);
+                        if (file.renameTo(target)) {
+                            Entry entry = new Entry(target);
+                            putEntry(entry.id, entry);
+                            scheduleIndexSave();
+                            return id;
+                        }
                     }
                 }
             } catch (IOException e) {
@@ -227,6 +572,28 @@ public class PhotoStore {
         return 0;
     }
 
+    /**
+     * Returns the ID of a stored photo file with the given content hash and size, or 0 if there
+     * is none.
+     */
+    private long findPhotoFileId(String contentHash, long size) {
+        final Cursor c = mDb.query(Tables.PHOTO_FILES, PHOTO_FILE_BY_HASH_PROJECTION,
+                PHOTO_FILE_BY_HASH_SELECTION,
+                new String[] {contentHash, String.valueOf(size)}, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(0);
+                final Entry entry = get(id);
+                if (entry != null && entry.size == size) {
+                    return id;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return 0;
+    }
+
     private void cleanupFile(File file) {
         boolean deleted = file.delete();
         if (!deleted) {
@@ -237,16 +604,38 @@ public class PhotoStore {
     /**
      * Removes the specified photo file from the store if it exists.
      */
-    public void remove(long id) {
+    public synchronized void remove(long id) {
         cleanupFile(getFileForPhotoFileId(id));
         removeEntry(id);
+        scheduleIndexSave();
     }
 
     /**
      * Returns a file object for the given photo file ID.
      */
     private File getFileForPhotoFileId(long id) {
-        return new File(mStorePath, String.valueOf(id));
+        return new File(new File(mStorePath, getShardName(id)), String.valueOf(id));
+    }
+
+    /**
+     * Returns a file object for the given photo file ID, creating its shard directory if needed.
+     */
+    private File getTargetFileForPhotoFileId(long id) {
+        final File file = getFileForPhotoFileId(id);
+        final File shard = file.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdir() && !shard.isDirectory()) {
+            Log.w(TAG, "Unable to create photo shard directory " + shard.getPath());
+        }
+        return file;
+    }
+
+    /**
+     * Returns the name of the sub-directory the file of the given photo file ID is stored in,
+     * two hexadecimal digits.
+     */
+    @VisibleForTesting
+    static String getShardName(long id) {
+        return Integer.toHexString((int) (id & (SHARD_COUNT - 1)) | 0x100).substring(1);
     }
 
     /**
@@ -293,5 +682,11 @@ public class PhotoStore {
             size = file.length();
             path = file.getAbsolutePath();
         }
+
+        public Entry(long id, long size, String path) {
+            this.id = id;
+            this.size = size;
+            this.path = path;
+        }
     }
 }
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.ParcelFileDescriptor;
+import android.os.ParcelFileDescriptor.AutoCloseOutputStream;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+
+import com.android.vcard.VCardComposer;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports many contacts as vCards by composing ranges of them in parallel.
+ * <p>
+ * The contact IDs are sorted and split into chunks, each composed on a worker thread by its own
+ * {@link VCardComposer} into a buffer, with the calling identity of the export.  The buffers are
+ * written to the output in the order of the chunks as soon as the one at the head is ready, and
+ * at most {@code maxPendingChunks} chunks are composed or waiting to be written at any time.  When
+ * the output is a pipe, a slow reader holds the export back, so this bounds the memory it uses.
+ */
+public class VCardExporter {
+    private static final String TAG = "VCardExporter";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final Context mContext;
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mWriterExecutor;
+    private final int mChunkSize;
+    private final int mMaxPendingChunks;
+
+    // Stats
+    private int mExportCount;
+    private long mContactCount;
+    private long mByteCount;
+    private long mTotalTime;
+
+    /**
+     * @param threadCount The number of chunks composed at once.
+     * @param chunkSize The number of contacts in a chunk.
+     * @param maxPendingChunks The maximum number of chunks composed or waiting to be written.
+     */
+    public VCardExporter(Context context, int threadCount, int chunkSize, int maxPendingChunks) {
+        mContext = context;
+        mChunkSize = chunkSize;
+        mMaxPendingChunks = maxPendingChunks;
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                newThreadFactory("VCardExporter #"));
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        // Writers mostly wait for their reader, there is one per export to a pipe.
+        mWriterExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                newThreadFactory("VCardExportWriter #"));
+    }
+
+    private static ThreadFactory newThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, namePrefix + mCount.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Returns whether exporting that many contacts is worth splitting into chunks.
+     */
+    public boolean shouldExportInChunks(int contactCount) {
+        return contactCount > mChunkSize;
+    }
+
+    /**
+     * Starts writing the given contacts as vCards to a pipe, and returns its read end right away.
+     * The pipe is written by a thread of its own, which stops if the reader goes away.
+     *
+     * @see #export
+     */
+    public ParcelFileDescriptor exportToPipe(final Uri contactsUri, final long[] contactIds,
+            final int vcardConfig, final Uri rawContactsUri) throws IOException {
+        final ParcelFileDescriptor[] pipeFds = ParcelFileDescriptor.createPipe();
+        final long callingIdentity = getCallingIdentity();
+        mWriterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final OutputStream stream = new AutoCloseOutputStream(pipeFds[1]);
+                try {
+                    export(contactsUri, contactIds, vcardConfig, rawContactsUri, callingIdentity,
+                            stream);
+                } catch (IOException e) {
+                    // Most likely the reader closed the pipe.
+                    Log.w(TAG, "Failed to export vCards", e);
+                } finally {
+                    IoUtils.closeQuietly(stream);
+                }
+            }
+        });
+        return pipeFds[0];
+    }
+
+    /**
+     * Writes the given contacts as vCards to the stream, in the order of their IDs.
+     *
+     * @param contactsUri The contacts URI to compose from, see {@link VCardComposer#init}.
+     * @param rawContactsUri The raw contacts entity URI to compose from.
+     */
+    public void export(Uri contactsUri, long[] contactIds, int vcardConfig, Uri rawContactsUri,
+            OutputStream stream) throws IOException {
+        export(contactsUri, contactIds, vcardConfig, rawContactsUri, getCallingIdentity(),
+                stream);
+    }
+
+    private void export(final Uri contactsUri, long[] contactIds, final int vcardConfig,
+            final Uri rawContactsUri, final long callingIdentity, OutputStream stream)
+            throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final long[] sortedIds = contactIds.clone();
+        Arrays.sort(sortedIds);
+
+        final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        long byteCount = 0;
+        int next = 0;
+        try {
+            while (next < sortedIds.length || !pending.isEmpty()) {
+                while (next < sortedIds.length && pending.size() < mMaxPendingChunks) {
+                    final long[] chunk = Arrays.copyOfRange(sortedIds, next,
+                            Math.min(next + mChunkSize, sortedIds.length));
+                    next += chunk.length;
+                    pending.add(mExecutor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            return composeChunk(contactsUri, chunk, vcardConfig, rawContactsUri,
+                                    callingIdentity);
+                        }
+                    }));
+                }
+                final byte[] entries = getChunk(pending.removeFirst());
+                stream.write(entries);
+                byteCount += entries.length;
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+
+        final long time = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            mExportCount++;
+            mContactCount += sortedIds.length;
+            mByteCount += byteCount;
+            mTotalTime += time;
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Exported " + sortedIds.length + " contacts (" + byteCount + " bytes) in "
+                    + time + "ms");
+        }
+    }
+
+    private static byte[] getChunk(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while composing vCards");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compose vCards", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the calling identity of the current thread, as a token for
+     * {@link Binder#restoreCallingIdentity}.
+     */
+    private static long getCallingIdentity() {
+        final long identity = Binder.clearCallingIdentity();
+        Binder.restoreCallingIdentity(identity);
+        return identity;
+    }
+
+    /**
+     * Composes the given contacts with the given calling identity, so that the queries of the
+     * composer are checked against the permissions of the caller of the export.
+     */
+    private byte[] composeChunk(Uri contactsUri, long[] contactIds, int vcardConfig,
+            Uri rawContactsUri, long callingIdentity) throws IOException {
+        final long workerIdentity = Binder.clearCallingIdentity();
+        Binder.restoreCallingIdentity(callingIdentity);
+        try {
+            return composeChunk(contactsUri, contactIds, vcardConfig, rawContactsUri);
+        } finally {
+            Binder.restoreCallingIdentity(workerIdentity);
+        }
+    }
+
+    private byte[] composeChunk(Uri contactsUri, long[] contactIds, int vcardConfig,
+            Uri rawContactsUri) throws IOException {
+        final StringBuilder selection = new StringBuilder(Contacts._ID + " IN (");
+        for (int i = 0; i < contactIds.length; i++) {
+            selection.append(i == 0 ? "" : ",").append(contactIds[i]);
+        }
+        selection.append(')');
+
+        final VCardComposer composer = new VCardComposer(mContext, vcardConfig, false);
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final Writer writer = new OutputStreamWriter(buffer);
+        try {
+            if (!composer.init(contactsUri, selection.toString(), null, Contacts._ID,
+                    rawContactsUri)) {
+                throw new IOException("Failed to init VCardComposer");
+            }
+            while (!composer.isAfterLast()) {
+                writer.write(composer.createOneEntry());
+            }
+            writer.flush();
+        } finally {
+            composer.terminate();
+        }
+        return buffer.toByteArray();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.printf("  exports=%d  contacts=%d  bytes=%d  avg time=%dms  contacts/s=%d"
+                + "  writing=%d\n",
+                mExportCount, mContactCount, mByteCount,
+                mExportCount == 0 ? 0 : mTotalTime / mExportCount,
+                mTotalTime == 0 ? 0 : mContactCount * 1000 / mTotalTime,
+                mWriterExecutor.getActiveCount());
+    }
+}
@@ -23,6 +23,7 @@ import com.android.providers.contacts.ContactsDatabaseHelper.AccountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregatedPresenceColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.ContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameBlockingKeyColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
 import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
@@ -38,14 +39,15 @@ import com.android.providers.contacts.NameSplitter;
 import com.android.providers.contacts.PhotoPriorityResolver;
 import com.android.providers.contacts.ReorderingCursorWrapper;
 import com.android.providers.contacts.TransactionContext;
+import com.android.providers.contacts.aggregation.util.AggregationExceptionCache;
+import com.android.providers.contacts.aggregation.util.AggregationSuggestionCache;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
-import com.android.providers.contacts.aggregation.util.ContactAggregatorHelper;
 import com.android.providers.contacts.aggregation.util.ContactMatcher;
 import com.android.providers.contacts.aggregation.util.MatchScore;
+import com.android.providers.contacts.aggregation.util.RawContactUnionFind;
 import com.android.providers.contacts.util.Clock;
+import com.android.providers.contacts.util.Hex;
 import com.google.android.collect.Maps;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
 
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -71,10 +73,10 @@ import android.util.EventLog;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
@@ -141,6 +143,10 @@ public abstract class AbstractContactAggregator {
     // suggestion lookup, ignore the remaining results.
     protected static final int FIRST_LETTER_SUGGESTION_HIT_LIMIT = 100;
 
+    // Number of contacts whose aggregate data is computed with a single query when updating
+    // many contacts at once.
+    private static final int AGGREGATE_DATA_BATCH_SIZE = 200;
+
     protected final ContactsProvider2 mContactsProvider;
     protected final ContactsDatabaseHelper mDbHelper;
     protected PhotoPriorityResolver mPhotoPriorityResolver;
@@ -171,6 +177,9 @@ public abstract class AbstractContactAggregator {
 
     protected HashMap<Long, Integer> mRawContactsMarkedForAggregation = Maps.newHashMap();
 
+    // Bulk lookup results for the aggregation pass in progress, or null.
+    protected RawContactMatchPrefetch mMatchPrefetch;
+
     protected String[] mSelectionArgs1 = new String[1];
     protected String[] mSelectionArgs2 = new String[2];
 
@@ -180,6 +189,7 @@ public abstract class AbstractContactAggregator {
     protected long mMimeTypeIdPhone;
     protected String mRawContactsQueryByRawContactId;
     protected String mRawContactsQueryByContactId;
+    protected String mRawContactsQueryByContactIds;
     protected StringBuilder mSb = new StringBuilder();
     protected MatchCandidateList mCandidates = new MatchCandidateList();
     protected DisplayNameCandidate mDisplayNameCandidate = new DisplayNameCandidate();
@@ -206,10 +216,123 @@ public abstract class AbstractContactAggregator {
         String mName;
         int mLookupType;
 
+        // mName decoded for approximate matching, computed on first use.
+        private byte[] mDecodedName;
+        private boolean mDecoded;
+
         public NameMatchCandidate(String name, int nameLookupType) {
             mName = name;
             mLookupType = nameLookupType;
         }
+
+        void reset(String name, int nameLookupType) {
+            mName = name;
+            mLookupType = nameLookupType;
+            mDecodedName = null;
+            mDecoded = false;
+        }
+
+        /**
+         * Returns the name decoded once for all the rows it is matched against, or null if it
+         * cannot be decoded.
+         */
+        byte[] getDecodedName() {
+            if (!mDecoded) {
+                mDecodedName = decodeNormalizedName(mName);
+                mDecoded = true;
+            }
+            return mDecodedName;
+        }
+    }
+
+    /**
+     * Decodes a normalized name for approximate matching.  Returns null if the name cannot be
+     * decoded, in which case the matcher tries again and reports the failure.
+     */
+    protected static byte[] decodeNormalizedName(String name) {
+        try {
+            return Hex.decodeHex(name);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the keys under which rows similar to {@code normalizedName} can be found in
+     * {@link Tables#NAME_BLOCKING_KEY}: its first two bytes, and its first and third bytes.  Must
+     * be kept in sync with the name lookup triggers of {@link ContactsDatabaseHelper}.
+     */
+    @VisibleForTesting
+    static void addNameBlockingKeys(String normalizedName, Set<String> keys) {
+        final int length = normalizedName.length();
+        if (length < 2) {
+            return;
+        }
+        keys.add(length >= 4 ? normalizedName.substring(0, 4) : normalizedName);
+        if (length >= 6) {
+            // Same as the first key if the second and third bytes are equal.
+            keys.add(normalizedName.substring(0, 2) + normalizedName.substring(4, 6));
+        }
+    }
+
+    /**
+     * Name lookup rows for approximate name matching, retrieved by blocking key.  The first five
+     * columns are the same as in the name lookup queries of {@link ContactAggregator2}; the data
+     * ID makes the rows distinct when a name has more than one matching key.
+     */
+    protected interface ApproximateNameLookupQuery {
+        String TABLE = Tables.NAME_BLOCKING_KEY_JOIN_RAW_CONTACTS;
+
+        String[] COLUMNS = new String[] {
+                RawContacts._ID,
+                RawContacts.CONTACT_ID,
+                RawContactsColumns.ACCOUNT_ID,
+                NameBlockingKeyColumns.NORMALIZED_NAME,
+                NameBlockingKeyColumns.NAME_TYPE,
+                NameBlockingKeyColumns.DATA_ID,
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int CONTACT_ID = 1;
+        int ACCOUNT_ID = 2;
+        int NORMALIZED_NAME = 3;
+        int NAME_TYPE = 4;
+    }
+
+    /**
+     * Returns the distinct visible {@link ApproximateNameLookupQuery} rows that share a blocking
+     * key with one of the candidates, at most {@link #FIRST_LETTER_SUGGESTION_HIT_LIMIT} per key,
+     * or null if the candidates have no key.
+     */
+    protected static Cursor queryApproximateNameLookup(SQLiteDatabase db,
+            MatchCandidateList candidates) {
+        final Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < candidates.mCount; i++) {
+            addNameBlockingKeys(candidates.mList.get(i).mName, keys);
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+
+        // One limited subquery per key, so that a common key can't crowd out the others.  Keys
+        // are hex strings, they can be inlined.
+        final StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            if (sb.length() != 0) {
+                sb.append(" UNION ");
+            }
+            sb.append("SELECT * FROM (").append(SQLiteQueryBuilder.buildQueryString(false,
+                    ApproximateNameLookupQuery.TABLE, ApproximateNameLookupQuery.COLUMNS,
+                    NameBlockingKeyColumns.BLOCKING_KEY + "='" + key + "' AND "
+                            + NameBlockingKeyColumns.NAME_TYPE + " IN("
+                                    + NameLookupType.NAME_COLLATION_KEY + ","
+                                    + NameLookupType.EMAIL_BASED_NICKNAME + ","
+                                    + NameLookupType.NICKNAME + ") AND "
+                            + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY,
+                    null, null, null, String.valueOf(FIRST_LETTER_SUGGESTION_HIT_LIMIT)))
+                    .append(')');
+        }
+        return db.rawQuery(sb.toString(), null);
     }
 
     /**
@@ -227,9 +350,7 @@ public abstract class AbstractContactAggregator {
             if (mCount >= mList.size()) {
                 mList.add(new NameMatchCandidate(name, nameLookupType));
             } else {
-                NameMatchCandidate candidate = mList.get(mCount);
-                candidate.mName = name;
-                candidate.mLookupType = nameLookupType;
+                mList.get(mCount).reset(name, nameLookupType);
             }
             mCount++;
         }
@@ -396,6 +517,10 @@ public abstract class AbstractContactAggregator {
         mRawContactsQueryByContactId = String.format(Locale.US,
                 RawContactsQuery.SQL_FORMAT_BY_CONTACT_ID,
                 mDbHelper.getMimeTypeIdForStructuredName(), mMimeTypeIdPhoto, mMimeTypeIdPhone);
+
+        mRawContactsQueryByContactIds = String.format(Locale.US,
+                RawContactsQuery.SQL_FORMAT_BY_CONTACT_IDS,
+                mDbHelper.getMimeTypeIdForStructuredName(), mMimeTypeIdPhoto, mMimeTypeIdPhone);
     }
 
     public final void setEnabled(boolean enabled) {
@@ -481,9 +606,14 @@ public abstract class AbstractContactAggregator {
             Log.d(TAG, "aggregateInTransaction: initial query done.");
         }
 
-        for (int i = 0; i < actualCount; i++) {
-            aggregateContact(txContext, db, rawContactIds[i], accountIds[i], contactIds[i],
-                    mCandidates);
+        mMatchPrefetch = prefetchMatches(db, rawContactIds, actualCount);
+        try {
+            for (int i = 0; i < actualCount; i++) {
+                aggregateContact(txContext, db, rawContactIds[i], accountIds[i], contactIds[i],
+                        mCandidates);
+            }
+        } finally {
+            mMatchPrefetch = null;
         }
 
         long elapsedTime = System.currentTimeMillis() - start;
@@ -496,6 +626,15 @@ public abstract class AbstractContactAggregator {
         }
     }
 
+    /**
+     * Looks up matches in bulk for all the raw contacts of an aggregation pass, before any of
+     * them is aggregated. Returns null if the aggregator doesn't support it.
+     */
+    protected RawContactMatchPrefetch prefetchMatches(SQLiteDatabase db, long[] rawContactIds,
+            int count) {
+        return null;
+    }
+
     @SuppressWarnings("deprecation")
     public final void triggerAggregation(TransactionContext txContext, long rawContactId) {
         if (!mEnabled) {
@@ -534,6 +673,75 @@ public abstract class AbstractContactAggregator {
         mRawContactsMarkedForAggregation = Maps.newHashMap();
     }
 
+    /**
+     * Returns the raw contacts marked for aggregation in the current transaction and forgets
+     * about them, leaving their {@link RawContactsColumns#AGGREGATION_NEEDED} flag set.  Used to
+     * defer their aggregation to a later transaction.
+     */
+    public final long[] takeRawContactsMarkedForAggregation() {
+        final long[] rawContactIds = new long[mRawContactsMarkedForAggregation.size()];
+        int i = 0;
+        for (long rawContactId : mRawContactsMarkedForAggregation.keySet()) {
+            rawContactIds[i++] = rawContactId;
+        }
+        clearPendingAggregations();
+        return rawContactIds;
+    }
+
+    /**
+     * Marks raw contacts whose aggregation was deferred for aggregation in the current
+     * transaction, with their current aggregation mode.  Raw contacts that no longer exist are
+     * ignored.
+     */
+    public final void markDeferredForAggregation(SQLiteDatabase db, long[] rawContactIds) {
+        if (rawContactIds.length == 0) {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SELECT " + RawContacts._ID + "," + RawContacts.AGGREGATION_MODE +
+                " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + RawContacts._ID + " IN (");
+        for (int i = 0; i < rawContactIds.length; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(rawContactIds[i]);
+        }
+        sb.append(')');
+        final Cursor cursor = db.rawQuery(sb.toString(), null);
+        try {
+            while (cursor.moveToNext()) {
+                mRawContactsMarkedForAggregation.put(cursor.getLong(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the raw contacts that still need aggregation, e.g. because their deferred
+     * aggregation was interrupted by a restart.
+     */
+    public final long[] queryRawContactsNeedingAggregation(SQLiteDatabase db) {
+        final Cursor cursor = db.rawQuery("SELECT " + RawContacts._ID +
+                " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + RawContactsColumns.AGGREGATION_NEEDED + "=1" +
+                " AND " + RawContacts.AGGREGATION_MODE + "=" +
+                        RawContacts.AGGREGATION_MODE_DEFAULT +
+                " AND " + RawContacts.DELETED + "=0" +
+                " ORDER BY " + RawContacts._ID, null);
+        try {
+            final long[] rawContactIds = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                rawContactIds[i++] = cursor.getLong(0);
+            }
+            return rawContactIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
     public final void markNewForAggregation(long rawContactId, int aggregationMode) {
         mRawContactsMarkedForAggregation.put(rawContactId, aggregationMode);
     }
@@ -593,44 +801,60 @@ public abstract class AbstractContactAggregator {
     }
 
     /**
-     * Mark all visible contacts for re-aggregation.
+     * Mark a chunk of visible contacts for re-aggregation.
+     *
+     * - Set {@link RawContactsColumns#AGGREGATION_NEEDED} for up to {@code limit} visible
+     *   raw_contacts with {@link RawContacts#AGGREGATION_MODE_DEFAULT} and an ID greater than
+     *   {@code afterRawContactId}, in ID order.
+     * - Also put them into {@link #mRawContactsMarkedForAggregation}, together with the
+     *   raw_contacts in that range that were already flagged, visible or not.
      *
-     * - Set {@link RawContactsColumns#AGGREGATION_NEEDED} For all visible raw_contacts with
-     *   {@link RawContacts#AGGREGATION_MODE_DEFAULT}.
-     * - Also put them into {@link #mRawContactsMarkedForAggregation}.
+     * @return the highest raw contact ID marked, or -1 if there are no more raw contacts to mark.
      */
-    public final int markAllVisibleForAggregation(SQLiteDatabase db) {
+    public final long markVisibleForAggregation(SQLiteDatabase db, long afterRawContactId,
+            int limit) {
         final long start = System.currentTimeMillis();
 
-        // Set AGGREGATION_NEEDED for all visible raw_cotnacts with AGGREGATION_MODE_DEFAULT.
-        // (Don't re-aggregate AGGREGATION_MODE_SUSPENDED / AGGREGATION_MODE_DISABLED)
-        db.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET " +
-                RawContactsColumns.AGGREGATION_NEEDED + "=1" +
-                " WHERE " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY +
-                " AND " + RawContacts.AGGREGATION_MODE + "=" + RawContacts.AGGREGATION_MODE_DEFAULT
-                );
-
-        final int count;
+        // Don't re-aggregate AGGREGATION_MODE_SUSPENDED / AGGREGATION_MODE_DISABLED
+        final StringBuilder sb = new StringBuilder();
+        long lastRawContactId = -1;
+        int count = 0;
         final Cursor cursor = db.rawQuery("SELECT " + RawContacts._ID +
                 " FROM " + Tables.RAW_CONTACTS +
-                " WHERE " + RawContactsColumns.AGGREGATION_NEEDED + "=1 AND " +
-                RawContacts.DELETED + "=0", null);
+                " WHERE " + RawContacts._ID + ">?" +
+                " AND " + RawContacts.DELETED + "=0" +
+                " AND (" + RawContactsColumns.AGGREGATION_NEEDED + "=1" +
+                " OR (" + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY +
+                " AND " + RawContacts.AGGREGATION_MODE + "=" +
+                        RawContacts.AGGREGATION_MODE_DEFAULT + "))" +
+                " ORDER BY " + RawContacts._ID +
+                " LIMIT " + limit, new String[] {String.valueOf(afterRawContactId)});
         try {
-            count = cursor.getCount();
-            cursor.moveToPosition(-1);
             while (cursor.moveToNext()) {
-                final long rawContactId = cursor.getLong(0);
-                mRawContactsMarkedForAggregation.put(rawContactId,
+                lastRawContactId = cursor.getLong(0);
+                if (count++ > 0) {
+                    sb.append(',');
+                }
+                sb.append(lastRawContactId);
+                mRawContactsMarkedForAggregation.put(lastRawContactId,
                         RawContacts.AGGREGATION_MODE_DEFAULT);
             }
         } finally {
             cursor.close();
         }
 
+        if (count == 0) {
+            return -1;
+        }
+
+        db.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET " +
+                RawContactsColumns.AGGREGATION_NEEDED + "=1" +
+                " WHERE " + RawContacts._ID + " IN (" + sb + ")");
+
         final long end = System.currentTimeMillis();
-        Log.i(TAG, "Marked all visible contacts for aggregation: " + count + " raw contacts, " +
-                (end - start) + " ms");
-        return count;
+        Log.i(TAG, "Marked visible contacts for aggregation: " + count + " raw contacts after "
+                + afterRawContactId + ", " + (end - start) + " ms");
+        return lastRawContactId;
     }
 
     /**
@@ -699,6 +923,10 @@ public abstract class AbstractContactAggregator {
             return;
         }
 
+        if (mMatchPrefetch != null) {
+            mMatchPrefetch.onContactChanged(contactId);
+        }
+
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         computeAggregateData(db, contactId, mContactUpdate);
         mContactUpdate.bindLong(ContactReplaceSqlStatement.CONTACT_ID, contactId);
@@ -708,6 +936,78 @@ public abstract class AbstractContactAggregator {
         updateAggregatedStatusUpdate(contactId);
     }
 
+    /**
+     * Same as {@link #updateAggregateData(TransactionContext, long)} for many contacts, e.g. the
+     * ones left behind by an account removal.  The raw contacts of a batch of contacts are read
+     * with one query ordered by contact and the aggregates are written back with the same
+     * prepared statement, instead of running a query per contact.
+     */
+    public final void updateAggregateData(TransactionContext txContext, Set<Long> contactIds) {
+        if (!mEnabled || contactIds.isEmpty()) {
+            return;
+        }
+
+        final long[] ids = new long[contactIds.size()];
+        int count = 0;
+        for (Long contactId : contactIds) {
+            ids[count++] = contactId;
+        }
+        Arrays.sort(ids);
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final StringBuilder sb = new StringBuilder();
+        for (int start = 0; start < count; start += AGGREGATE_DATA_BATCH_SIZE) {
+            final int end = Math.min(start + AGGREGATE_DATA_BATCH_SIZE, count);
+            sb.setLength(0);
+            sb.append(mRawContactsQueryByContactIds);
+            for (int i = start; i < end; i++) {
+                if (i != start) {
+                    sb.append(',');
+                }
+                sb.append(ids[i]);
+            }
+            sb.append(RawContactsQuery.SQL_ORDER_BY_CONTACT_ID);
+
+            int next = start;
+            Cursor c = db.rawQuery(sb.toString(), null);
+            try {
+                c.moveToFirst();
+                while (!c.isAfterLast()) {
+                    final long contactId = c.getLong(RawContactsQuery.CONTACT_ID);
+
+                    // Contacts without any raw contact left are not returned by the query.
+                    while (ids[next] != contactId) {
+                        computeAggregateData(db, ids[next], mContactUpdate);
+                        executeContactUpdate(ids[next++]);
+                    }
+                    next++;
+
+                    computeAggregateData(db, c, mContactUpdate);
+                    executeContactUpdate(contactId);
+                }
+            } finally {
+                c.close();
+            }
+            while (next < end) {
+                computeAggregateData(db, ids[next], mContactUpdate);
+                executeContactUpdate(ids[next++]);
+            }
+
+            for (int i = start; i < end; i++) {
+                mDbHelper.updateContactVisible(txContext, ids[i]);
+                updateAggregatedStatusUpdate(ids[i]);
+            }
+        }
+    }
+
+    private void executeContactUpdate(long contactId) {
+        if (mMatchPrefetch != null) {
+            mMatchPrefetch.onContactChanged(contactId);
+        }
+        mContactUpdate.bindLong(ContactReplaceSqlStatement.CONTACT_ID, contactId);
+        mContactUpdate.execute();
+    }
+
     protected final void updateAggregatedStatusUpdate(long contactId) {
         mAggregatedPresenceReplace.bindLong(1, contactId);
         mAggregatedPresenceReplace.bindLong(2, contactId);
@@ -821,37 +1121,86 @@ public abstract class AbstractContactAggregator {
      */
     protected final Set<Set<Long>> findConnectedRawContacts(SQLiteDatabase db, Set<Long>
             rawContactIdSet) {
-        // Connections between two raw contacts
-        final Multimap<Long, Long> matchingRawIdPairs = HashMultimap.create();
-        String rawContactIds = TextUtils.join(",", rawContactIdSet);
-        findIdPairs(db, buildExceptionMatchingSql(rawContactIds, rawContactIds),
-                matchingRawIdPairs);
-        findIdPairs(db, buildIdentityMatchingSql(rawContactIds, rawContactIds,
-                /* isIdentityMatching =*/ true, /* countOnly =*/false), matchingRawIdPairs);
-        findIdPairs(db, buildEmailMatchingSql(rawContactIds, rawContactIds, /* countOnly =*/false),
-                matchingRawIdPairs);
-        findIdPairs(db, buildPhoneMatchingSql(rawContactIds, rawContactIds,  /* countOnly =*/false),
-                matchingRawIdPairs);
+        final RawContactUnionFind components = new RawContactUnionFind(rawContactIdSet);
+        final String rawContactIds = TextUtils.join(",", rawContactIdSet);
+        prefetchAggregationExceptionIds(db);
+        if (mAggregationExceptions.hasExceptionWithin(rawContactIdSet,
+                AggregationExceptions.TYPE_KEEP_TOGETHER)) {
+            unionIdPairs(db, buildExceptionMatchingSql(rawContactIds, rawContactIds), components);
+        }
+
+        // Identities and email addresses match on equality, so sorting the rows by value is
+        // enough to find the connections, no need for a self-join.
+        if (components.getComponentCount() > 1) {
+            unionIdGroups(db, "SELECT " + Data.RAW_CONTACT_ID + ","
+                    + Identity.IDENTITY + "," + Identity.NAMESPACE
+                    + " FROM " + Tables.DATA
+                    + " WHERE " + DataColumns.MIMETYPE_ID + "=" + mMimeTypeIdIdentity
+                    + " AND " + Data.RAW_CONTACT_ID + " IN (" + rawContactIds + ")"
+                    + " AND " + Identity.IDENTITY + " NOT NULL"
+                    + " AND " + Identity.NAMESPACE + " NOT NULL"
+                    + " ORDER BY " + Identity.IDENTITY + "," + Identity.NAMESPACE, components);
+        }
+        if (components.getComponentCount() > 1) {
+            unionIdGroups(db, "SELECT " + Data.RAW_CONTACT_ID + "," + Email.ADDRESS
+                    + " FROM " + Tables.DATA
+                    + " WHERE " + DataColumns.MIMETYPE_ID + "=" + mMimeTypeIdEmail
+                    + " AND " + Data.RAW_CONTACT_ID + " IN (" + rawContactIds + ")"
+                    + " AND " + Email.ADDRESS + " NOT NULL"
+                    + " ORDER BY " + Email.ADDRESS, components);
+        }
+
+        // Phone numbers are compared with PHONE_NUMBERS_EQUAL, which is not an equivalence, so
+        // pairs are still needed. Each unordered pair is only needed once.
+        if (components.getComponentCount() > 1) {
+            unionIdPairs(db, buildPhoneMatchingSql(rawContactIds, rawContactIds,
+                    /* countOnly =*/false)
+                    + " AND d1." + Data.RAW_CONTACT_ID + "<d2." + Data.RAW_CONTACT_ID, components);
+        }
+
+        return components.getComponents();
+    }
 
-        return ContactAggregatorHelper.findConnectedComponents(rawContactIdSet, matchingRawIdPairs);
+    /**
+     * Given a query which will return two non-null IDs in the first two columns as results,
+     * connects the two raw contacts of each row.
+     */
+    protected final void unionIdPairs(SQLiteDatabase db, String query,
+            RawContactUnionFind components) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                components.union(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
-     * Given a query which will return two non-null IDs in the first two columns as results, this
-     * method will put two entries into the given result map for each pair of different IDs, one
-     * keyed by each ID.
+     * Given a query which will return a raw contact ID in the first column and a key in the
+     * remaining columns, sorted by key, connects all the raw contacts that have the same key.
      */
-    protected final void findIdPairs(SQLiteDatabase db, String query,
-            Multimap<Long, Long> results) {
+    private void unionIdGroups(SQLiteDatabase db, String query, RawContactUnionFind components) {
         Cursor cursor = db.rawQuery(query, null);
         try {
-            cursor.moveToPosition(-1);
+            final int keyColumnCount = cursor.getColumnCount() - 1;
+            final String[] groupKey = new String[keyColumnCount];
+            long groupRawContactId = -1;
             while (cursor.moveToNext()) {
-                long idA = cursor.getLong(0);
-                long idB = cursor.getLong(1);
-                if (idA != idB) {
-                    results.put(idA, idB);
-                    results.put(idB, idA);
+                final long rawContactId = cursor.getLong(0);
+                boolean sameKey = groupRawContactId != -1;
+                for (int i = 0; i < keyColumnCount; i++) {
+                    final String key = cursor.getString(i + 1);
+                    if (sameKey && !key.equals(groupKey[i])) {
+                        sameKey = false;
+                    }
+                    groupKey[i] = key;
+                }
+                if (sameKey) {
+                    components.union(groupRawContactId, rawContactId);
+                } else {
+                    groupRawContactId = rawContactId;
                 }
             }
         } finally {
@@ -896,6 +1245,9 @@ public abstract class AbstractContactAggregator {
      * Updates the contact ID for the specified contact.
      */
     protected final void setContactId(long rawContactId, long contactId) {
+        if (mMatchPrefetch != null) {
+            mMatchPrefetch.onRawContactChanged(rawContactId);
+        }
         mContactIdUpdate.bindLong(1, contactId);
         mContactIdUpdate.bindLong(2, rawContactId);
         mContactIdUpdate.execute();
@@ -917,6 +1269,9 @@ public abstract class AbstractContactAggregator {
      * Updates the contact ID for the specified contact and marks the raw contact as aggregated.
      */
     private void setContactIdAndMarkAggregated(long rawContactId, long contactId) {
+        if (mMatchPrefetch != null) {
+            mMatchPrefetch.onRawContactChanged(rawContactId);
+        }
         mContactIdAndMarkAggregatedUpdate.bindLong(1, contactId);
         mContactIdAndMarkAggregatedUpdate.bindLong(2, rawContactId);
         mContactIdAndMarkAggregatedUpdate.execute();
@@ -939,28 +1294,66 @@ public abstract class AbstractContactAggregator {
         String[] COLUMNS = {
                 AggregationExceptions.RAW_CONTACT_ID1,
                 AggregationExceptions.RAW_CONTACT_ID2,
+                AggregationExceptions.TYPE,
         };
 
         int RAW_CONTACT_ID1 = 0;
         int RAW_CONTACT_ID2 = 1;
+        int TYPE = 2;
     }
 
-    // A set of raw contact IDs for which there are aggregation exceptions
-    protected final HashSet<Long> mAggregationExceptionIds = new HashSet<Long>();
-    protected boolean mAggregationExceptionIdsValid;
+    // Aggregation exceptions, loaded on first use and then updated in place
+    protected final AggregationExceptionCache mAggregationExceptions =
+            new AggregationExceptionCache();
 
+    // Scored aggregation suggestions, dropped whenever the database may have changed
+    private final AggregationSuggestionCache mAggregationSuggestions =
+            new AggregationSuggestionCache();
+
+    /**
+     * Forces the aggregation exceptions to be reloaded from the database the next time they are
+     * needed, e.g. after a rollback.
+     */
     public final void invalidateAggregationExceptionCache() {
-        mAggregationExceptionIdsValid = false;
+        mAggregationExceptions.invalidate();
     }
 
     /**
-     * Finds all raw contact IDs for which there are aggregation exceptions. The list of
-     * ids is used as an optimization in aggregation: there is no point to run a query against
-     * the agg_exceptions table if it is known that there are no records there for a given
-     * raw contact ID.
+     * Updates the cached aggregation exceptions after an exception was added, replaced or, for
+     * {@link AggregationExceptions#TYPE_AUTOMATIC}, removed.
+     */
+    public final void onAggregationExceptionChanged(long rawContactId1, long rawContactId2,
+            int type) {
+        if (!mAggregationExceptions.isValid()) {
+            return;
+        }
+        if (type == AggregationExceptions.TYPE_AUTOMATIC) {
+            mAggregationExceptions.remove(rawContactId1, rawContactId2);
+        } else {
+            mAggregationExceptions.put(rawContactId1, rawContactId2, type);
+        }
+    }
+
+    /**
+     * Updates the cached aggregation exceptions after a raw contact row was deleted, which
+     * deletes its exceptions as well.
+     */
+    public final void onRawContactDeleted(long rawContactId) {
+        if (mAggregationExceptions.isValid()) {
+            mAggregationExceptions.removeRawContact(rawContactId);
+        }
+    }
+
+    /**
+     * Loads all the aggregation exceptions unless they are already cached. They are used as an
+     * optimization in aggregation: there is no point to run a query against the agg_exceptions
+     * table if it is known that there are no records there for the given raw contact IDs.
      */
     protected final void prefetchAggregationExceptionIds(SQLiteDatabase db) {
-        mAggregationExceptionIds.clear();
+        if (mAggregationExceptions.isValid()) {
+            return;
+        }
+        mAggregationExceptions.startLoading();
         final Cursor c = db.query(AggregateExceptionPrefetchQuery.TABLE,
                 AggregateExceptionPrefetchQuery.COLUMNS,
                 null, null, null, null, null);
@@ -969,14 +1362,14 @@ public abstract class AbstractContactAggregator {
             while (c.moveToNext()) {
                 long rawContactId1 = c.getLong(AggregateExceptionPrefetchQuery.RAW_CONTACT_ID1);
                 long rawContactId2 = c.getLong(AggregateExceptionPrefetchQuery.RAW_CONTACT_ID2);
-                mAggregationExceptionIds.add(rawContactId1);
-                mAggregationExceptionIds.add(rawContactId2);
+                int type = c.getInt(AggregateExceptionPrefetchQuery.TYPE);
+                mAggregationExceptions.put(rawContactId1, rawContactId2, type);
             }
         } finally {
             c.close();
         }
 
-        mAggregationExceptionIdsValid = true;
+        mAggregationExceptions.finishLoading();
     }
 
     protected interface NameLookupQuery {
@@ -1226,9 +1619,11 @@ public abstract class AbstractContactAggregator {
 
         try {
             while (c.moveToNext()) {
-                Long contactId = c.getLong(ContactNameLookupQuery.CONTACT_ID);
+                long contactId = c.getLong(ContactNameLookupQuery.CONTACT_ID);
                 String name = c.getString(ContactNameLookupQuery.NORMALIZED_NAME);
                 int nameType = c.getInt(ContactNameLookupQuery.NAME_TYPE);
+                byte[] decodedName = algorithm == ContactMatcher.MATCHING_ALGORITHM_EXACT
+                        ? null : decodeNormalizedName(name);
 
                 // Note the N^2 complexity of the following fragment. This is not a huge concern
                 // since the number of candidates is very small and in general secondary hits
@@ -1236,7 +1631,8 @@ public abstract class AbstractContactAggregator {
                 for (int i = 0; i < candidates.mCount; i++) {
                     NameMatchCandidate candidate = candidates.mList.get(i);
                     matcher.matchName(contactId, candidate.mLookupType, candidate.mName,
-                            nameType, name, algorithm);
+                            decodedName == null ? null : candidate.getDecodedName(),
+                            nameType, name, decodedName, algorithm);
                 }
             }
         } finally {
@@ -1271,7 +1667,8 @@ public abstract class AbstractContactAggregator {
                         + DataColumns.CONCRETE_MIMETYPE_ID + ","
                         + Data.IS_SUPER_PRIMARY + ","
                         + Photo.PHOTO_FILE_ID + ","
-                        + SQL_FORMAT_HAS_SUPER_PRIMARY_NAME +
+                        + SQL_FORMAT_HAS_SUPER_PRIMARY_NAME + ","
+                        + RawContactsColumns.CONCRETE_CONTACT_ID +
                 " FROM " + Tables.RAW_CONTACTS +
                 " JOIN " + Tables.ACCOUNTS + " ON ("
                     + AccountsColumns.CONCRETE_ID + "=" + RawContactsColumns.CONCRETE_ACCOUNT_ID
@@ -1290,6 +1687,17 @@ public abstract class AbstractContactAggregator {
                 " WHERE " + RawContacts.CONTACT_ID + "=?"
                 + " AND " + RawContacts.DELETED + "=0";
 
+        // Followed by a comma separated list of contact IDs and SQL_ORDER_BY_CONTACT_ID.  The
+        // rows are returned in the order in which the single contact query would scan them.
+        String SQL_FORMAT_BY_CONTACT_IDS = SQL_FORMAT +
+                " WHERE " + RawContacts.DELETED + "=0"
+                + " AND " + RawContacts.CONTACT_ID + " IN (";
+
+        String SQL_ORDER_BY_CONTACT_ID = ")" +
+                " ORDER BY " + RawContactsColumns.CONCRETE_CONTACT_ID
+                + "," + RawContactsColumns.CONCRETE_ID
+                + "," + DataColumns.CONCRETE_ID;
+
         int RAW_CONTACT_ID = 0;
         int DISPLAY_NAME = 1;
         int DISPLAY_NAME_SOURCE = 2;
@@ -1308,6 +1716,7 @@ public abstract class AbstractContactAggregator {
         int IS_SUPER_PRIMARY = 15;
         int PHOTO_FILE_ID = 16;
         int HAS_SUPER_PRIMARY_NAME = 17;
+        int CONTACT_ID = 18;
     }
 
     protected interface ContactReplaceSqlStatement {
@@ -1384,6 +1793,22 @@ public abstract class AbstractContactAggregator {
      */
     protected final void computeAggregateData(final SQLiteDatabase db, String sql, String[] sqlArgs,
             SQLiteStatement statement) {
+        Cursor c = db.rawQuery(sql, sqlArgs);
+        try {
+            c.moveToFirst();
+            computeAggregateData(db, c, statement);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Computes aggregate-level data from the rows of {@link RawContactsQuery} for one contact,
+     * starting at the current position of the cursor.  Leaves the cursor on the first row of the
+     * next contact, or after the last row.
+     */
+    private void computeAggregateData(final SQLiteDatabase db, Cursor c,
+            SQLiteStatement statement) {
         long currentRawContactId = -1;
         long bestPhotoId = -1;
         long bestPhotoFileId = 0;
@@ -1402,102 +1827,99 @@ public abstract class AbstractContactAggregator {
 
         mDisplayNameCandidate.clear();
 
-        Cursor c = db.rawQuery(sql, sqlArgs);
-        try {
-            while (c.moveToNext()) {
-                long rawContactId = c.getLong(RawContactsQuery.RAW_CONTACT_ID);
-                if (rawContactId != currentRawContactId) {
-                    currentRawContactId = rawContactId;
-                    totalRowCount++;
-
-                    // Assemble sub-account.
-                    String accountType = c.getString(RawContactsQuery.ACCOUNT_TYPE);
-                    String dataSet = c.getString(RawContactsQuery.DATA_SET);
-                    String accountWithDataSet = (!TextUtils.isEmpty(dataSet))
-                            ? accountType + "/" + dataSet
-                            : accountType;
-
-                    // Display name
-                    String displayName = c.getString(RawContactsQuery.DISPLAY_NAME);
-                    int displayNameSource = c.getInt(RawContactsQuery.DISPLAY_NAME_SOURCE);
-                    int isNameSuperPrimary = c.getInt(RawContactsQuery.HAS_SUPER_PRIMARY_NAME);
-                    processDisplayNameCandidate(rawContactId, displayName, displayNameSource,
-                            mContactsProvider.isWritableAccountWithDataSet(accountWithDataSet),
-                            isNameSuperPrimary != 0);
-
-                    // Contact options
-                    if (!c.isNull(RawContactsQuery.SEND_TO_VOICEMAIL)) {
-                        boolean sendToVoicemail =
-                                (c.getInt(RawContactsQuery.SEND_TO_VOICEMAIL) != 0);
-                        if (sendToVoicemail) {
-                            contactSendToVoicemail++;
-                        }
-                    }
+        final long contactId = c.isAfterLast() ? 0 : c.getLong(RawContactsQuery.CONTACT_ID);
+        for (; !c.isAfterLast() && c.getLong(RawContactsQuery.CONTACT_ID) == contactId;
+                c.moveToNext()) {
+            long rawContactId = c.getLong(RawContactsQuery.RAW_CONTACT_ID);
+            if (rawContactId != currentRawContactId) {
+                currentRawContactId = rawContactId;
+                totalRowCount++;
+
+                // Assemble sub-account.
+                String accountType = c.getString(RawContactsQuery.ACCOUNT_TYPE);
+                String dataSet = c.getString(RawContactsQuery.DATA_SET);
+                String accountWithDataSet = (!TextUtils.isEmpty(dataSet))
+                        ? accountType + "/" + dataSet
+                        : accountType;
+
+                // Display name
+                String displayName = c.getString(RawContactsQuery.DISPLAY_NAME);
+                int displayNameSource = c.getInt(RawContactsQuery.DISPLAY_NAME_SOURCE);
+                int isNameSuperPrimary = c.getInt(RawContactsQuery.HAS_SUPER_PRIMARY_NAME);
+                processDisplayNameCandidate(rawContactId, displayName, displayNameSource,
+                        mContactsProvider.isWritableAccountWithDataSet(accountWithDataSet),
+                        isNameSuperPrimary != 0);
 
-                    if (contactCustomRingtone == null
-                            && !c.isNull(RawContactsQuery.CUSTOM_RINGTONE)) {
-                        contactCustomRingtone = c.getString(RawContactsQuery.CUSTOM_RINGTONE);
+                // Contact options
+                if (!c.isNull(RawContactsQuery.SEND_TO_VOICEMAIL)) {
+                    boolean sendToVoicemail =
+                            (c.getInt(RawContactsQuery.SEND_TO_VOICEMAIL) != 0);
+                    if (sendToVoicemail) {
+                        contactSendToVoicemail++;
                     }
+                }
 
-                    long lastTimeContacted = c.getLong(RawContactsQuery.LAST_TIME_CONTACTED);
-                    if (lastTimeContacted > contactLastTimeContacted) {
-                        contactLastTimeContacted = lastTimeContacted;
-                    }
+                if (contactCustomRingtone == null
+                        && !c.isNull(RawContactsQuery.CUSTOM_RINGTONE)) {
+                    contactCustomRingtone = c.getString(RawContactsQuery.CUSTOM_RINGTONE);
+                }
 
-                    int timesContacted = c.getInt(RawContactsQuery.TIMES_CONTACTED);
-                    if (timesContacted > contactTimesContacted) {
-                        contactTimesContacted = timesContacted;
-                    }
+                long lastTimeContacted = c.getLong(RawContactsQuery.LAST_TIME_CONTACTED);
+                if (lastTimeContacted > contactLastTimeContacted) {
+                    contactLastTimeContacted = lastTimeContacted;
+                }
 
-                    if (c.getInt(RawContactsQuery.STARRED) != 0) {
-                        contactStarred = 1;
-                    }
+                int timesContacted = c.getInt(RawContactsQuery.TIMES_CONTACTED);
+                if (timesContacted > contactTimesContacted) {
+                    contactTimesContacted = timesContacted;
+                }
 
-                    // contactPinned should be the lowest value of its constituent raw contacts,
-                    // excluding negative integers
-                    final int rawContactPinned = c.getInt(RawContactsQuery.PINNED);
-                    if (rawContactPinned > PinnedPositions.UNPINNED) {
-                        contactPinned = Math.min(contactPinned, rawContactPinned);
-                    }
+                if (c.getInt(RawContactsQuery.STARRED) != 0) {
+                    contactStarred = 1;
+                }
 
-                    appendLookupKey(
-                            lookupKey,
-                            accountWithDataSet,
-                            c.getString(RawContactsQuery.ACCOUNT_NAME),
-                            rawContactId,
-                            c.getString(RawContactsQuery.SOURCE_ID),
-                            displayName);
+                // contactPinned should be the lowest value of its constituent raw contacts,
+                // excluding negative integers
+                final int rawContactPinned = c.getInt(RawContactsQuery.PINNED);
+                if (rawContactPinned > PinnedPositions.UNPINNED) {
+                    contactPinned = Math.min(contactPinned, rawContactPinned);
                 }
 
-                if (!c.isNull(RawContactsQuery.DATA_ID)) {
-                    long dataId = c.getLong(RawContactsQuery.DATA_ID);
-                    long photoFileId = c.getLong(RawContactsQuery.PHOTO_FILE_ID);
-                    int mimetypeId = c.getInt(RawContactsQuery.MIMETYPE_ID);
-                    boolean superPrimary = c.getInt(RawContactsQuery.IS_SUPER_PRIMARY) != 0;
-                    if (mimetypeId == mMimeTypeIdPhoto) {
-                        if (!foundSuperPrimaryPhoto) {
-                            // Lookup the metadata for the photo, if available.  Note that data set
-                            // does not come into play here, since accounts are looked up in the
-                            // account manager in the priority resolver.
-                            PhotoEntry photoEntry = getPhotoMetadata(db, photoFileId);
-                            String accountType = c.getString(RawContactsQuery.ACCOUNT_TYPE);
-                            int priority = mPhotoPriorityResolver.getPhotoPriority(accountType);
-                            if (superPrimary || hasHigherPhotoPriority(
-                                    photoEntry, priority, bestPhotoEntry, photoPriority)) {
-                                bestPhotoEntry = photoEntry;
-                                photoPriority = priority;
-                                bestPhotoId = dataId;
-                                bestPhotoFileId = photoFileId;
-                                foundSuperPrimaryPhoto |= superPrimary;
-                            }
+                appendLookupKey(
+                        lookupKey,
+                        accountWithDataSet,
+                        c.getString(RawContactsQuery.ACCOUNT_NAME),
+                        rawContactId,
+                        c.getString(RawContactsQuery.SOURCE_ID),
+                        displayName);
+            }
+
+            if (!c.isNull(RawContactsQuery.DATA_ID)) {
+                long dataId = c.getLong(RawContactsQuery.DATA_ID);
+                long photoFileId = c.getLong(RawContactsQuery.PHOTO_FILE_ID);
+                int mimetypeId = c.getInt(RawContactsQuery.MIMETYPE_ID);
+                boolean superPrimary = c.getInt(RawContactsQuery.IS_SUPER_PRIMARY) != 0;
+                if (mimetypeId == mMimeTypeIdPhoto) {
+                    if (!foundSuperPrimaryPhoto) {
+                        // Lookup the metadata for the photo, if available.  Note that data set
+                        // does not come into play here, since accounts are looked up in the
+                        // account manager in the priority resolver.
+                        PhotoEntry photoEntry = getPhotoMetadata(db, photoFileId);
+                        String accountType = c.getString(RawContactsQuery.ACCOUNT_TYPE);
+                        int priority = mPhotoPriorityResolver.getPhotoPriority(accountType);
+                        if (superPrimary || hasHigherPhotoPriority(
+                                photoEntry, priority, bestPhotoEntry, photoPriority)) {
+                            bestPhotoEntry = photoEntry;
+                            photoPriority = priority;
+                            bestPhotoId = dataId;
+                            bestPhotoFileId = photoFileId;
+                            foundSuperPrimaryPhoto |= superPrimary;
                         }
-                    } else if (mimetypeId == mMimeTypeIdPhone) {
-                        hasPhoneNumber = 1;
                     }
+                } else if (mimetypeId == mMimeTypeIdPhone) {
+                    hasPhoneNumber = 1;
                 }
             }
-        } finally {
-            c.close();
         }
 
         if (contactPinned == Integer.MAX_VALUE) {
@@ -1942,6 +2364,14 @@ public abstract class AbstractContactAggregator {
         mPinnedUpdate.execute();
     }
 
+    /**
+     * Drops the cached aggregation suggestions.  Must be called whenever the database may have
+     * changed, including after the changes have been committed.
+     */
+    public final void invalidateAggregationSuggestions() {
+        mAggregationSuggestions.invalidate();
+    }
+
     /**
      * Finds matching contacts and returns a cursor on those.
      */
@@ -1949,25 +2379,58 @@ public abstract class AbstractContactAggregator {
             String[] projection, long contactId, int maxSuggestions, String filter,
             ArrayList<AggregationSuggestionParameter> parameters) {
         final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+
+        // Inside of a write transaction the caller may see uncommitted changes that other
+        // threads cannot, so neither use nor fill the cache.
+        final boolean useCache = !db.inTransaction();
+        final String cacheKey = getAggregationSuggestionCacheKey(contactId, parameters);
+        final long generation = mAggregationSuggestions.getGeneration();
+        long[] contactIds = useCache ? mAggregationSuggestions.get(cacheKey) : null;
+
         db.beginTransaction();
         try {
-            List<MatchScore> bestMatches = findMatchingContacts(db, contactId, parameters);
-            List<MatchScore> bestMatchesWithoutDuplicateContactIds = new ArrayList<>();
-            Set<Long> contactIds = new HashSet<>();
-            for (MatchScore bestMatch : bestMatches) {
-                long cid = bestMatch.getContactId();
-                if (!contactIds.contains(cid) && cid != contactId) {
-                    bestMatchesWithoutDuplicateContactIds.add(bestMatch);
-                    contactIds.add(cid);
+            if (contactIds == null) {
+                List<MatchScore> bestMatches = findMatchingContacts(db, contactId, parameters);
+                contactIds = getSuggestedContactIds(bestMatches, contactId);
+                if (useCache) {
+                    mAggregationSuggestions.put(cacheKey, generation, contactIds);
                 }
             }
-            return queryMatchingContacts(qb, db, projection, bestMatchesWithoutDuplicateContactIds,
-                    maxSuggestions, filter);
+            return queryMatchingContacts(qb, db, projection, contactIds, maxSuggestions, filter);
         } finally {
             db.endTransaction();
         }
     }
 
+    private static String getAggregationSuggestionCacheKey(long contactId,
+            ArrayList<AggregationSuggestionParameter> parameters) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(contactId);
+        if (parameters != null) {
+            for (AggregationSuggestionParameter parameter : parameters) {
+                sb.append('\0').append(parameter.kind).append('\0').append(parameter.value);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the IDs of the matching contacts in the order of the match scores, without
+     * duplicates and without the contact itself.
+     */
+    private static long[] getSuggestedContactIds(List<MatchScore> bestMatches, long contactId) {
+        long[] contactIds = new long[bestMatches.size()];
+        int count = 0;
+        Set<Long> seenContactIds = new HashSet<>();
+        for (MatchScore bestMatch : bestMatches) {
+            long cid = bestMatch.getContactId();
+            if (cid != contactId && seenContactIds.add(cid)) {
+                contactIds[count++] = cid;
+            }
+        }
+        return Arrays.copyOf(contactIds, count);
+    }
+
     private interface ContactIdQuery {
         String[] COLUMNS = new String[] {
             Contacts._ID
@@ -1978,19 +2441,18 @@ public abstract class AbstractContactAggregator {
 
     /**
      * Loads contacts with specified IDs and returns them in the order of IDs in the
-     * supplied list.
+     * supplied array.
      */
     private Cursor queryMatchingContacts(SQLiteQueryBuilder qb, SQLiteDatabase db,
-            String[] projection, List<MatchScore> bestMatches, int maxSuggestions, String filter) {
+            String[] projection, long[] bestMatches, int maxSuggestions, String filter) {
         StringBuilder sb = new StringBuilder();
         sb.append(Contacts._ID);
         sb.append(" IN (");
-        for (int i = 0; i < bestMatches.size(); i++) {
-            MatchScore matchScore = bestMatches.get(i);
+        for (int i = 0; i < bestMatches.length; i++) {
             if (i != 0) {
                 sb.append(",");
             }
-            sb.append(matchScore.getContactId());
+            sb.append(bestMatches[i]);
         }
         sb.append(")");
 
@@ -2011,33 +2473,24 @@ public abstract class AbstractContactAggregator {
             cursor.close();
         }
 
-        // Exclude all contacts that did not match the filter
-        Iterator<MatchScore> iter = bestMatches.iterator();
-        while (iter.hasNext()) {
-            long id = iter.next().getContactId();
-            if (!foundIds.contains(id)) {
-                iter.remove();
+        // Exclude all contacts that did not match the filter, and limit the number of returned
+        // suggestions
+        final ArrayList<Long> limitedMatches = new ArrayList<Long>();
+        for (int i = 0; i < bestMatches.length && limitedMatches.size() < maxSuggestions; i++) {
+            if (foundIds.contains(bestMatches[i])) {
+                limitedMatches.add(bestMatches[i]);
             }
         }
 
-        // Limit the number of returned suggestions
-        final List<MatchScore> limitedMatches;
-        if (bestMatches.size() > maxSuggestions) {
-            limitedMatches = bestMatches.subList(0, maxSuggestions);
-        } else {
-            limitedMatches = bestMatches;
-        }
-
         // Build an in-clause with the remaining contact IDs
         sb.setLength(0);
         sb.append(Contacts._ID);
         sb.append(" IN (");
         for (int i = 0; i < limitedMatches.size(); i++) {
-            MatchScore matchScore = limitedMatches.get(i);
             if (i != 0) {
                 sb.append(",");
             }
-            sb.append(matchScore.getContactId());
+            sb.append(limitedMatches.get(i));
         }
         sb.append(")");
 
@@ -2045,18 +2498,13 @@ public abstract class AbstractContactAggregator {
         cursor = qb.query(db, projection, sb.toString(), null, null, null, Contacts._ID);
 
         // Build a sorted list of discovered IDs
-        ArrayList<Long> sortedContactIds = new ArrayList<Long>(limitedMatches.size());
-        for (MatchScore matchScore : limitedMatches) {
-            sortedContactIds.add(matchScore.getContactId());
-        }
-
+        ArrayList<Long> sortedContactIds = new ArrayList<Long>(limitedMatches);
         Collections.sort(sortedContactIds);
 
         // Map cursor indexes according to the descending order of match scores
         int[] positionMap = new int[limitedMatches.size()];
         for (int i = 0; i < positionMap.length; i++) {
-            long id = limitedMatches.get(i).getContactId();
-            positionMap[i] = sortedContactIds.indexOf(id);
+            positionMap[i] = sortedContactIds.indexOf(limitedMatches.get(i));
         }
 
         return new ReorderingCursorWrapper(cursor, positionMap);
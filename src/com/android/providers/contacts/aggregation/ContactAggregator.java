@@ -549,13 +549,11 @@ public class ContactAggregator extends AbstractContactAggregator {
      */
     private long pickBestMatchBasedOnExceptions(SQLiteDatabase db, long rawContactId,
             ContactMatcher matcher) {
-        if (!mAggregationExceptionIdsValid) {
-            prefetchAggregationExceptionIds(db);
-        }
+        prefetchAggregationExceptionIds(db);
 
         // If there are no aggregation exceptions involving this raw contact, there is no need to
         // run a query and we can just return -1, which stands for "nothing found"
-        if (!mAggregationExceptionIds.contains(rawContactId)) {
+        if (!mAggregationExceptions.contains(rawContactId)) {
             return -1;
         }
 
@@ -821,25 +819,12 @@ public class ContactAggregator extends AbstractContactAggregator {
      */
     private void lookupApproximateNameMatches(SQLiteDatabase db, MatchCandidateList candidates,
             ContactMatcher matcher) {
-        HashSet<String> firstLetters = new HashSet<String>();
-        for (int i = 0; i < candidates.mCount; i++) {
-            final NameMatchCandidate candidate = candidates.mList.get(i);
-            if (candidate.mName.length() >= 2) {
-                String firstLetter = candidate.mName.substring(0, 2);
-                if (!firstLetters.contains(firstLetter)) {
-                    firstLetters.add(firstLetter);
-                    final String selection = "(" + NameLookupColumns.NORMALIZED_NAME + " GLOB '"
-                            + firstLetter + "*') AND "
-                            + "(" + NameLookupColumns.NAME_TYPE + " IN("
-                                    + NameLookupType.NAME_COLLATION_KEY + ","
-                                    + NameLookupType.EMAIL_BASED_NICKNAME + ","
-                                    + NameLookupType.NICKNAME + ")) AND "
-                            + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
-                    matchAllCandidates(db, selection, candidates, matcher,
-                            ContactMatcher.MATCHING_ALGORITHM_APPROXIMATE,
-                            String.valueOf(FIRST_LETTER_SUGGESTION_HIT_LIMIT));
-                }
-            }
+        final Cursor c = queryApproximateNameLookup(db, candidates);
+        if (c != null) {
+            matchAllCandidates(c, ApproximateNameLookupQuery.CONTACT_ID,
+                    ApproximateNameLookupQuery.NORMALIZED_NAME,
+                    ApproximateNameLookupQuery.NAME_TYPE, candidates, matcher,
+                    ContactMatcher.MATCHING_ALGORITHM_APPROXIMATE);
         }
     }
 
@@ -863,14 +848,25 @@ public class ContactAggregator extends AbstractContactAggregator {
      */
     private void matchAllCandidates(SQLiteDatabase db, String selection,
             MatchCandidateList candidates, ContactMatcher matcher, int algorithm, String limit) {
-        final Cursor c = db.query(ContactNameLookupQuery.TABLE, ContactNameLookupQuery.COLUMNS,
-                selection, null, null, null, null, limit);
+        matchAllCandidates(db.query(ContactNameLookupQuery.TABLE, ContactNameLookupQuery.COLUMNS,
+                selection, null, null, null, null, limit), ContactNameLookupQuery.CONTACT_ID,
+                ContactNameLookupQuery.NORMALIZED_NAME, ContactNameLookupQuery.NAME_TYPE,
+                candidates, matcher, algorithm);
+    }
 
+    /**
+     * Same as above, for a cursor with the given columns.  Closes the cursor.
+     */
+    private void matchAllCandidates(Cursor c, int contactIdColumn, int nameColumn,
+            int nameTypeColumn, MatchCandidateList candidates, ContactMatcher matcher,
+            int algorithm) {
         try {
             while (c.moveToNext()) {
-                Long contactId = c.getLong(ContactNameLookupQuery.CONTACT_ID);
-                String name = c.getString(ContactNameLookupQuery.NORMALIZED_NAME);
-                int nameType = c.getInt(ContactNameLookupQuery.NAME_TYPE);
+                long contactId = c.getLong(contactIdColumn);
+                String name = c.getString(nameColumn);
+                int nameType = c.getInt(nameTypeColumn);
+                byte[] decodedName = algorithm == ContactMatcher.MATCHING_ALGORITHM_EXACT
+                        ? null : decodeNormalizedName(name);
 
                 // Note the N^2 complexity of the following fragment. This is not a huge concern
                 // since the number of candidates is very small and in general secondary hits
@@ -878,7 +874,8 @@ public class ContactAggregator extends AbstractContactAggregator {
                 for (int i = 0; i < candidates.mCount; i++) {
                     NameMatchCandidate candidate = candidates.mList.get(i);
                     matcher.matchName(contactId, candidate.mLookupType, candidate.mName,
-                            nameType, name, algorithm);
+                            decodedName == null ? null : candidate.getDecodedName(),
+                            nameType, name, decodedName, algorithm);
                 }
             }
         } finally {
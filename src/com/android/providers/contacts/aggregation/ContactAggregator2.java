@@ -48,10 +48,9 @@ import com.android.providers.contacts.aggregation.util.ContactAggregatorHelper;
 import com.android.providers.contacts.aggregation.util.MatchScore;
 import com.android.providers.contacts.aggregation.util.RawContactMatcher;
 import com.android.providers.contacts.aggregation.util.RawContactMatchingCandidates;
+import com.android.providers.contacts.aggregation.util.RawContactUnionFind;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.google.android.collect.Sets;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -71,6 +70,13 @@ public class ContactAggregator2 extends AbstractContactAggregator {
     private static final int KEEP_INTACT = 0;
     private static final int RE_AGGREGATE = -1;
 
+    // Aggregation passes with fewer raw contacts than this don't use the bulk lookup phase.
+    private static final int MIN_PREFETCH_BATCH_SIZE = 2;
+
+    // Raw contacts sharing a name with more raw contacts than this are left to the regular
+    // lookup, so that the bulk lookup phase doesn't hold on to large neighbor lists.
+    private static final int PREFETCH_NEIGHBOR_LIMIT = 2 * AGGREGATION_CONTACT_SIZE_LIMIT;
+
     private final RawContactMatcher mMatcher = new RawContactMatcher();
 
     /**
@@ -115,8 +121,9 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         if (aggregationMode == RawContacts.AGGREGATION_MODE_DEFAULT) {
             // If this is a newly inserted contact or a visible contact, look for
             // data matches.
-            if (currentContactId == 0
-                    || mDbHelper.isContactInDefaultDirectory(db, currentContactId)) {
+            if ((currentContactId == 0
+                    || mDbHelper.isContactInDefaultDirectory(db, currentContactId))
+                    && (mMatchPrefetch == null || !mMatchPrefetch.isUnmatched(rawContactId))) {
                 // Find the set of matching candidates
                 matchingCandidates = findRawContactMatchingCandidates(db, rawContactId, candidates,
                         matcher);
@@ -202,6 +209,116 @@ public class ContactAggregator2 extends AbstractContactAggregator {
             cursor.close();
         }
     }
+    /**
+     * Runs the name lookup of {@link #updateMatchScores} for all the given raw contacts in a
+     * single query, and records the ones that don't match any raw contact. Raw contacts which
+     * the bulk query can't decide on (aggregation exceptions, no structured name, too many hits)
+     * are left out and go through the regular lookup.
+     */
+    @Override
+    protected RawContactMatchPrefetch prefetchMatches(SQLiteDatabase db, long[] rawContactIds,
+            int count) {
+        if (count < MIN_PREFETCH_BATCH_SIZE) {
+            return null;
+        }
+        prefetchAggregationExceptionIds(db);
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(rawContactIds[i]);
+        }
+        final String rawContactIdList = sb.toString();
+
+        final Set<Long> namedRawContactIds = new HashSet<>();
+        Cursor c = db.query(NamedRawContactsQuery.TABLE, NamedRawContactsQuery.COLUMNS,
+                NamedRawContactsQuery.SELECTION + " AND " + NameLookupColumns.RAW_CONTACT_ID
+                        + " IN (" + rawContactIdList + ")", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                namedRawContactIds.add(c.getLong(NamedRawContactsQuery.RAW_CONTACT_ID));
+            }
+        } finally {
+            c.close();
+        }
+
+        final RawContactMatchPrefetch prefetch = new RawContactMatchPrefetch();
+        final RawContactMatcher matcher = new RawContactMatcher();
+        final ArrayList<Long> neighbors = new ArrayList<>();
+        long currentRawContactId = -1;
+        int visibleCount = 0;
+        c = db.query(NameLookupPrefetchQuery.TABLE, NameLookupPrefetchQuery.COLUMNS,
+                NameLookupPrefetchQuery.SELECTION + " IN (" + rawContactIdList + ")",
+                null, null, null, NameLookupPrefetchQuery.ORDER_BY);
+        try {
+            while (true) {
+                final boolean hasNext = c.moveToNext();
+                final long rawContactId = hasNext
+                        ? c.getLong(NameLookupPrefetchQuery.RAW_CONTACT_ID_A) : -1;
+                if (rawContactId != currentRawContactId) {
+                    if (currentRawContactId != -1
+                            && namedRawContactIds.contains(currentRawContactId)
+                            && !mAggregationExceptions.contains(currentRawContactId)
+                            && visibleCount <= PRIMARY_HIT_LIMIT
+                            && neighbors.size() <= 2 * PREFETCH_NEIGHBOR_LIMIT
+                            && matcher.pickBestMatches().isEmpty()) {
+                        final long[] neighborIds = new long[neighbors.size()];
+                        for (int i = 0; i < neighborIds.length; i++) {
+                            neighborIds[i] = neighbors.get(i);
+                        }
+                        prefetch.addUnmatched(currentRawContactId, neighborIds);
+                    }
+                    if (!hasNext) {
+                        break;
+                    }
+                    currentRawContactId = rawContactId;
+                    visibleCount = 0;
+                    neighbors.clear();
+                    matcher.clear();
+                }
+
+                // Mirrors updateMatchScoresBasedOnNameMatches(), whose query only returns rows of
+                // visible contacts and applies PRIMARY_HIT_LIMIT before skipping the raw contact
+                // itself.
+                final long rId = c.getLong(NameLookupPrefetchQuery.RAW_CONTACT_ID);
+                final long contactId = c.getLong(NameLookupPrefetchQuery.CONTACT_ID);
+                final boolean visible = c.getInt(NameLookupPrefetchQuery.IN_DEFAULT_DIRECTORY) != 0;
+                if (visible) {
+                    visibleCount++;
+                }
+                // The raw contact's own rows count towards the hit limit as well, so its own
+                // contact is tracked like the neighbors'.
+                if (neighbors.size() <= 2 * PREFETCH_NEIGHBOR_LIMIT) {
+                    neighbors.add(rId);
+                    neighbors.add(contactId);
+                }
+                if (rId == rawContactId || !visible) {
+                    continue;
+                }
+                final long accountId = c.getLong(NameLookupPrefetchQuery.ACCOUNT_ID);
+                final String name = c.getString(NameLookupPrefetchQuery.NAME);
+                final int nameTypeA = c.getInt(NameLookupPrefetchQuery.NAME_TYPE_A);
+                final int nameTypeB = c.getInt(NameLookupPrefetchQuery.NAME_TYPE_B);
+                matcher.matchName(rId, contactId, accountId, nameTypeA, name,
+                        nameTypeB, name, RawContactMatcher.MATCHING_ALGORITHM_EXACT);
+                if (nameTypeA == NameLookupType.NICKNAME &&
+                        nameTypeB == NameLookupType.NICKNAME) {
+                    matcher.updateScoreWithNicknameMatch(rId, contactId, accountId);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        if (DEBUG_LOGGING) {
+            Log.d(TAG, "prefetchMatches: " + prefetch.getUnmatchedCount() + " of " + count
+                    + " raw contacts have no match");
+        }
+        return prefetch;
+    }
+
     /**
      * Find the set of matching raw contacts for given rawContactId. Add all the raw contact
      * candidates with matching scores > threshold to RawContactMatchingCandidates. Keep doing
@@ -371,6 +488,7 @@ public class ContactAggregator2 extends AbstractContactAggregator {
             }
             markAggregated(db, connectedRids);
 
+            final Set<Long> cidsToUpdate = new HashSet<>();
             for (Long cid : cidsNeedToBeUpdated) {
                 long currentRcCount = 0;
                 if (cid != 0) {
@@ -382,12 +500,16 @@ public class ContactAggregator2 extends AbstractContactAggregator {
                 if (currentRcCount == 0) {
                     // Delete a contact if it doesn't contain anything
                     ContactsTableUtil.deleteContact(db, cid);
+                    if (mMatchPrefetch != null) {
+                        mMatchPrefetch.onContactChanged(cid);
+                    }
                     mAggregatedPresenceDelete.bindLong(1, cid);
                     mAggregatedPresenceDelete.execute();
                 } else {
-                    updateAggregateData(txContext, cid);
+                    cidsToUpdate.add(cid);
                 }
             }
+            updateAggregateData(txContext, cidsToUpdate);
         }
     }
 
@@ -422,24 +544,75 @@ public class ContactAggregator2 extends AbstractContactAggregator {
      */
     private void breakComponentsByExceptions(SQLiteDatabase db,
             Set<Set<Long>> connectedRawContacts) {
-        final Set<Set<Long>> tmpSets = new HashSet<>(connectedRawContacts);
-        for (Set<Long> component : tmpSets) {
-            final String rawContacts = TextUtils.join(",", component);
+        prefetchAggregationExceptionIds(db);
+
+        // Most components have no exception at all, no need to ask the database then.
+        final List<Set<Long>> candidateSets = new ArrayList<>();
+        final Set<Long> candidateIds = new HashSet<>();
+        for (Set<Long> component : connectedRawContacts) {
+            if (mAggregationExceptions.hasExceptionWithin(component,
+                    AggregationExceptions.TYPE_KEEP_SEPARATE)) {
+                candidateSets.add(component);
+                candidateIds.addAll(component);
+            }
+        }
+        if (candidateSets.isEmpty()) {
+            return;
+        }
+
+        // Load the exceptions of all the candidate components at once.
+        final String rawContacts = TextUtils.join(",", candidateIds);
+        final long[] separatePairs = loadIdPairs(db, buildExceptionMatchingSql(rawContacts,
+                rawContacts, AggregationExceptions.TYPE_KEEP_SEPARATE, /* countOnly =*/false));
+        long[] joinPairs = null;
+        for (Set<Long> component : candidateSets) {
             // If "SEPARATE" exception is found inside an connected component [component],
             // remove the [component] from [connectedRawContacts], and create new connected
             // components for all raw contacts of [component] solely based on "JOIN" exceptions
             // and add them to [connectedRawContacts].
-            if (isFirstColumnGreaterThanZero(db, buildExceptionMatchingSql(rawContacts, rawContacts,
-                    AggregationExceptions.TYPE_KEEP_SEPARATE, /* countOnly =*/true))) {
-                Multimap<Long, Long> joinPairs = HashMultimap.create();
-                findIdPairs(db, buildExceptionMatchingSql(rawContacts, rawContacts), joinPairs);
+            if (hasPairWithin(separatePairs, component)) {
+                if (joinPairs == null) {
+                    joinPairs = loadIdPairs(db, buildExceptionMatchingSql(rawContacts,
+                            rawContacts));
+                }
+                final RawContactUnionFind components = new RawContactUnionFind(component);
+                for (int i = 0; i < joinPairs.length; i += 2) {
+                    components.union(joinPairs[i], joinPairs[i + 1]);
+                }
                 connectedRawContacts.remove(component);
-                connectedRawContacts.addAll(
-                    ContactAggregatorHelper.findConnectedComponents(component, joinPairs));
+                connectedRawContacts.addAll(components.getComponents());
             }
         }
     }
 
+    /**
+     * Given a query which will return two non-null IDs in the first two columns as results,
+     * returns them as consecutive pairs.
+     */
+    private static long[] loadIdPairs(SQLiteDatabase db, String query) {
+        final Cursor cursor = db.rawQuery(query, null);
+        try {
+            final long[] pairs = new long[cursor.getCount() * 2];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                pairs[i++] = cursor.getLong(0);
+                pairs[i++] = cursor.getLong(1);
+            }
+            return pairs;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean hasPairWithin(long[] pairs, Set<Long> ids) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (pairs[i] != pairs[i + 1] && ids.contains(pairs[i]) && ids.contains(pairs[i + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Ensures that automatic aggregation rules are followed after a contact
      * becomes visible or invisible. Specifically, consider this case: there are
@@ -500,13 +673,11 @@ public class ContactAggregator2 extends AbstractContactAggregator {
      */
     private void updateMatchScoresBasedOnExceptions(SQLiteDatabase db, long rawContactId,
             RawContactMatcher matcher) {
-        if (!mAggregationExceptionIdsValid) {
-            prefetchAggregationExceptionIds(db);
-        }
+        prefetchAggregationExceptionIds(db);
 
         // If there are no aggregation exceptions involving this raw contact, there is no need to
         // run a query and we can just return -1, which stands for "nothing found"
-        if (!mAggregationExceptionIds.contains(rawContactId)) {
+        if (!mAggregationExceptions.contains(rawContactId)) {
             return;
         }
 
@@ -691,25 +862,10 @@ public class ContactAggregator2 extends AbstractContactAggregator {
      */
     private void lookupApproximateNameMatches(SQLiteDatabase db, MatchCandidateList candidates,
             RawContactMatcher matcher) {
-        HashSet<String> firstLetters = new HashSet<>();
-        for (int i = 0; i < candidates.mCount; i++) {
-            final NameMatchCandidate candidate = candidates.mList.get(i);
-            if (candidate.mName.length() >= 2) {
-                String firstLetter = candidate.mName.substring(0, 2);
-                if (!firstLetters.contains(firstLetter)) {
-                    firstLetters.add(firstLetter);
-                    final String selection = "(" + NameLookupColumns.NORMALIZED_NAME + " GLOB '"
-                            + firstLetter + "*') AND "
-                            + "(" + NameLookupColumns.NAME_TYPE + " IN("
-                                    + NameLookupType.NAME_COLLATION_KEY + ","
-                                    + NameLookupType.EMAIL_BASED_NICKNAME + ","
-                                    + NameLookupType.NICKNAME + ")) AND "
-                            + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
-                    matchAllCandidates(db, selection, candidates, matcher,
-                            RawContactMatcher.MATCHING_ALGORITHM_APPROXIMATE,
-                            String.valueOf(FIRST_LETTER_SUGGESTION_HIT_LIMIT));
-                }
-            }
+        final Cursor c = queryApproximateNameLookup(db, candidates);
+        if (c != null) {
+            matchAllCandidates(c, candidates, matcher,
+                    RawContactMatcher.MATCHING_ALGORITHM_APPROXIMATE);
         }
     }
 
@@ -737,24 +893,36 @@ public class ContactAggregator2 extends AbstractContactAggregator {
      */
     private void matchAllCandidates(SQLiteDatabase db, String selection,
             MatchCandidateList candidates, RawContactMatcher matcher, int algorithm, String limit) {
-        final Cursor c = db.query(ContactNameLookupQuery.TABLE, ContactNameLookupQuery.COLUMNS,
-                selection, null, null, null, null, limit);
+        matchAllCandidates(db.query(ContactNameLookupQuery.TABLE, ContactNameLookupQuery.COLUMNS,
+                selection, null, null, null, null, limit), candidates, matcher, algorithm);
+    }
 
+    /**
+     * Same as above, for a cursor whose first columns are those of
+     * {@link ContactNameLookupQuery}.  Closes the cursor.
+     */
+    private void matchAllCandidates(Cursor c, MatchCandidateList candidates,
+            RawContactMatcher matcher, int algorithm) {
         try {
             while (c.moveToNext()) {
-                Long rawContactId = c.getLong(ContactNameLookupQuery.RAW_CONTACT_ID);
-                Long contactId = c.getLong(ContactNameLookupQuery.CONTACT_ID);
-                Long accountId = c.getLong(ContactNameLookupQuery.ACCOUNT_ID);
+                long rawContactId = c.getLong(ContactNameLookupQuery.RAW_CONTACT_ID);
+                long contactId = c.getLong(ContactNameLookupQuery.CONTACT_ID);
+                long accountId = c.getLong(ContactNameLookupQuery.ACCOUNT_ID);
                 String name = c.getString(ContactNameLookupQuery.NORMALIZED_NAME);
                 int nameType = c.getInt(ContactNameLookupQuery.NAME_TYPE);
+                byte[] decodedName = algorithm == RawContactMatcher.MATCHING_ALGORITHM_EXACT
+                        ? null : decodeNormalizedName(name);
 
                 // Note the N^2 complexity of the following fragment. This is not a huge concern
                 // since the number of candidates is very small and in general secondary hits
                 // in the absence of primary hits are rare.
                 for (int i = 0; i < candidates.mCount; i++) {
                     NameMatchCandidate candidate = candidates.mList.get(i);
+                    byte[] decodedCandidateName =
+                            decodedName == null ? null : candidate.getDecodedName();
                     matcher.matchName(rawContactId, contactId, accountId, candidate.mLookupType,
-                            candidate.mName, nameType, name, algorithm);
+                            candidate.mName, decodedCandidateName, nameType, name, decodedName,
+                            algorithm);
                 }
             }
         } finally {
@@ -918,9 +1086,9 @@ public class ContactAggregator2 extends AbstractContactAggregator {
 
         try {
             while (c.moveToNext()) {
-                Long rId = c.getLong(NullNameRawContactsIdsQuery.RAW_CONTACT_ID);
-                Long contactId = c.getLong(NullNameRawContactsIdsQuery.CONTACT_ID);
-                Long accountId = c.getLong(NullNameRawContactsIdsQuery.ACCOUNT_ID);
+                long rId = c.getLong(NullNameRawContactsIdsQuery.RAW_CONTACT_ID);
+                long contactId = c.getLong(NullNameRawContactsIdsQuery.CONTACT_ID);
+                long accountId = c.getLong(NullNameRawContactsIdsQuery.ACCOUNT_ID);
                 String name = c.getString(NullNameRawContactsIdsQuery.NAME);
                 if (TextUtils.isEmpty(name)) {
                     matcher.matchNoName(rId, contactId, accountId);
@@ -986,6 +1154,54 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         int NAME_TYPE_B = 5;
     }
 
+    /**
+     * Same join as {@link NameLookupMatchQuery}, for a list of raw contacts and without the
+     * visibility filter, which is returned as a column instead.
+     */
+    private interface NameLookupPrefetchQuery {
+        String TABLE = NameLookupMatchQuery.TABLE;
+
+        String SELECTION = "nameA." + NameLookupColumns.RAW_CONTACT_ID;
+
+        String ORDER_BY = "nameA." + NameLookupColumns.RAW_CONTACT_ID;
+
+        String[] COLUMNS = new String[] {
+                "nameA." + NameLookupColumns.RAW_CONTACT_ID,
+                RawContacts._ID,
+                RawContacts.CONTACT_ID,
+                RawContactsColumns.ACCOUNT_ID,
+                "nameA." + NameLookupColumns.NORMALIZED_NAME,
+                "nameA." + NameLookupColumns.NAME_TYPE,
+                "nameB." + NameLookupColumns.NAME_TYPE,
+                RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY,
+        };
+
+        int RAW_CONTACT_ID_A = 0;
+        int RAW_CONTACT_ID = 1;
+        int CONTACT_ID = 2;
+        int ACCOUNT_ID = 3;
+        int NAME = 4;
+        int NAME_TYPE_A = 5;
+        int NAME_TYPE_B = 6;
+        int IN_DEFAULT_DIRECTORY = 7;
+    }
+
+    /**
+     * Raw contacts which {@link #rawContactWithoutName} doesn't consider nameless.
+     */
+    private interface NamedRawContactsQuery {
+        String TABLE = Tables.NAME_LOOKUP;
+
+        String SELECTION = NameLookupColumns.NAME_TYPE + "=" + NameLookupType.NAME_EXACT
+                + " AND " + NameLookupColumns.NORMALIZED_NAME + "!=''";
+
+        String[] COLUMNS = new String[] {
+                "DISTINCT " + NameLookupColumns.RAW_CONTACT_ID
+        };
+
+        int RAW_CONTACT_ID = 0;
+    }
+
     protected interface EmailLookupQuery {
         String TABLE = Tables.DATA + " dataA"
                 + " JOIN " + Tables.DATA + " dataB" +
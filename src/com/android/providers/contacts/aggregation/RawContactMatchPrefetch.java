@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Result of the bulk lookup phase of an aggregation pass: the raw contacts that were found to
+ * have no matching raw contact at all, before any of the raw contacts of the pass was
+ * aggregated.
+ * <p>
+ * The lookup result of a raw contact only depends on the contact ID and visibility of the raw
+ * contacts that share a name with it ("neighbors"). The write phase reports every raw contact
+ * and contact it touches, and a prefetched result is discarded as soon as one of the neighbors
+ * or one of their contacts has been touched. The aggregator then falls back to the regular
+ * per-raw-contact lookup, so the outcome is the same as if nothing had been prefetched.
+ */
+final class RawContactMatchPrefetch {
+
+    // Raw contact ID -> neighbors, stored as consecutive (raw contact ID, contact ID) pairs.
+    private final HashMap<Long, long[]> mUnmatched = new HashMap<Long, long[]>();
+
+    private final HashSet<Long> mChangedRawContactIds = new HashSet<Long>();
+    private final HashSet<Long> mChangedContactIds = new HashSet<Long>();
+
+    /**
+     * Records that {@code rawContactId} has no match. {@code neighbors} holds the raw contact ID
+     * and contact ID of every raw contact sharing a name with it, visible or not, including the
+     * raw contact itself.
+     */
+    void addUnmatched(long rawContactId, long[] neighbors) {
+        mUnmatched.put(rawContactId, neighbors);
+    }
+
+    int getUnmatchedCount() {
+        return mUnmatched.size();
+    }
+
+    /**
+     * Called when the contact ID of a raw contact has been changed by the write phase.
+     */
+    void onRawContactChanged(long rawContactId) {
+        mChangedRawContactIds.add(rawContactId);
+    }
+
+    /**
+     * Called when a contact has been created, updated or deleted by the write phase.
+     */
+    void onContactChanged(long contactId) {
+        mChangedContactIds.add(contactId);
+    }
+
+    /**
+     * Returns true if the raw contact is known to have no matching raw contact, i.e. it was found
+     * unmatched by the lookup phase and nothing it depends on has changed since.
+     */
+    boolean isUnmatched(long rawContactId) {
+        final long[] neighbors = mUnmatched.get(rawContactId);
+        if (neighbors == null || mChangedRawContactIds.contains(rawContactId)) {
+            return false;
+        }
+        for (int i = 0; i < neighbors.length; i += 2) {
+            if (mChangedRawContactIds.contains(neighbors[i])
+                    || mChangedContactIds.contains(neighbors[i + 1])) {
+                mUnmatched.remove(rawContactId);
+                return false;
+            }
+        }
+        return true;
+    }
+}
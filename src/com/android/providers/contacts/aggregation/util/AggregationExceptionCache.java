@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of the aggregation exceptions table, used by the aggregator to avoid querying
+ * the table when it is known that there is no relevant exception.
+ * <p>
+ * The cache is loaded once and then kept up to date as exceptions are added or removed.  It may
+ * contain exceptions that no longer exist in the database (e.g. the ones of raw contacts deleted
+ * without notice), but must never miss one: a positive answer means the database has to be
+ * checked, a negative one is final.  Anything that can bring back rows into the table, such as a
+ * transaction rollback, must {@link #invalidate()} the cache.
+ */
+public class AggregationExceptionCache {
+
+    // Raw contact ID -> (other raw contact ID -> exception type), in both directions.
+    private final HashMap<Long, HashMap<Long, Integer>> mExceptions =
+            new HashMap<Long, HashMap<Long, Integer>>();
+    private boolean mValid;
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public void invalidate() {
+        mValid = false;
+        mExceptions.clear();
+    }
+
+    /**
+     * Clears the cache before loading it with {@link #put}.
+     */
+    public void startLoading() {
+        mExceptions.clear();
+        mValid = false;
+    }
+
+    public void finishLoading() {
+        mValid = true;
+    }
+
+    /**
+     * Adds or replaces the exception between two raw contacts.
+     */
+    public void put(long rawContactId1, long rawContactId2, int type) {
+        getOrCreate(rawContactId1).put(rawContactId2, type);
+        getOrCreate(rawContactId2).put(rawContactId1, type);
+    }
+
+    /**
+     * Removes the exception between two raw contacts, if any.
+     */
+    public void remove(long rawContactId1, long rawContactId2) {
+        removeOneWay(rawContactId1, rawContactId2);
+        removeOneWay(rawContactId2, rawContactId1);
+    }
+
+    /**
+     * Removes all the exceptions of a raw contact that has been deleted.
+     */
+    public void removeRawContact(long rawContactId) {
+        final HashMap<Long, Integer> others = mExceptions.remove(rawContactId);
+        if (others != null) {
+            for (Long other : others.keySet()) {
+                removeOneWay(other, rawContactId);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the raw contact may have aggregation exceptions.
+     */
+    public boolean contains(long rawContactId) {
+        return mExceptions.containsKey(rawContactId);
+    }
+
+    /**
+     * Returns true if there may be an exception of the given type between two of the given raw
+     * contacts.
+     */
+    public boolean hasExceptionWithin(Set<Long> rawContactIds, int type) {
+        for (Long rawContactId : rawContactIds) {
+            final HashMap<Long, Integer> others = mExceptions.get(rawContactId);
+            if (others == null) {
+                continue;
+            }
+            for (Map.Entry<Long, Integer> entry : others.entrySet()) {
+                if (entry.getValue() == type && rawContactIds.contains(entry.getKey())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private HashMap<Long, Integer> getOrCreate(long rawContactId) {
+        HashMap<Long, Integer> others = mExceptions.get(rawContactId);
+        if (others == null) {
+            others = new HashMap<Long, Integer>();
+            mExceptions.put(rawContactId, others);
+        }
+        return others;
+    }
+
+    private void removeOneWay(long rawContactId, long otherRawContactId) {
+        final HashMap<Long, Integer> others = mExceptions.get(rawContactId);
+        if (others != null) {
+            others.remove(otherRawContactId);
+            if (others.isEmpty()) {
+                mExceptions.remove(rawContactId);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU cache of scored aggregation suggestions, i.e. the IDs of the contacts matching a
+ * contact in the descending order of match score, keyed by the contact ID and the suggestion
+ * parameters.
+ * <p>
+ * Suggestions depend on the data of every candidate contact, not only on the one they are
+ * computed for, so entries are tied to a generation that is bumped by {@link #invalidate()}
+ * whenever the database may have changed.  An entry computed while a change was being committed
+ * is stored with the generation read before the computation started and is therefore never served
+ * once the change becomes visible.  The cache is accessed by the binder threads and the writer
+ * concurrently, so all methods are synchronized.
+ */
+public class AggregationSuggestionCache {
+    private static final int MAX_ENTRIES = 16;
+
+    private final LinkedHashMap<String, long[]> mEntries =
+            new LinkedHashMap<String, long[]>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private long mGeneration;
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the suggestions have
+     * been computed.  Must be read before starting the computation.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Drops all entries.  Called whenever the contacts database may have changed.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    /**
+     * Returns the cached contact IDs for the key, or null if there are none.  The returned array
+     * must not be modified.
+     */
+    public synchronized long[] get(String key) {
+        return mEntries.get(key);
+    }
+
+    /**
+     * Stores the contact IDs computed at {@code generation} for the key, unless the cache has
+     * been invalidated since.
+     */
+    public synchronized void put(String key, long generation, long[] contactIds) {
+        if (generation == mGeneration) {
+            mEntries.put(key, contactIds);
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -18,7 +18,6 @@ package com.android.providers.contacts.aggregation.util;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Multimap;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -85,34 +84,4 @@ public class ContactAggregatorHelper {
         }
         connectedRawContactSets.add(mergedSet);
     }
-
-    /**
-     * Given a set of raw contact ids {@code rawContactIdSet} and the connection among them
-     * {@code matchingRawIdPairs}, find the connected components.
-     */
-    @VisibleForTesting
-    public static Set<Set<Long>> findConnectedComponents(Set<Long> rawContactIdSet, Multimap<Long,
-            Long> matchingRawIdPairs) {
-        Set<Set<Long>> connectedRawContactSets = new HashSet<>();
-        Set<Long> visited = new HashSet<>();
-        for (Long id : rawContactIdSet) {
-            if (!visited.contains(id)) {
-                Set<Long> set = new HashSet<>();
-                findConnectedComponentForRawContact(matchingRawIdPairs, visited, id, set);
-                connectedRawContactSets.add(set);
-            }
-        }
-        return connectedRawContactSets;
-    }
-
-    private static void findConnectedComponentForRawContact(Multimap<Long, Long> connections,
-            Set<Long> visited, Long rawContactId, Set<Long> results) {
-        visited.add(rawContactId);
-        results.add(rawContactId);
-        for (long match : connections.get(rawContactId)) {
-            if (!visited.contains(match)) {
-                findConnectedComponentForRawContact(connections, visited, match, results);
-            }
-        }
-    }
 }
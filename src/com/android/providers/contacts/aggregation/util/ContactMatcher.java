@@ -21,8 +21,6 @@ import com.android.providers.contacts.util.Hex;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -153,27 +151,13 @@ public class ContactMatcher {
         return sMaxScore[index];
     }
 
-    private final HashMap<Long, MatchScore> mScores = new HashMap<Long, MatchScore>();
-    private final ArrayList<MatchScore> mScoreList = new ArrayList<MatchScore>();
-    private int mScoreCount = 0;
+    private final MatchScoreTable mScores = new MatchScoreTable();
 
     private final NameDistance mNameDistanceConservative = new NameDistance();
     private final NameDistance mNameDistanceApproximate = new NameDistance(MAX_MATCHED_NAME_LENGTH);
 
     private MatchScore getMatchingScore(long contactId) {
-        MatchScore matchingScore = mScores.get(contactId);
-        if (matchingScore == null) {
-            if (mScoreList.size() > mScoreCount) {
-                matchingScore = mScoreList.get(mScoreCount);
-                matchingScore.reset(contactId);
-            } else {
-                matchingScore = new MatchScore(contactId);
-                mScoreList.add(matchingScore);
-            }
-            mScoreCount++;
-            mScores.put(contactId, matchingScore);
-        }
-        return matchingScore;
+        return mScores.getOrAdd(contactId, 0, contactId, 0);
     }
 
     /**
@@ -192,6 +176,18 @@ public class ContactMatcher {
      */
     public void matchName(long contactId, int candidateNameType, String candidateName,
             int nameType, String name, int algorithm) {
+        matchName(contactId, candidateNameType, candidateName, null, nameType, name, null,
+                algorithm);
+    }
+
+    /**
+     * Same as {@link #matchName(long, int, String, int, String, int)}, with the names
+     * already decoded by {@link Hex#decodeHex} when the caller has them at hand.  Either
+     * decoded name may be null.
+     */
+    public void matchName(long contactId, int candidateNameType, String candidateName,
+            byte[] decodedCandidateName, int nameType, String name, byte[] decodedName,
+            int algorithm) {
         int maxScore = getMaxScore(candidateNameType, nameType);
         if (maxScore == 0) {
             return;
@@ -211,11 +207,13 @@ public class ContactMatcher {
             return;
         }
 
-        final byte[] decodedCandidateName;
-        final byte[] decodedName;
         try {
-            decodedCandidateName = Hex.decodeHex(candidateName);
-            decodedName = Hex.decodeHex(name);
+            if (decodedCandidateName == null) {
+                decodedCandidateName = Hex.decodeHex(candidateName);
+            }
+            if (decodedName == null) {
+                decodedName = Hex.decodeHex(name);
+            }
         } catch (RuntimeException e) {
             // How could this happen??  See bug 6827136
             Log.e(TAG, "Failed to decode normalized name.  Skipping.", e);
@@ -226,12 +224,12 @@ public class ContactMatcher {
                 mNameDistanceConservative : mNameDistanceApproximate;
 
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
         boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
                 || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
         float threshold = emailBased
                 ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
                 : APPROXIMATE_MATCH_THRESHOLD;
+        float distance = nameDistance.getDistance(decodedCandidateName, decodedName, threshold);
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -271,7 +269,6 @@ public class ContactMatcher {
 
     public void clear() {
         mScores.clear();
-        mScoreCount = 0;
     }
 
     /**
@@ -284,8 +281,8 @@ public class ContactMatcher {
     public List<Long> prepareSecondaryMatchCandidates(int threshold) {
         ArrayList<Long> contactIds = null;
 
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -311,8 +308,8 @@ public class ContactMatcher {
     public long pickBestMatch(int threshold, boolean allowMultipleMatches) {
         long contactId = -1;
         int maxScore = 0;
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -346,10 +343,10 @@ public class ContactMatcher {
      */
     public List<MatchScore> pickBestMatches(int threshold) {
         int scaledThreshold = threshold * MatchScore.SCORE_SCALE;
-        List<MatchScore> matches = mScoreList.subList(0, mScoreCount);
-        Collections.sort(matches);
+        mScores.sort();
+        List<MatchScore> matches = mScores.asList();
         int count = 0;
-        for (int i = 0; i < mScoreCount; i++) {
+        for (int i = 0; i < matches.size(); i++) {
             MatchScore matchScore = matches.get(i);
             if (matchScore.getScore() >= scaledThreshold) {
                 count++;
@@ -363,6 +360,6 @@ public class ContactMatcher {
 
     @Override
     public String toString() {
-        return mScoreList.subList(0, mScoreCount).toString();
+        return mScores.asList().toString();
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Raw contacts whose aggregation has been deferred to the background, in the order in which they
+ * were committed.
+ * <p>
+ * Every {@link #enqueue} is given a sequence number.  The worker takes the raw contacts in slices
+ * with {@link #poll} and reports each slice with {@link #finishSlice()}, after which
+ * {@link #await} returns for all the sequence numbers the slice covered.  A raw contact that is
+ * enqueued again before it is aggregated moves to the end of the queue.
+ */
+public class DeferredAggregationQueue {
+
+    // Raw contact ID -> sequence number, in ascending sequence number order
+    private final LinkedHashMap<Long, Long> mQueue = new LinkedHashMap<Long, Long>();
+
+    private long mEnqueuedSequence;
+    private long mCompletedSequence;
+    private long mSliceSequence = -1;
+
+    /**
+     * Adds a raw contact to the queue and returns its sequence number.
+     */
+    public synchronized long enqueue(long rawContactId) {
+        mEnqueuedSequence++;
+        mQueue.remove(rawContactId);
+        mQueue.put(rawContactId, mEnqueuedSequence);
+        return mEnqueuedSequence;
+    }
+
+    /**
+     * Removes and returns up to {@code max} raw contacts from the head of the queue.
+     */
+    public synchronized long[] poll(int max) {
+        final long[] rawContactIds = new long[Math.min(max, mQueue.size())];
+        final Iterator<Map.Entry<Long, Long>> iterator = mQueue.entrySet().iterator();
+        for (int i = 0; i < rawContactIds.length; i++) {
+            rawContactIds[i] = iterator.next().getKey();
+            iterator.remove();
+        }
+
+        // Everything enqueued before the new head is covered by this slice.
+        mSliceSequence = iterator.hasNext()
+                ? iterator.next().getValue() - 1
+                : mEnqueuedSequence;
+        return rawContactIds;
+    }
+
+    /**
+     * Called once the raw contacts returned by the last {@link #poll} have been aggregated, or
+     * given up on.
+     */
+    public synchronized void finishSlice() {
+        if (mSliceSequence > mCompletedSequence) {
+            mCompletedSequence = mSliceSequence;
+        }
+        mSliceSequence = -1;
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return mQueue.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    /**
+     * Waits until all the raw contacts enqueued up to {@code sequence} have been aggregated.
+     * Returns false if the timeout expired first.
+     */
+    public synchronized boolean await(long sequence, long timeoutMillis) {
+        final long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (mCompletedSequence < sequence) {
+            final long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A table of {@link MatchScore}s keyed by a raw contact or contact ID.
+ * <p>
+ * The matchers look up a score for every candidate row they read, so this avoids boxing the
+ * keys the way a {@code HashMap<Long, MatchScore>} would: keys are kept in an open addressing
+ * {@code long[]} hash table, and the {@link MatchScore} objects in a flat array that is reused
+ * across {@link #clear()} calls.
+ */
+public final class MatchScoreTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Hash table, at most half full.  A null score marks an empty slot.
+    private long[] mKeys = new long[INITIAL_CAPACITY * 2];
+    private MatchScore[] mSlots = new MatchScore[INITIAL_CAPACITY * 2];
+
+    // Scores in insertion order.  Entries at mCount and beyond are kept for reuse.
+    private MatchScore[] mScores = new MatchScore[INITIAL_CAPACITY];
+    private int mCount;
+
+    /**
+     * Returns the score for {@code key}, or null if there is none.
+     */
+    public MatchScore get(long key) {
+        final int mask = mSlots.length - 1;
+        for (int i = hash(key) & mask; mSlots[i] != null; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return mSlots[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the score for {@code key}, adding a fresh one initialized with the given IDs if
+     * there is none.
+     */
+    public MatchScore getOrAdd(long key, long rawContactId, long contactId, long accountId) {
+        final int mask = mSlots.length - 1;
+        int i = hash(key) & mask;
+        for (; mSlots[i] != null; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return mSlots[i];
+            }
+        }
+
+        MatchScore score;
+        if (mCount < mScores.length && mScores[mCount] != null) {
+            score = mScores[mCount];
+            score.reset(rawContactId, contactId, accountId);
+        } else {
+            if (mCount == mScores.length) {
+                mScores = Arrays.copyOf(mScores, mCount * 2);
+            }
+            score = new MatchScore(rawContactId, contactId, accountId);
+            mScores[mCount] = score;
+        }
+        mCount++;
+
+        mKeys[i] = key;
+        mSlots[i] = score;
+        if (mCount * 2 > mSlots.length) {
+            rehash(mSlots.length * 2);
+        }
+        return score;
+    }
+
+    /**
+     * Number of scores in the table.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the score at {@code index}, in insertion order unless {@link #sort()} was called.
+     */
+    public MatchScore getAt(int index) {
+        return mScores[index];
+    }
+
+    /**
+     * Sorts the scores in the order of {@link MatchScore#compareTo}, i.e. descending score.
+     * Lookups by key are not affected.
+     */
+    public void sort() {
+        Arrays.sort(mScores, 0, mCount);
+    }
+
+    /**
+     * Returns a view of the scores, in the same order as {@link #getAt}.  The view is only valid
+     * until the table is modified.
+     */
+    public List<MatchScore> asList() {
+        return Arrays.asList(mScores).subList(0, mCount);
+    }
+
+    public void clear() {
+        if (mCount != 0) {
+            Arrays.fill(mSlots, null);
+            mCount = 0;
+        }
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final MatchScore[] slots = mSlots;
+        mKeys = new long[capacity];
+        mSlots = new MatchScore[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < slots.length; j++) {
+            if (slots[j] == null) {
+                continue;
+            }
+            int i = hash(keys[j]) & mask;
+            while (mSlots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mKeys[i] = keys[j];
+            mSlots[i] = slots[j];
+        }
+    }
+
+    private static int hash(long key) {
+        final int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -32,10 +32,18 @@ public class NameDistance {
     private static final float WINKLER_BONUS_THRESHOLD = 0.7f;
     private static final int MIN_EXACT_PREFIX_LENGTH = 3;
 
+    // Margin for float rounding when comparing the upper bound of a distance with a threshold.
+    private static final float UPPER_BOUND_TOLERANCE = 0.0001f;
+
     private final int mMaxLength;
     private final boolean mPrefixOnly;
-    private final boolean[] mMatchFlags1;
-    private final boolean[] mMatchFlags2;
+
+    // Bitsets of the matched positions in each array, one bit per byte.
+    private final long[] mMatchFlags1;
+    private final long[] mMatchFlags2;
+
+    // Bitset of the byte values present in the longer array.
+    private final long[] mPresentBytes = new long[256 / 64];
 
     /**
      * Constructor.
@@ -45,8 +53,8 @@ public class NameDistance {
     public NameDistance(int maxLength) {
         mMaxLength = maxLength;
         mPrefixOnly = false;
-        mMatchFlags1 = new boolean[maxLength];
-        mMatchFlags2 = new boolean[maxLength];
+        mMatchFlags1 = new long[(maxLength + 63) >>> 6];
+        mMatchFlags2 = new long[(maxLength + 63) >>> 6];
     }
 
     /**
@@ -62,6 +70,15 @@ public class NameDistance {
      * Computes a string distance between two normalized strings passed as byte arrays.
      */
     public float getDistance(byte bytes1[], byte bytes2[]) {
+        return getDistance(bytes1, bytes2, 0f);
+    }
+
+    /**
+     * Same as {@link #getDistance(byte[], byte[])}, except that it may return 0 right away when
+     * the distance cannot exceed {@code threshold}, e.g. because the lengths or the characters
+     * of the two strings are too different.  Distances above the threshold are exact.
+     */
+    public float getDistance(byte bytes1[], byte bytes2[], float threshold) {
         byte[] array1, array2;
 
         if (bytes1.length > bytes2.length) {
@@ -99,8 +116,19 @@ public class NameDistance {
             length2 = mMaxLength;
         }
 
-        Arrays.fill(mMatchFlags1, 0, length1, false);
-        Arrays.fill(mMatchFlags2, 0, length2, false);
+        if (length1 == 0) {
+            return 0f;
+        }
+
+        if (threshold > 0 && getUpperBound(array1, length1, array2, length2)
+                + UPPER_BOUND_TOLERANCE <= threshold) {
+            return 0f;
+        }
+
+        final int words1 = (length1 + 63) >>> 6;
+        final int words2 = (length2 + 63) >>> 6;
+        Arrays.fill(mMatchFlags1, 0, words1, 0L);
+        Arrays.fill(mMatchFlags2, 0, words2, 0L);
 
         int range = length2 / 2 - 1;
         if (range < 0) {
@@ -122,8 +150,9 @@ public class NameDistance {
             }
 
             for (int j = from; j < to; j++) {
-                if (!mMatchFlags2[j] && c1 == array2[j]) {
-                    mMatchFlags1[i] = mMatchFlags2[j] = true;
+                if (c1 == array2[j] && (mMatchFlags2[j >>> 6] & (1L << j)) == 0) {
+                    mMatchFlags1[i >>> 6] |= 1L << i;
+                    mMatchFlags2[j >>> 6] |= 1L << j;
                     matches++;
                     break;
                 }
@@ -134,17 +163,24 @@ public class NameDistance {
             return 0f;
         }
 
+        // Walk the matched positions of both arrays in parallel.  There is the same number of
+        // them on each side.
         int transpositions = 0;
-        int j = 0;
-        for (int i = 0; i < length1; i++) {
-            if (mMatchFlags1[i]) {
-                while (!mMatchFlags2[j]) {
-                    j++;
+        int word2 = 0;
+        long bits2 = mMatchFlags2[0];
+        for (int word1 = 0; word1 < words1; word1++) {
+            long bits1 = mMatchFlags1[word1];
+            while (bits1 != 0) {
+                final int i = (word1 << 6) + Long.numberOfTrailingZeros(bits1);
+                bits1 &= bits1 - 1;
+                while (bits2 == 0) {
+                    bits2 = mMatchFlags2[++word2];
                 }
+                final int j = (word2 << 6) + Long.numberOfTrailingZeros(bits2);
+                bits2 &= bits2 - 1;
                 if (array1[i] != array2[j]) {
                     transpositions++;
                 }
-                j++;
             }
         }
 
@@ -166,4 +202,31 @@ public class NameDistance {
 
         return jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
     }
+
+    /**
+     * Returns an upper bound of the distance computed by {@link #getDistance}: there cannot be
+     * more matches than bytes of the shorter array that occur anywhere in the longer one, no
+     * transpositions, and a common prefix as long as the shorter array.
+     */
+    private float getUpperBound(byte[] array1, int length1, byte[] array2, int length2) {
+        Arrays.fill(mPresentBytes, 0L);
+        for (int j = 0; j < length2; j++) {
+            final int b = array2[j] & 0xff;
+            mPresentBytes[b >>> 6] |= 1L << b;
+        }
+        int maxMatches = 0;
+        for (int i = 0; i < length1; i++) {
+            final int b = array1[i] & 0xff;
+            if ((mPresentBytes[b >>> 6] & (1L << b)) != 0) {
+                maxMatches++;
+            }
+        }
+        if (maxMatches == 0) {
+            return 0f;
+        }
+
+        float m = maxMatches;
+        float jaro = (m / length1 + m / length2 + 1f) / 3;
+        return jaro + Math.min(0.1f, 1f / length2) * length1 * (1 - jaro);
+    }
 }
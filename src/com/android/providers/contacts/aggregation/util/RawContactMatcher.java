@@ -20,8 +20,6 @@ import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
 import com.android.providers.contacts.util.Hex;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -158,27 +156,13 @@ public class RawContactMatcher {
         return sMaxScore[index];
     }
 
-    private final HashMap<Long, MatchScore> mScores = new HashMap<Long, MatchScore>();
-    private final ArrayList<MatchScore> mScoreList = new ArrayList<MatchScore>();
-    private int mScoreCount = 0;
+    private final MatchScoreTable mScores = new MatchScoreTable();
 
     private final NameDistance mNameDistanceConservative = new NameDistance();
     private final NameDistance mNameDistanceApproximate = new NameDistance(MAX_MATCHED_NAME_LENGTH);
 
     private MatchScore getMatchingScore(long rawContactId, long contactId, long accountId) {
-        MatchScore matchingScore = mScores.get(rawContactId);
-        if (matchingScore == null) {
-            if (mScoreList.size() > mScoreCount) {
-                matchingScore = mScoreList.get(mScoreCount);
-                matchingScore.reset(rawContactId, contactId, accountId);
-            } else {
-                matchingScore = new MatchScore(rawContactId, contactId, accountId);
-                mScoreList.add(matchingScore);
-            }
-            mScoreCount++;
-            mScores.put(rawContactId, matchingScore);
-        }
-        return matchingScore;
+        return mScores.getOrAdd(rawContactId, rawContactId, contactId, accountId);
     }
 
     /**
@@ -188,8 +172,21 @@ public class RawContactMatcher {
      * of name we found and, if the match is approximate, the distance between the candidate and
      * actual name.
      */
-    public void matchName(long rawContactId, long contactId, long accountId, int
-            candidateNameType, String candidateName, int nameType, String name, int algorithm) {
+    public void matchName(long rawContactId, long contactId, long accountId,
+            int candidateNameType, String candidateName, int nameType, String name,
+            int algorithm) {
+        matchName(rawContactId, contactId, accountId, candidateNameType, candidateName, null,
+                nameType, name, null, algorithm);
+    }
+
+    /**
+     * Same as {@link #matchName(long, long, long, int, String, int, String, int)}, with the
+     * names already decoded by {@link Hex#decodeHex} when the caller has them at hand.
+     * Either decoded name may be null.
+     */
+    public void matchName(long rawContactId, long contactId, long accountId,
+            int candidateNameType, String candidateName, byte[] decodedCandidateName,
+            int nameType, String name, byte[] decodedName, int algorithm) {
         int maxScore = getMaxScore(candidateNameType, nameType);
         if (maxScore == 0) {
             return;
@@ -209,11 +206,13 @@ public class RawContactMatcher {
             return;
         }
 
-        final byte[] decodedCandidateName;
-        final byte[] decodedName;
         try {
-            decodedCandidateName = Hex.decodeHex(candidateName);
-            decodedName = Hex.decodeHex(name);
+            if (decodedCandidateName == null) {
+                decodedCandidateName = Hex.decodeHex(candidateName);
+            }
+            if (decodedName == null) {
+                decodedName = Hex.decodeHex(name);
+            }
         } catch (RuntimeException e) {
             // How could this happen??  See bug 6827136
             Log.e(TAG, "Failed to decode normalized name.  Skipping.", e);
@@ -224,12 +223,12 @@ public class RawContactMatcher {
                 mNameDistanceConservative : mNameDistanceApproximate;
 
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
         boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
                 || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
         float threshold = emailBased
                 ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
                 : APPROXIMATE_MATCH_THRESHOLD;
+        float distance = nameDistance.getDistance(decodedCandidateName, decodedName, threshold);
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -274,7 +273,6 @@ public class RawContactMatcher {
 
     public void clear() {
         mScores.clear();
-        mScoreCount = 0;
     }
     /**
      * Returns a list of IDs for raw contacts that are only matched on secondary data elements
@@ -286,8 +284,8 @@ public class RawContactMatcher {
     public List<Long> prepareSecondaryMatchCandidates() {
         ArrayList<Long> rawContactIds = null;
 
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut() ||  score.getPrimaryScore() > SCORE_THRESHOLD_PRIMARY){
                 continue;
             }
@@ -308,8 +306,8 @@ public class RawContactMatcher {
      */
     public List<MatchScore> pickBestMatches() {
         final List<MatchScore> matches = new ArrayList<>();
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -333,10 +331,10 @@ public class RawContactMatcher {
      */
     public List<MatchScore> pickBestMatches(int threshold) {
         int scaledThreshold = threshold * SCORE_SCALE;
-        List<MatchScore> matches = mScoreList.subList(0, mScoreCount);
-        Collections.sort(matches);
+        mScores.sort();
+        List<MatchScore> matches = mScores.asList();
         int count = 0;
-        for (int i = 0; i < mScoreCount; i++) {
+        for (int i = 0; i < matches.size(); i++) {
             MatchScore matchScore = matches.get(i);
             if (matchScore.getScore() >= scaledThreshold) {
                 count++;
@@ -350,10 +348,10 @@ public class RawContactMatcher {
 
     @Override
     public String toString() {
-        return mScoreList.subList(0, mScoreCount).toString();
+        return mScores.asList().toString();
     }
 
-    public void matchNoName(Long rawContactId, Long contactId, Long accountId) {
+    public void matchNoName(long rawContactId, long contactId, long accountId) {
         updatePrimaryScore(rawContactId, contactId, accountId, SCORE_THRESHOLD_NO_NAME);
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Union-find (disjoint set) structure over a fixed set of raw contact IDs, used to partition
+ * raw contacts into connected components.
+ * <p>
+ * IDs are kept in a sorted {@code long[]} and looked up by binary search, so edges can be added
+ * straight from a cursor without boxing.  Edges involving an ID outside of the set are ignored.
+ */
+public final class RawContactUnionFind {
+    private final long[] mIds;
+    private final int[] mParents;
+    private final int[] mSizes;
+    private int mComponentCount;
+
+    public RawContactUnionFind(Set<Long> rawContactIds) {
+        mIds = new long[rawContactIds.size()];
+        int i = 0;
+        for (Long id : rawContactIds) {
+            mIds[i++] = id;
+        }
+        Arrays.sort(mIds);
+        mParents = new int[mIds.length];
+        mSizes = new int[mIds.length];
+        for (i = 0; i < mIds.length; i++) {
+            mParents[i] = i;
+            mSizes[i] = 1;
+        }
+        mComponentCount = mIds.length;
+    }
+
+    /**
+     * Connects two raw contacts.  Returns true if they were in different components.
+     */
+    public boolean union(long rawContactId1, long rawContactId2) {
+        final int index1 = Arrays.binarySearch(mIds, rawContactId1);
+        final int index2 = Arrays.binarySearch(mIds, rawContactId2);
+        if (index1 < 0 || index2 < 0) {
+            return false;
+        }
+        int root1 = find(index1);
+        int root2 = find(index2);
+        if (root1 == root2) {
+            return false;
+        }
+        if (mSizes[root1] < mSizes[root2]) {
+            final int tmp = root1;
+            root1 = root2;
+            root2 = tmp;
+        }
+        mParents[root2] = root1;
+        mSizes[root1] += mSizes[root2];
+        mComponentCount--;
+        return true;
+    }
+
+    /**
+     * Returns true if the two raw contacts are in the same component.  IDs outside of the set
+     * are only connected to themselves.
+     */
+    public boolean isConnected(long rawContactId1, long rawContactId2) {
+        if (rawContactId1 == rawContactId2) {
+            return true;
+        }
+        final int index1 = Arrays.binarySearch(mIds, rawContactId1);
+        final int index2 = Arrays.binarySearch(mIds, rawContactId2);
+        return index1 >= 0 && index2 >= 0 && find(index1) == find(index2);
+    }
+
+    /**
+     * Number of components.  Every raw contact is in a component of its own until connected.
+     */
+    public int getComponentCount() {
+        return mComponentCount;
+    }
+
+    /**
+     * Returns the components as sets of raw contact IDs.
+     */
+    public Set<Set<Long>> getComponents() {
+        @SuppressWarnings("unchecked")
+        final Set<Long>[] byRoot = new Set[mIds.length];
+        final Set<Set<Long>> components = new HashSet<>();
+        for (int i = 0; i < mIds.length; i++) {
+            final int root = find(i);
+            Set<Long> component = byRoot[root];
+            if (component == null) {
+                component = new HashSet<>(mSizes[root] * 2);
+                byRoot[root] = component;
+            }
+            component.add(mIds[i]);
+        }
+        for (Set<Long> component : byRoot) {
+            if (component != null) {
+                components.add(component);
+            }
+        }
+        return components;
+    }
+
+    private int find(int index) {
+        // Path halving
+        while (mParents[index] != index) {
+            mParents[index] = mParents[mParents[index]];
+            index = mParents[index];
+        }
+        return index;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.util;
+
+import android.os.MemoryFile;
+import android.os.ParcelFileDescriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Utility methods for handing out in-memory content as file descriptors.
+ * <p>
+ * The content is copied once into a shared memory region, whose descriptor is returned; the
+ * caller reads it directly, without a pipe and a thread feeding it.
+ */
+public final class MemoryFileUtils {
+    private MemoryFileUtils() {
+    }
+
+    /**
+     * Returns a descriptor of a shared memory region holding the first {@code length} bytes of
+     * {@code data}, positioned at the start.
+     */
+    public static ParcelFileDescriptor createDescriptor(byte[] data, int length)
+            throws IOException {
+        final MemoryFile file = new MemoryFile(null, length);
+        try {
+            if (length > 0) {
+                file.writeBytes(data, 0, 0, length);
+            }
+            // The duplicate keeps the region alive once the memory file is closed.
+            return ParcelFileDescriptor.dup(file.getFileDescriptor());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * {@link ByteArrayOutputStream} whose content can be handed out without copying it to a new
+     * array first.
+     */
+    public static final class BufferOutputStream extends ByteArrayOutputStream {
+        public BufferOutputStream() {
+        }
+
+        public BufferOutputStream(int size) {
+            super(size);
+        }
+
+        /**
+         * Returns a descriptor of a shared memory region holding the content written so far.
+         */
+        public synchronized ParcelFileDescriptor toParcelFileDescriptor() throws IOException {
+            return createDescriptor(buf, count);
+        }
+    }
+}
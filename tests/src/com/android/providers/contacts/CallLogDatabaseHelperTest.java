@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.CallLog.Calls;
+import android.provider.VoicemailContract.Voicemails;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.contacts.CallLogDatabaseHelper.Indexes;
+import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
+
+/**
+ * Tests the query plans of the common call log queries, so that they keep using the indexes of
+ * the calls table.
+ */
+@SmallTest
+public class CallLogDatabaseHelperTest extends AndroidTestCase {
+    private CallLogDatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new CallLogDatabaseHelperTestable(getContext(), /* contactsDb =*/ null);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.closeForTest();
+        super.tearDown();
+    }
+
+    public void testDefaultQueryPlan() {
+        // The default provider query: no voicemails, no hidden calls, newest first.
+        final String plan = getQueryPlan("SELECT " + Calls._ID + " FROM " + Tables.CALLS
+                + " WHERE (" + Calls.TYPE + " != " + Calls.VOICEMAIL_TYPE + ") AND ("
+                + Calls.PHONE_ACCOUNT_HIDDEN + " = 0) ORDER BY " + Calls.DATE + " DESC");
+        assertTrue(plan, plan.contains(Indexes.CALLS_HIDDEN_DATE));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    public void testKeysetPaginationQueryPlan() {
+        final String plan = getQueryPlan("SELECT " + Calls._ID + " FROM " + Tables.CALLS
+                + " WHERE (" + Calls.TYPE + " != " + Calls.VOICEMAIL_TYPE + ") AND ("
+                + Calls.PHONE_ACCOUNT_HIDDEN + " = 0) AND (" + Calls.DATE + "<=1000 AND ("
+                + Calls.DATE + "<1000 OR " + Calls._ID + "<50)) ORDER BY "
+                + CallLogProvider.KEYSET_SORT_ORDER + " LIMIT 50");
+        assertTrue(plan, plan.contains(Indexes.CALLS_HIDDEN_DATE));
+        assertTrue(plan, plan.contains(Calls.DATE + "<?"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    public void testDateQueryPlans() {
+        String plan = getQueryPlan("SELECT " + Calls._ID + " FROM " + Tables.CALLS
+                + " WHERE " + Calls.DATE + " > 1000 ORDER BY " + Calls.DATE + " ASC");
+        assertTrue(plan, plan.contains(Indexes.CALLS_DATE));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        plan = getQueryPlan("DELETE FROM " + Tables.CALLS + " WHERE " + Calls.DATE + " <= 1000");
+        assertTrue(plan, plan.contains(Indexes.CALLS_DATE));
+    }
+
+    public void testNormalizedNumberQueryPlan() {
+        final String plan = getQueryPlan("SELECT " + Calls._ID + " FROM " + Tables.CALLS
+                + " WHERE " + Calls.CACHED_NORMALIZED_NUMBER + " = '+16502530000'");
+        assertTrue(plan, plan.contains(Indexes.CALLS_NORMALIZED_NUMBER));
+    }
+
+    public void testSourcePackageQueryPlan() {
+        final String plan = getQueryPlan("SELECT " + Calls._ID + " FROM " + Tables.CALLS
+                + " WHERE " + Voicemails.SOURCE_PACKAGE + " = 'com.example'");
+        assertTrue(plan, plan.contains(Indexes.CALLS_SOURCE_PACKAGE));
+    }
+
+    private String getQueryPlan(String sql) {
+        final StringBuilder sb = new StringBuilder();
+        try (Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null)) {
+            final int detailIndex = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                sb.append(c.getString(detailIndex)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -57,6 +57,26 @@ public class CallLogInsertionHelperTest extends AndroidTestCase {
         checkNormalization("test@sip.org", null);
     }
 
+    /**
+     * Tests that inserting the same number again gives the same values, whether they are
+     * computed or come from the cache.
+     */
+    public void testRepeatedNumber() {
+        checkNormalization("650-555-1212", "+16505551212");
+        checkNormalization("650-555-1212", "+16505551212");
+
+        // A normalized number passed in is kept.
+        ContentValues values = new ContentValues();
+        values.put(Calls.NUMBER, "650-555-1212");
+        values.put(Calls.CACHED_NORMALIZED_NUMBER, "+16505550000");
+        mInsertionHelper.addComputedValues(values);
+        assertEquals("+16505550000", values.getAsString(Calls.CACHED_NORMALIZED_NUMBER));
+
+        assertEquals(values.getAsString(Calls.GEOCODED_LOCATION),
+                mInsertionHelper.getGeocodedLocationFor("650-555-1212",
+                        values.getAsString(Calls.COUNTRY_ISO)));
+    }
+
     /**
      * Runs the DefaultCallLogInsertionHelper to determine if it produces the correct normalized
      * phone number.
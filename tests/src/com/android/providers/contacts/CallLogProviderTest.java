@@ -23,6 +23,8 @@ import com.android.providers.contacts.testutil.CommonDatabaseUtils;
 
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -34,8 +36,12 @@ import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.VoicemailContract.Voicemails;
 import android.telecom.PhoneAccountHandle;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -50,6 +56,8 @@ import java.util.List;
  */
 @MediumTest
 public class CallLogProviderTest extends BaseContactsProvider2Test {
+    private static final String TAG = "CallLogProviderTest";
+
     /** Fields specific to voicemail provider that should not be exposed by call_log*/
     private static final String[] VOICEMAIL_PROVIDER_SPECIFIC_COLUMNS = new String[] {
             Voicemails._DATA,
@@ -157,6 +165,48 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         assertEquals(0, getCount(uri, null, null));
     }
 
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getDefaultCallValues();
+            values[i].put(Calls.DATE, 1000 + i);
+        }
+        assertEquals(3, mResolver.bulkInsert(Calls.CONTENT_URI, values));
+        assertEquals(3, getCount(Calls.CONTENT_URI, null, null));
+        assertEquals(1, getCount(Calls.CONTENT_URI, Calls.DATE + "=1002", null));
+    }
+
+    public void testApplyBatch() throws Exception {
+        Uri uri = insertCallRecord();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(Calls.CONTENT_URI)
+                .withValues(getDefaultCallValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(uri)
+                .withValue(Calls.DURATION, 42)
+                .build());
+        ContentProviderResult[] results = mResolver.applyBatch(CallLog.AUTHORITY, operations);
+        assertEquals(2, results.length);
+        assertEquals(1, (int) results[1].count);
+        assertEquals(2, getCount(Calls.CONTENT_URI, null, null));
+        assertEquals(1, getCount(Calls.CONTENT_URI, Calls.DURATION + "=42", null));
+
+        // A failing operation rolls back the whole batch.
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(Calls.CONTENT_URI)
+                .withValues(getDefaultCallValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(uri)
+                .withValue(Voicemails.SOURCE_PACKAGE, "foo")
+                .build());
+        try {
+            mResolver.applyBatch(CallLog.AUTHORITY, operations);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(2, getCount(Calls.CONTENT_URI, null, null));
+    }
+
     public void testCallLogFilter() {
         ContentValues values = getDefaultCallValues();
         mResolver.insert(Calls.CONTENT_URI, values);
@@ -266,6 +316,138 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         }
     }
 
+    public void testKeysetPagination() {
+        // Two calls per date, so that pages have to break ties by ID.
+        ContentValues[] values = new ContentValues[10];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getDefaultCallValues();
+            values[i].put(Calls.DATE, 1000 + i / 2);
+        }
+        mResolver.bulkInsert(Calls.CONTENT_URI, values);
+
+        final String[] projection = new String[] {Calls._ID, Calls.DATE};
+        final List<Long> expectedIds = new ArrayList<>();
+        Cursor c = mResolver.query(Calls.CONTENT_URI, projection, null, null,
+                CallLogProvider.KEYSET_SORT_ORDER);
+        try {
+            while (c.moveToNext()) {
+                expectedIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        // Pages of 3, each starting after the last call of the previous one.
+        final List<Long> ids = new ArrayList<>();
+        Uri pageUri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "3")
+                .build();
+        while (true) {
+            c = mResolver.query(pageUri, projection, null, null, null);
+            try {
+                if (!c.moveToLast()) {
+                    break;
+                }
+                c.moveToPosition(-1);
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                }
+                c.moveToLast();
+                pageUri = Calls.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "3")
+                        .appendQueryParameter(CallLogProvider.AFTER_DATE_PARAM_KEY,
+                                String.valueOf(c.getLong(1)))
+                        .appendQueryParameter(CallLogProvider.AFTER_ID_PARAM_KEY,
+                                String.valueOf(c.getLong(0)))
+                        .build();
+            } finally {
+                c.close();
+            }
+        }
+        assertEquals(expectedIds, ids);
+    }
+
+    @SmallTest
+    public void testKeysetPaginationWithoutId() {
+        ContentValues[] values = new ContentValues[4];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getDefaultCallValues();
+            values[i].put(Calls.DATE, 1000 + i / 2);
+        }
+        mResolver.bulkInsert(Calls.CONTENT_URI, values);
+
+        // Both calls at the anchor date come before the page.
+        final Uri uri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(CallLogProvider.AFTER_DATE_PARAM_KEY, "1001")
+                .build();
+        assertEquals(Arrays.asList(1000L, 1000L), queryDates(uri, null));
+    }
+
+    public void testKeysetPaginationWithOffsetThrowsException() {
+        final Uri uri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(CallLogProvider.AFTER_DATE_PARAM_KEY, "1000")
+                .appendQueryParameter(Calls.OFFSET_PARAM_KEY, "3")
+                .build();
+        try {
+            mResolver.query(uri, null, null, null, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Compares reading a page deep in a large call log with an offset and with keyset
+     * pagination.
+     */
+    @LargeTest
+    public void testKeysetPaginationPerformance() {
+        final int count = 100000;
+        final int pageSize = 50;
+        final ContentValues[] values = new ContentValues[1000];
+        for (int i = 0; i < count; i += values.length) {
+            for (int j = 0; j < values.length; j++) {
+                values[j] = getDefaultCallValues();
+                values[j].put(Calls.DATE, i + j);
+            }
+            mResolver.bulkInsert(Calls.CONTENT_URI, values);
+        }
+
+        // The page starting after the call of date 10000, 90000 calls deep.
+        final long offsetStart = System.nanoTime();
+        final Uri offsetUri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, String.valueOf(pageSize))
+                .appendQueryParameter(Calls.OFFSET_PARAM_KEY, String.valueOf(count - 10000))
+                .build();
+        final List<Long> offsetDates = queryDates(offsetUri, CallLogProvider.KEYSET_SORT_ORDER);
+        final long offsetTime = System.nanoTime() - offsetStart;
+
+        final long keysetStart = System.nanoTime();
+        final Uri keysetUri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, String.valueOf(pageSize))
+                .appendQueryParameter(CallLogProvider.AFTER_DATE_PARAM_KEY, "10000")
+                .build();
+        final List<Long> keysetDates = queryDates(keysetUri, null);
+        final long keysetTime = System.nanoTime() - keysetStart;
+
+        assertEquals(offsetDates, keysetDates);
+        assertEquals(Long.valueOf(9999), keysetDates.get(0));
+        Log.i(TAG, "Page of " + pageSize + " calls out of " + count + ": offset "
+                + (offsetTime / 1000) + " us, keyset " + (keysetTime / 1000) + " us");
+    }
+
+    private List<Long> queryDates(Uri uri, String sortOrder) {
+        final List<Long> dates = new ArrayList<>();
+        final Cursor c = mResolver.query(uri, new String[] {Calls.DATE}, null, null, sortOrder);
+        try {
+            while (c.moveToNext()) {
+                dates.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return dates;
+    }
+
     public void testUriWithBadLimitParamThrowsException() {
         assertParamThrowsIllegalArgumentException(Calls.LIMIT_PARAM_KEY, "notvalid");
     }
@@ -20,13 +20,17 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.RawContacts;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.StreamItemPhotosColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.StreamItemsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.google.android.collect.Sets;
 
@@ -416,6 +420,42 @@ public class ContactsDatabaseHelperTest extends BaseContactsProvider2Test {
                 RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE);
     }
 
+    public void testPhotoFileIdQueryPlans() {
+        // The photo store cleanup walks the referenced photo file IDs a range at a time.
+        final long photoMimeTypeId = mDbHelper.getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
+        String plan = getQueryPlan("SELECT " + DataColumns.PHOTO_FILE_ID_AS_INTEGER
+                + " FROM " + Tables.DATA + " WHERE " + DataColumns.MIMETYPE_ID + "="
+                + photoMimeTypeId + " AND " + Photo.PHOTO_FILE_ID + " IS NOT NULL AND "
+                + DataColumns.PHOTO_FILE_ID_AS_INTEGER + ">=1024 AND "
+                + DataColumns.PHOTO_FILE_ID_AS_INTEGER + "<2048 ORDER BY "
+                + DataColumns.PHOTO_FILE_ID_AS_INTEGER);
+        assertTrue(plan, plan.contains("data_photo_file_id_index"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        plan = getQueryPlan("SELECT " + StreamItemPhotosColumns.CONCRETE_PHOTO_FILE_ID
+                + " FROM " + Tables.STREAM_ITEM_PHOTOS + " JOIN " + Tables.STREAM_ITEMS
+                + " ON " + StreamItemPhotosColumns.CONCRETE_STREAM_ITEM_ID + "="
+                + StreamItemsColumns.CONCRETE_ID + " WHERE "
+                + StreamItemPhotosColumns.CONCRETE_PHOTO_FILE_ID + ">=1024 ORDER BY "
+                + StreamItemPhotosColumns.CONCRETE_PHOTO_FILE_ID + " LIMIT 1");
+        assertTrue(plan, plan.contains("stream_item_photos_photo_file_id_index"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    private String getQueryPlan(String sql) {
+        final StringBuilder sb = new StringBuilder();
+        final Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            final int detailIndex = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                sb.append(c.getString(detailIndex)).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return sb.toString();
+    }
+
     private void assertUpgradeToVersion1111(int expectedBucket, String expectedLabel,
             String bucketColumn, String labelColumn) {
         final Cursor cursor = mDb.query(Tables.RAW_CONTACTS,
@@ -49,10 +49,13 @@ import com.android.providers.contacts.ContactsDatabaseHelper.GroupsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.MetadataSyncColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.MetadataSyncStateColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameBlockingKeyColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.NicknameLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.PackagesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.PhonebookBucketCountsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.PhotoFilesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.PreAuthorizedUris;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.StatusUpdatesColumns;
@@ -258,6 +261,7 @@ public class ContactsDatabaseHelperUpgradeTest extends BaseDatabaseHelperUpgrade
             new TableColumn(PhotoFiles.HEIGHT, INTEGER, true, null),
             new TableColumn(PhotoFiles.WIDTH, INTEGER, true, null),
             new TableColumn(PhotoFiles.FILESIZE, INTEGER, true, null),
+            new TableColumn(PhotoFilesColumns.CONTENT_HASH, TEXT, false, null),
     };
 
     private static final TableColumn[] PACKAGES_COLUMNS = new TableColumn[] {
@@ -316,6 +320,22 @@ public class ContactsDatabaseHelperUpgradeTest extends BaseDatabaseHelperUpgrade
             new TableColumn(NameLookupColumns.NAME_TYPE, INTEGER, true, null),
     };
 
+    private static final TableColumn[] NAME_BLOCKING_KEY_COLUMNS = new TableColumn[] {
+            new TableColumn(NameBlockingKeyColumns.BLOCKING_KEY, TEXT, true, null),
+            new TableColumn(NameBlockingKeyColumns.NAME_TYPE, INTEGER, true, null),
+            new TableColumn(NameBlockingKeyColumns.NORMALIZED_NAME, TEXT, true, null),
+            new TableColumn(NameBlockingKeyColumns.RAW_CONTACT_ID, INTEGER, true, null),
+            new TableColumn(NameBlockingKeyColumns.DATA_ID, INTEGER, true, null),
+    };
+
+    private static final TableColumn[] PHONEBOOK_BUCKET_COUNTS_COLUMNS = new TableColumn[] {
+            new TableColumn(PhonebookBucketCountsColumns.SCOPE, INTEGER, true, null),
+            new TableColumn(PhonebookBucketCountsColumns.ALTERNATIVE, INTEGER, true, null),
+            new TableColumn(PhonebookBucketCountsColumns.PHONEBOOK_BUCKET, INTEGER, true, null),
+            new TableColumn(PhonebookBucketCountsColumns.PHONEBOOK_LABEL, TEXT, true, null),
+            new TableColumn(PhonebookBucketCountsColumns.CONTACT_COUNT, INTEGER, true, "0"),
+    };
+
     private static final TableColumn[] NICKNAME_LOOKUP_COLUMNS = new TableColumn[] {
             new TableColumn(NicknameLookupColumns.NAME, TEXT, false, null),
             new TableColumn(NicknameLookupColumns.CLUSTER, TEXT, false, null),
@@ -492,12 +512,14 @@ public class ContactsDatabaseHelperUpgradeTest extends BaseDatabaseHelperUpgrade
             new TableListEntry(Tables.DATA, DATA_COLUMNS),
             new TableListEntry(Tables.PHONE_LOOKUP, PHONE_LOOKUP_COLUMNS),
             new TableListEntry(Tables.NAME_LOOKUP, NAME_LOOKUP_COLUMNS),
+            new TableListEntry(Tables.NAME_BLOCKING_KEY, NAME_BLOCKING_KEY_COLUMNS),
             new TableListEntry(Tables.NICKNAME_LOOKUP, NICKNAME_LOOKUP_COLUMNS),
             new TableListEntry(Tables.GROUPS, GROUPS_COLUMNS),
             new TableListEntry(Tables.AGGREGATION_EXCEPTIONS, AGGREGATION_EXCEPTIONS_COLUMNS),
             new TableListEntry(Tables.SETTINGS, SETTINGS_COLUMNS),
             new TableListEntry(Tables.VISIBLE_CONTACTS, VISIBLE_CONTACTS_COLUMNS),
             new TableListEntry(Tables.DEFAULT_DIRECTORY, DEFAULT_DIRECTORY_COLUMNS),
+            new TableListEntry(Tables.PHONEBOOK_BUCKET_COUNTS, PHONEBOOK_BUCKET_COUNTS_COLUMNS),
             new TableListEntry("calls", CALLS_COLUMNS, false),
             new TableListEntry("voicemail_status", VOICEMAIL_STATUS_COLUMNS, false),
             new TableListEntry(Tables.STATUS_UPDATES, STATUS_UPDATES_COLUMNS),
@@ -33,6 +33,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.CommonDataKinds.Callable;
@@ -73,6 +74,7 @@ import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.text.TextUtils;
 import android.util.ArraySet;
+import android.util.Log;
 
 import com.android.internal.util.ArrayUtils;
 import com.android.providers.contacts.ContactsActor.AlteringUserContext;
@@ -99,12 +101,14 @@ import com.android.providers.contacts.testutil.TestUtil;
 import com.android.providers.contacts.tests.R;
 import com.android.providers.contacts.util.NullContentProvider;
 import com.android.providers.contacts.util.UserUtils;
+import com.android.vcard.VCardConfig;
 
 import com.google.android.collect.Lists;
 import com.google.android.collect.Sets;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.Collator;
 import java.util.ArrayList;
@@ -6242,6 +6246,45 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertVisibility(rawContactId, "1");
     }
 
+    public void testContactVisibilityUpdateOnGroupAndSettingsChange() {
+        long groupId = createGroup(mAccount, "123", "Group", 0);
+        long groupedRawContactId = RawContactUtil.createRawContact(mResolver, mAccount);
+        insertGroupMembership(groupedRawContactId, groupId);
+        long ungroupedRawContactId = RawContactUtil.createRawContact(mResolver, mAccount);
+        long otherAccountRawContactId = RawContactUtil.createRawContact(mResolver, mAccountTwo);
+        assertVisibility(groupedRawContactId, "0");
+        assertVisibility(ungroupedRawContactId, "0");
+        assertVisibility(otherAccountRawContactId, "0");
+
+        // Only the members of the group are affected
+        ContentValues values = new ContentValues();
+        values.put(Groups.GROUP_VISIBLE, 1);
+        mResolver.update(ContentUris.withAppendedId(Groups.CONTENT_URI, groupId), values,
+                null, null);
+        assertVisibility(groupedRawContactId, "1");
+        assertVisibility(ungroupedRawContactId, "0");
+        assertVisibility(otherAccountRawContactId, "0");
+
+        // Only the contacts of the account are affected
+        values.clear();
+        values.put(Settings.ACCOUNT_NAME, mAccountTwo.name);
+        values.put(Settings.ACCOUNT_TYPE, mAccountTwo.type);
+        values.put(Settings.UNGROUPED_VISIBLE, 1);
+        mResolver.insert(Settings.CONTENT_URI, values);
+        assertVisibility(groupedRawContactId, "1");
+        assertVisibility(ungroupedRawContactId, "0");
+        assertVisibility(otherAccountRawContactId, "1");
+
+        // Deleting the group leaves its former members ungrouped
+        mResolver.delete(ContentUris.withAppendedId(Groups.CONTENT_URI, groupId), null, null);
+        assertVisibility(groupedRawContactId, "0");
+
+        mResolver.delete(Settings.CONTENT_URI, Settings.ACCOUNT_NAME + "=? AND "
+                + Settings.ACCOUNT_TYPE + "=?",
+                new String[] {mAccountTwo.name, mAccountTwo.type});
+        assertVisibility(otherAccountRawContactId, "0");
+    }
+
     private void assertVisibility(long rawContactId, String expectedValue) {
         assertStoredValue(Contacts.CONTENT_URI, Contacts._ID + "=" + queryContactId(rawContactId),
                 null, Contacts.IN_VISIBLE_GROUP, expectedValue);
@@ -6650,6 +6693,44 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertTrue(cp.haveAccountsChanged(ACCOUNTS_1));
     }
 
+    public void testAggregationAlgorithmUpgradeResumes() {
+        final ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        final ContactsDatabaseHelper helper = cp.getThreadActiveDatabaseHelperForTest();
+
+        // Two pairs of matching raw contacts, kept apart until the upgrade re-aggregates them.
+        long rawContactId1 = createRawContactWithAggregationDisabled("John", "Doe");
+        long rawContactId2 = createRawContactWithAggregationDisabled("John", "Doe");
+        long rawContactId3 = createRawContactWithAggregationDisabled("Jane", "Roe");
+        long rawContactId4 = createRawContactWithAggregationDisabled("Jane", "Roe");
+        helper.getWritableDatabase().execSQL("UPDATE " + Tables.RAW_CONTACTS
+                + " SET " + RawContacts.AGGREGATION_MODE + "="
+                + RawContacts.AGGREGATION_MODE_DEFAULT);
+
+        // An interrupted upgrade that already covered the first pair.
+        helper.setProperty(DbProperties.AGGREGATION_ALGORITHM, "1");
+        helper.setProperty(DbProperties.AGGREGATION_UPGRADE_CURSOR,
+                String.valueOf(rawContactId2));
+
+        // One raw contact per chunk, each chunk scheduling the next one.
+        cp.setAggregationUpgradeChunkSizeForTest(1);
+        cp.performBackgroundTask(ContactsProvider2.BACKGROUND_TASK_UPGRADE_AGGREGATION_ALGORITHM,
+                null);
+
+        MoreAsserts.assertNotEqual(queryContactId(rawContactId1), queryContactId(rawContactId2));
+        assertEquals(queryContactId(rawContactId3), queryContactId(rawContactId4));
+        assertEquals("0", helper.getProperty(DbProperties.AGGREGATION_UPGRADE_CURSOR, null));
+        MoreAsserts.assertNotEqual("1",
+                helper.getProperty(DbProperties.AGGREGATION_ALGORITHM, null));
+    }
+
+    private long createRawContactWithAggregationDisabled(String firstName, String lastName) {
+        long rawContactId = RawContactUtil.createRawContact(mResolver, null,
+                RawContacts.AGGREGATION_MODE,
+                String.valueOf(RawContacts.AGGREGATION_MODE_DISABLED));
+        DataUtil.insertStructuredName(mResolver, rawContactId, firstName, lastName);
+        return rawContactId;
+    }
+
     public void testAccountsUpdated() {
         // This is to ensure we do not delete contacts with null, null (account name, type)
         // accidentally.
@@ -6766,6 +6847,47 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertStoredValue(safeStreamItemPhotoUri, StreamItemPhotos._ID, safeStreamItemPhotoId);
     }
 
+    public void testAggregateDataUpdatedOnAccountRemoval() {
+        Account doomedAccount = new Account("doom", "doom");
+        Account safeAccount = mAccount;
+        ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        mActor.setAccounts(new Account[]{doomedAccount, safeAccount});
+        cp.onAccountsUpdated(new Account[]{doomedAccount, safeAccount});
+
+        // Several contacts, each made of a doomed raw contact that provides the display name and
+        // the star, and a safe one.
+        final int count = 3;
+        long[] safeRawContactIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            long doomedRawContactId = RawContactUtil.createRawContactWithName(mResolver,
+                    "Doomed" + i, "Longfamilyname", doomedAccount);
+            storeValue(RawContacts.CONTENT_URI, doomedRawContactId, RawContacts.STARRED, "1");
+            safeRawContactIds[i] = RawContactUtil.createRawContactWithName(mResolver,
+                    "Safe" + i, "Short", safeAccount);
+            setAggregationException(AggregationExceptions.TYPE_KEEP_TOGETHER,
+                    doomedRawContactId, safeRawContactIds[i]);
+
+            long contactId = queryContactId(safeRawContactIds[i]);
+            assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.DISPLAY_NAME,
+                    "Doomed" + i + " Longfamilyname");
+            assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.STARRED, 1);
+        }
+
+        // Remove the doomed account.
+        mActor.setAccounts(new Account[]{safeAccount});
+        cp.onAccountsUpdated(new Account[]{safeAccount});
+
+        // Check that all the contacts have been recomputed from the safe raw contacts.
+        for (int i = 0; i < count; i++) {
+            long contactId = queryContactId(safeRawContactIds[i]);
+            assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.DISPLAY_NAME,
+                    "Safe" + i + " Short");
+            assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.STARRED, 0);
+            assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.NAME_RAW_CONTACT_ID,
+                    safeRawContactIds[i]);
+        }
+    }
+
     public void testMetadataSyncCleanedUpOnAccountRemoval() throws Exception {
         Account doomedAccount = new Account("doom", "doom");
         createAccount(doomedAccount.name, doomedAccount.type, null);
@@ -7257,6 +7379,99 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
                 mResolver.openInputStream(photoUri));
     }
 
+    /**
+     * Not a correctness test: opens and reads the same thumbnail 1,000 times, as a list scrolled
+     * back and forth would, and logs the throughput.
+     */
+    @LargeTest
+    public void testThumbnailOpenThroughput() throws IOException {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        long contactId = queryContactId(rawContactId);
+        Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+        insertPhoto(rawContactId);
+        Uri photoThumbnailUri = Uri.parse(getStoredValue(contactUri, Contacts.PHOTO_THUMBNAIL_URI));
+
+        final int count = 1000;
+        final byte[] buffer = new byte[8192];
+        long bytes = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            InputStream is = mResolver.openInputStream(photoThumbnailUri);
+            try {
+                int n;
+                while ((n = is.read(buffer)) > 0) {
+                    bytes += n;
+                }
+            } finally {
+                is.close();
+            }
+        }
+        final long time = System.nanoTime() - start;
+
+        assertEquals(0, bytes % count);
+        assertTrue(bytes > 0);
+        Log.i(TAG, "Opened " + count + " thumbnails of " + (bytes / count) + " bytes: "
+                + (time / count / 1000) + " us per open");
+    }
+
+    public void testGetThumbnails() throws IOException {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        long contactId1 = queryContactId(rawContactId1);
+        long photoId1 = ContentUris.parseId(insertPhoto(rawContactId1, R.drawable.earth_normal));
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        long contactId2 = queryContactId(rawContactId2);
+        long rawContactId3 = RawContactUtil.createRawContact(mResolver);
+        long contactId3 = queryContactId(rawContactId3);
+        insertPhoto(rawContactId3, R.drawable.earth_large);
+
+        byte[] thumbnail1 = readInputStreamFully(mResolver.openInputStream(
+                Uri.withAppendedPath(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId1),
+                        Contacts.Photo.CONTENT_DIRECTORY)));
+        byte[] thumbnail3 = readInputStreamFully(mResolver.openInputStream(
+                Uri.withAppendedPath(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId3),
+                        Contacts.Photo.CONTENT_DIRECTORY)));
+
+        // Contact 2 has no photo.
+        Bundle extras = new Bundle();
+        extras.putLongArray(ContactsProvider2.THUMBNAILS_KEY_CONTACT_IDS,
+                new long[] {contactId3, contactId2, contactId1});
+        Bundle response = mResolver.call(ContactsContract.AUTHORITY_URI,
+                ContactsProvider2.THUMBNAILS_METHOD, null, extras);
+        MoreAsserts.assertEquals(new int[] {thumbnail3.length, -1, thumbnail1.length},
+                response.getIntArray(ContactsProvider2.THUMBNAILS_KEY_LENGTHS));
+        byte[] packed = readInputStreamFully(new ParcelFileDescriptor.AutoCloseInputStream(
+                (ParcelFileDescriptor) response.getParcelable(
+                        ContactsProvider2.THUMBNAILS_KEY_DESCRIPTOR)));
+        MoreAsserts.assertEquals(thumbnail3, Arrays.copyOfRange(packed, 0, thumbnail3.length));
+        MoreAsserts.assertEquals(thumbnail1, Arrays.copyOfRange(packed, thumbnail3.length,
+                packed.length));
+
+        // By photo data row.
+        extras = new Bundle();
+        extras.putLongArray(ContactsProvider2.THUMBNAILS_KEY_PHOTO_IDS, new long[] {photoId1});
+        response = mResolver.call(ContactsContract.AUTHORITY_URI,
+                ContactsProvider2.THUMBNAILS_METHOD, null, extras);
+        MoreAsserts.assertEquals(new int[] {thumbnail1.length},
+                response.getIntArray(ContactsProvider2.THUMBNAILS_KEY_LENGTHS));
+
+        // Nothing to return.
+        extras = new Bundle();
+        extras.putLongArray(ContactsProvider2.THUMBNAILS_KEY_CONTACT_IDS, new long[] {contactId2});
+        response = mResolver.call(ContactsContract.AUTHORITY_URI,
+                ContactsProvider2.THUMBNAILS_METHOD, null, extras);
+        MoreAsserts.assertEquals(new int[] {-1},
+                response.getIntArray(ContactsProvider2.THUMBNAILS_KEY_LENGTHS));
+        assertNull(response.getParcelable(ContactsProvider2.THUMBNAILS_KEY_DESCRIPTOR));
+
+        // No IDs.
+        try {
+            mResolver.call(ContactsContract.AUTHORITY_URI, ContactsProvider2.THUMBNAILS_METHOD,
+                    null, null);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
     public void testSuperPrimaryPhoto() {
         long rawContactId1 = RawContactUtil.createRawContact(mResolver, new Account("a", "a"));
         Uri photoUri1 = insertPhoto(rawContactId1, R.drawable.earth_normal);
@@ -7585,7 +7800,8 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         // Trigger an initial cleanup so another one won't happen while we're running this test.
         provider.cleanupPhotoStore();
 
-        // Insert a couple of contacts with photos.
+        // Insert a couple of contacts with photos.  The photos differ, since identical photos
+        // share their file.
         long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver);
         long contactId1 = queryContactId(rawContactId1);
         long dataId1 = ContentUris.parseId(insertPhoto(rawContactId1, R.drawable.earth_normal));
@@ -7595,7 +7811,7 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
 
         long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver);
         long contactId2 = queryContactId(rawContactId2);
-        long dataId2 = ContentUris.parseId(insertPhoto(rawContactId2, R.drawable.earth_normal));
+        long dataId2 = ContentUris.parseId(insertPhoto(rawContactId2, R.drawable.earth_large));
         long photoFileId2 =
                 getStoredLongValue(ContentUris.withAppendedId(Data.CONTENT_URI, dataId2),
                         Photo.PHOTO_FILE_ID);
@@ -7639,7 +7855,7 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
 
         // Also insert a bogus photo that nobody is using.
         long bogusPhotoId = photoStore.insert(new PhotoProcessor(loadPhotoFromResource(
-                R.drawable.earth_huge, PhotoSize.ORIGINAL), 256, 96));
+                R.drawable.earth_600x400, PhotoSize.ORIGINAL), 256, 96));
 
         // Manually trigger another cleanup in the provider.
         provider.cleanupPhotoStore();
@@ -7672,6 +7888,75 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
                 new ContentValues[0]);
     }
 
+    public void testPhotoStoreCleanupSlices() throws IOException {
+        SynchronousContactsProvider2 provider = (SynchronousContactsProvider2) mActor.provider;
+        PhotoStore photoStore = provider.getPhotoStore();
+        provider.cleanupPhotoStore();
+
+        long rawContactId = RawContactUtil.createRawContactWithName(mResolver);
+        long dataId = ContentUris.parseId(insertPhoto(rawContactId, R.drawable.earth_normal));
+        long photoFileId =
+                getStoredLongValue(ContentUris.withAppendedId(Data.CONTENT_URI, dataId),
+                        Photo.PHOTO_FILE_ID);
+        long bogusPhotoId = photoStore.insert(new PhotoProcessor(loadPhotoFromResource(
+                R.drawable.earth_600x400, PhotoSize.ORIGINAL), 256, 96));
+        assertEquals(photoFileId + 1, bogusPhotoId);
+
+        // The first slice only covers the photo in use, and the pass goes on after it.
+        assertEquals(bogusPhotoId, provider.cleanupPhotoStoreSlice(photoFileId, 1));
+        assertNotNull(photoStore.get(photoFileId));
+        assertNotNull(photoStore.get(bogusPhotoId));
+
+        // The last slice removes the bogus photo and ends the pass.
+        assertEquals(0, provider.cleanupPhotoStoreSlice(bogusPhotoId, 1));
+        assertNotNull(photoStore.get(photoFileId));
+        assertNull(photoStore.get(bogusPhotoId));
+    }
+
+    public void testPhotoStoreCleanupSlicesSkipGaps() throws IOException {
+        SynchronousContactsProvider2 provider = (SynchronousContactsProvider2) mActor.provider;
+        provider.cleanupPhotoStore();
+
+        // A photo reference far past the photo file IDs in use.
+        long bogusFileId = 1234567;
+        long rawContactId = RawContactUtil.createRawContactWithName(mResolver);
+        long contactId = queryContactId(rawContactId);
+        ContentValues values = new ContentValues();
+        values.put(Data.RAW_CONTACT_ID, rawContactId);
+        values.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
+        values.put(Photo.PHOTO, loadPhotoFromResource(R.drawable.earth_normal,
+                PhotoSize.THUMBNAIL));
+        values.put(Photo.PHOTO_FILE_ID, bogusFileId);
+        values.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
+        mResolver.insert(Data.CONTENT_URI, values);
+
+        // The slice after an empty range starts right at the reference, which it clears.
+        assertEquals(bogusFileId, provider.cleanupPhotoStoreSlice(bogusFileId - 10, 1));
+        assertEquals(0, provider.cleanupPhotoStoreSlice(bogusFileId, 1));
+        assertNull(getStoredValue(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId),
+                Contacts.PHOTO_FILE_ID));
+    }
+
+    public void testPhotoStoreCleanupOrphanedStreamItemPhoto() throws IOException {
+        SynchronousContactsProvider2 provider = (SynchronousContactsProvider2) mActor.provider;
+        PhotoStore photoStore = provider.getPhotoStore();
+        provider.cleanupPhotoStore();
+
+        Account socialAccount = new Account("social", "social");
+        long rawContactId = RawContactUtil.createRawContactWithName(mResolver, socialAccount);
+        long streamItemId = ContentUris.parseId(
+                insertStreamItem(rawContactId, buildGenericStreamItemValues(), socialAccount));
+        Uri streamItemPhotoUri = insertStreamItemPhoto(
+                streamItemId, buildGenericStreamItemPhotoValues(0), socialAccount);
+        long photoFileId = getStoredLongValue(streamItemPhotoUri, StreamItemPhotos.PHOTO_FILE_ID);
+
+        // The photo of a stream item that no longer exists doesn't keep its file.
+        provider.getThreadActiveDatabaseHelperForTest().getWritableDatabase().delete(
+                Tables.STREAM_ITEMS, StreamItems._ID + "=" + streamItemId, null);
+        provider.cleanupPhotoStore();
+        assertNull(photoStore.get(photoFileId));
+    }
+
     public void testPhotoStoreCleanupForProfile() {
         SynchronousContactsProvider2 provider = (SynchronousContactsProvider2) mActor.provider;
         PhotoStore profilePhotoStore = provider.getProfilePhotoStore();
@@ -7995,6 +8280,112 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         cursor.close();
     }
 
+    public void testContactCountsMaintainedIncrementally() {
+        Uri uri = Contacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Contacts.EXTRA_ADDRESS_BOOK_INDEX, "true")
+                .appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY,
+                        String.valueOf(Directory.DEFAULT))
+                .build();
+
+        RawContactUtil.createRawContactWithName(mResolver, "James", "Sullivan");
+        RawContactUtil.createRawContactWithName(mResolver, "Mike", "Wazowski");
+        long maryId = RawContactUtil.createRawContactWithName(mResolver, "Mary", null);
+        long rozId = RawContactUtil.createRawContact(mResolver);
+        Uri rozName = DataUtil.insertStructuredName(mResolver, rozId, "Roz", null);
+
+        Cursor cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "J", "M", "R");
+        assertFirstLetterCounts(cursor,  1,   2,   1);
+        cursor.close();
+
+        // Rename a contact and delete another one
+        ContentValues values = new ContentValues();
+        values.put(StructuredName.DISPLAY_NAME, "Boo");
+        values.put(StructuredName.GIVEN_NAME, "Boo");
+        mResolver.update(rozName, values, null, null);
+        RawContactUtil.delete(mResolver, maryId, true);
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "B", "J", "M");
+        assertFirstLetterCounts(cursor,  1,   1,   1);
+        cursor.close();
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_ALTERNATIVE);
+        assertFirstLetterValues(cursor, "B", "S", "W");
+        assertFirstLetterCounts(cursor,  1,   1,   1);
+        cursor.close();
+    }
+
+    public void testVisibleContactCountsMaintainedIncrementally() {
+        Uri uri = Contacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Contacts.EXTRA_ADDRESS_BOOK_INDEX, "true")
+                .appendQueryParameter(ContactsProvider2.VISIBLE_CONTACTS_ONLY, "true")
+                .build();
+
+        long visibleGroupId = createGroup(mAccount, "123", "Visible", 1);
+        long groupId = createGroup(mAccount, "567", "Group", 0);
+        long jamesId = RawContactUtil.createRawContactWithName(mResolver, "James", "Sullivan",
+                mAccount);
+        insertGroupMembership(jamesId, visibleGroupId);
+        long mikeId = RawContactUtil.createRawContactWithName(mResolver, "Mike", "Wazowski",
+                mAccount);
+        insertGroupMembership(mikeId, visibleGroupId);
+        long maryId = RawContactUtil.createRawContactWithName(mResolver, "Mary", null, mAccount);
+        insertGroupMembership(maryId, groupId);
+        long rozId = RawContactUtil.createRawContactWithName(mResolver, "Roz", null, mAccount);
+        insertGroupMembership(rozId, groupId);
+
+        Cursor cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY);
+        assertEquals(2, cursor.getCount());
+        assertFirstLetterValues(cursor, "J", "M");
+        assertFirstLetterCounts(cursor,  1,   1);
+        cursor.close();
+
+        // Make the group visible
+        ContentValues values = new ContentValues();
+        values.put(Groups.GROUP_VISIBLE, 1);
+        mResolver.update(ContentUris.withAppendedId(Groups.CONTENT_URI, groupId), values,
+                null, null);
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY);
+        assertEquals(4, cursor.getCount());
+        assertFirstLetterValues(cursor, "J", "M", "R");
+        assertFirstLetterCounts(cursor,  1,   2,   1);
+        cursor.close();
+
+        // Take a contact out of the group and delete another one
+        mResolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND "
+                + Data.MIMETYPE + "=?",
+                new String[] {String.valueOf(rozId), GroupMembership.CONTENT_ITEM_TYPE});
+        RawContactUtil.delete(mResolver, mikeId, true);
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY);
+        assertEquals(2, cursor.getCount());
+        assertFirstLetterValues(cursor, "J", "M");
+        assertFirstLetterCounts(cursor,  1,   1);
+        cursor.close();
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_ALTERNATIVE);
+        assertFirstLetterValues(cursor, "M", "S");
+        assertFirstLetterCounts(cursor,  1,   1);
+        cursor.close();
+
+        // The visible contacts are not a scope of the counts once a selection is added
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                Contacts.DISPLAY_NAME + "=?", new String[] {"Mary"}, Contacts.SORT_KEY_PRIMARY);
+        assertEquals(1, cursor.getCount());
+        assertFirstLetterValues(cursor, "M");
+        assertFirstLetterCounts(cursor,  1);
+        cursor.close();
+    }
+
     private void assertFirstLetterValues(Cursor cursor, String... expected) {
         String[] actual = cursor.getExtras()
                 .getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
@@ -8237,6 +8628,79 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertTrue(data.contains("N:Doh;Jane;;;"));
     }
 
+    public void testOpenAssetFileMultiVCardInChunks() throws IOException {
+        // More contacts than fit in a chunk of the parallel export.
+        final int count = 250;
+        final StringBuilder lookupKeys = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            final long rawContactId = RawContactUtil.createRawContactWithName(mResolver,
+                    "John", String.format("Doe%03d", i));
+            final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI,
+                    queryContactId(rawContactId));
+            lookupKeys.append(i == 0 ? "" : ":").append(
+                    Contacts.getLookupUri(mResolver, contactUri).getPathSegments().get(2));
+        }
+
+        final AssetFileDescriptor descriptor = mResolver.openAssetFileDescriptor(
+                Uri.withAppendedPath(Contacts.CONTENT_MULTI_VCARD_URI,
+                        Uri.encode(lookupKeys.toString())), "r");
+        final FileInputStream inputStream = descriptor.createInputStream();
+        String data = readToEnd(inputStream);
+        inputStream.close();
+        descriptor.close();
+
+        // Every contact is there once, in the order of their IDs.
+        int index = -1;
+        for (int i = 0; i < count; i++) {
+            final int next = data.indexOf(String.format("N:Doe%03d;John;;;", i));
+            assertTrue("Contact " + i + " missing or out of order", next > index);
+            index = next;
+        }
+        assertEquals(count, data.split("BEGIN:VCARD").length - 1);
+    }
+
+    /**
+     * Not a correctness test: exports 1,000 contacts to a pipe with more and more composing
+     * threads, and logs the throughput.
+     */
+    @LargeTest
+    public void testMultiVCardExportThroughput() throws IOException {
+        final int count = 1000;
+        final long[] contactIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            contactIds[i] = queryContactId(RawContactUtil.createRawContactWithName(mResolver,
+                    "John", String.format("Doe%04d", i)));
+        }
+
+        final byte[] buffer = new byte[8192];
+        long expectedBytes = -1;
+        for (int threads = 1; threads <= 4; threads *= 2) {
+            final VCardExporter exporter = new VCardExporter(getProvider().getContext(),
+                    threads, 100, 2 * threads);
+            long bytes = 0;
+            final long start = System.nanoTime();
+            final InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(
+                    exporter.exportToPipe(Contacts.CONTENT_URI, contactIds,
+                            VCardConfig.VCARD_TYPE_DEFAULT, RawContactsEntity.CONTENT_URI));
+            try {
+                int n;
+                while ((n = is.read(buffer)) > 0) {
+                    bytes += n;
+                }
+            } finally {
+                is.close();
+            }
+            final long time = System.nanoTime() - start;
+
+            if (expectedBytes == -1) {
+                expectedBytes = bytes;
+            }
+            assertEquals(expectedBytes, bytes);
+            Log.i(TAG, "Exported " + count + " contacts (" + bytes + " bytes) with " + threads
+                    + " threads: " + (count * 1000000000L / time) + " contacts/s");
+        }
+    }
+
     public void testOpenAssetFileSingleVCard() throws IOException {
         final VCardTestUriCreator contacts = createVCardTestContacts();
 
@@ -24,13 +24,26 @@ import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
-import com.android.providers.contacts.util.MockSharedPreferences;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
 
 @SmallTest
 public class FastScrollingIndexCacheTest extends AndroidTestCase {
-    private MockSharedPreferences mPrefs;
+    private File mFile;
     private FastScrollingIndexCache mCache;
 
+    // Runs the write-backs right away, so that a new instance sees them.
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     private static final String[] TITLES_0 = new String[] {};
     private static final String[] TITLES_1 = new String[] {"a"};
     private static final String[] TITLES_2 = new String[] {"", "b"};
@@ -52,8 +65,15 @@ public class FastScrollingIndexCacheTest extends AndroidTestCase {
     protected void setUp() throws Exception {
         super.setUp();
 
-        mPrefs = new MockSharedPreferences();
-        mCache = FastScrollingIndexCache.getInstanceForTest(mPrefs);
+        mFile = new File(getContext().getCacheDir(), "test_" + FastScrollingIndexCache.FILE_NAME);
+        mFile.delete();
+        mCache = FastScrollingIndexCache.getInstanceForTest(mFile, DIRECT_EXECUTOR);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
     }
 
     private void assertBundle(String[] expectedTitles, int[] expectedCounts, Bundle actual) {
@@ -65,19 +85,32 @@ public class FastScrollingIndexCacheTest extends AndroidTestCase {
     }
 
     /**
-     * Test for {@link FastScrollingIndexCache#buildExtraBundleFromValue} and
-     * {@link FastScrollingIndexCache#buildCacheValue}.
+     * Test for {@link FastScrollingIndexCache#writeEntries} and
+     * {@link FastScrollingIndexCache#readEntries}.
      */
-    public void testBuildCacheValue() {
-        assertBundle(TITLES_0, COUNTS_0,
-                FastScrollingIndexCache.buildExtraBundleFromValue(
-                        FastScrollingIndexCache.buildCacheValue(TITLES_0, COUNTS_0)));
-        assertBundle(TITLES_1, COUNTS_1,
-                FastScrollingIndexCache.buildExtraBundleFromValue(
-                        FastScrollingIndexCache.buildCacheValue(TITLES_1, COUNTS_1)));
-        assertBundle(TITLES_2, COUNTS_2,
-                FastScrollingIndexCache.buildExtraBundleFromValue(
-                        FastScrollingIndexCache.buildCacheValue(TITLES_2, COUNTS_2)));
+    public void testWriteAndReadEntries() throws Exception {
+        final LinkedHashMap<String, FastScrollingIndexCache.Entry> entries =
+                new LinkedHashMap<String, FastScrollingIndexCache.Entry>();
+        entries.put("k0", new FastScrollingIndexCache.Entry(TITLES_0, COUNTS_0));
+        entries.put("k1", new FastScrollingIndexCache.Entry(TITLES_1, COUNTS_1));
+        entries.put("k2", new FastScrollingIndexCache.Entry(TITLES_3, COUNTS_3));
+        entries.put("k3", new FastScrollingIndexCache.Entry(new String[] {null}, new int[] {4}));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FastScrollingIndexCache.writeEntries(out, entries);
+        final LinkedHashMap<String, FastScrollingIndexCache.Entry> read =
+                new LinkedHashMap<String, FastScrollingIndexCache.Entry>();
+        FastScrollingIndexCache.readEntries(new ByteArrayInputStream(out.toByteArray()), read);
+
+        MoreAsserts.assertEquals(entries.keySet(), read.keySet());
+        MoreAsserts.assertEquals(TITLES_0, read.get("k0").titles);
+        MoreAsserts.assertEquals(COUNTS_0, read.get("k0").counts);
+        MoreAsserts.assertEquals(TITLES_1, read.get("k1").titles);
+        MoreAsserts.assertEquals(COUNTS_1, read.get("k1").counts);
+        MoreAsserts.assertEquals(TITLES_3, read.get("k2").titles);
+        MoreAsserts.assertEquals(COUNTS_3, read.get("k2").counts);
+        assertNull(read.get("k3").titles[0]);
+        MoreAsserts.assertEquals(new int[] {4}, read.get("k3").counts);
     }
 
     private static final Bundle putAndGetBundle(FastScrollingIndexCache cache, Uri queryUri,
@@ -137,19 +170,85 @@ public class FastScrollingIndexCacheTest extends AndroidTestCase {
         b = putAndGetBundle(mCache, URI_B, "s", PROJECTION_2, "so", "ce", TITLES_2, COUNTS_2);
         assertBundle(TITLES_2, COUNTS_2, b);
 
-        // Now, create a new cache instance (with the same shared preferences)
-        // It should restore the cache content from the preferences...
+        // Now, create a new cache instance (with the same file)
+        // It should restore the cache content from the file...
 
-        FastScrollingIndexCache cache2 = FastScrollingIndexCache.getInstanceForTest(mPrefs);
+        FastScrollingIndexCache cache2 =
+                FastScrollingIndexCache.getInstanceForTest(mFile, DIRECT_EXECUTOR);
         assertBundle(TITLES_0, COUNTS_0, cache2.get(null, null, null, null, null));
         assertBundle(TITLES_1, COUNTS_1, cache2.get(URI_A, "*s*", PROJECTION_0, "*so*", "*ce*"));
         assertBundle(TITLES_2, COUNTS_2, cache2.get(URI_A, "*s*", PROJECTION_1, "*so*", "*ce*"));
         assertBundle(TITLES_2, COUNTS_2, cache2.get(URI_B, "s", PROJECTION_2, "so", "ce"));
     }
 
-    public void testMalformedPreferences() {
-        mPrefs.edit().putString(FastScrollingIndexCache.PREFERENCE_KEY, "123");
+    public void testInvalidateIsPersisted() {
+        putAndGetBundle(mCache, URI_A, "*s*", PROJECTION_0, "*so*", "*ce*", TITLES_1, COUNTS_1);
+        mCache.invalidate();
+        assertFalse(mFile.exists());
+
+        FastScrollingIndexCache cache2 =
+                FastScrollingIndexCache.getInstanceForTest(mFile, DIRECT_EXECUTOR);
+        assertNull(cache2.get(URI_A, "*s*", PROJECTION_0, "*so*", "*ce*"));
+    }
+
+    public void testInvalidateDeletesFileRightAway() {
+        putAndGetBundle(mCache, URI_A, "*s*", PROJECTION_0, "*so*", "*ce*", TITLES_1, COUNTS_1);
+        assertTrue(mFile.exists());
+
+        // Write-backs never run on this executor.
+        final FastScrollingIndexCache cache2 = FastScrollingIndexCache.getInstanceForTest(mFile,
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                    }
+                });
+        cache2.invalidate();
+        assertFalse(mFile.exists());
+    }
+
+    public void testLongKeyNotPersisted() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            sb.append('s');
+        }
+        putAndGetBundle(mCache, URI_A, "*s*", PROJECTION_0, "*so*", "*ce*", TITLES_1, COUNTS_1);
+        putAndGetBundle(mCache, URI_A, sb.toString(), null, null, null, TITLES_2, COUNTS_2);
+        assertBundle(TITLES_2, COUNTS_2, mCache.get(URI_A, sb.toString(), null, null, null));
+
+        // The other entries are still saved.
+        FastScrollingIndexCache cache2 =
+                FastScrollingIndexCache.getInstanceForTest(mFile, DIRECT_EXECUTOR);
+        assertBundle(TITLES_1, COUNTS_1, cache2.get(URI_A, "*s*", PROJECTION_0, "*so*", "*ce*"));
+        assertNull(cache2.get(URI_A, sb.toString(), null, null, null));
+    }
+
+    public void testLeastRecentlyUsedEntriesDropped() {
+        for (int i = 0; i < FastScrollingIndexCache.MAX_ENTRIES; i++) {
+            putAndGetBundle(mCache, URI_A, "s" + i, null, null, null, TITLES_1, COUNTS_1);
+        }
+        // Use the first entry, so that the second one becomes the eldest.
+        assertNotNull(mCache.get(URI_A, "s0", null, null, null));
+        putAndGetBundle(mCache, URI_B, "s", null, null, null, TITLES_2, COUNTS_2);
+
+        assertNotNull(mCache.get(URI_A, "s0", null, null, null));
+        assertNull(mCache.get(URI_A, "s1", null, null, null));
+        assertBundle(TITLES_2, COUNTS_2, mCache.get(URI_B, "s", null, null, null));
+
+        // The bound also applies to what is restored from the file.
+        FastScrollingIndexCache cache2 =
+                FastScrollingIndexCache.getInstanceForTest(mFile, DIRECT_EXECUTOR);
+        assertNotNull(cache2.get(URI_A, "s0", null, null, null));
+        assertNull(cache2.get(URI_A, "s1", null, null, null));
+    }
+
+    public void testMalformedFile() throws Exception {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] {'1', '2', '3'});
+        out.close();
+
+        FastScrollingIndexCache cache =
+                FastScrollingIndexCache.getInstanceForTest(mFile, DIRECT_EXECUTOR);
         // get() shouldn't crash
-        assertNull(mCache.get(null, null, null, null, null));
+        assertNull(cache.get(null, null, null, null, null));
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link PhotoCache}.
+ */
+@SmallTest
+public class PhotoCacheTest extends AndroidTestCase {
+
+    public void testPutAndGet() {
+        final PhotoCache cache = new PhotoCache(1000);
+        final byte[] thumbnail = new byte[10];
+        assertNull(cache.getThumbnail(PhotoCache.getDataKey(1)));
+
+        cache.putThumbnail(PhotoCache.getDataKey(1), cache.getGeneration(), thumbnail);
+        assertSame(thumbnail, cache.getThumbnail(PhotoCache.getDataKey(1)));
+        assertNull(cache.getThumbnail(PhotoCache.getContactKey(1)));
+
+        cache.putPhotoFileId(1, cache.getGeneration(), 5);
+        assertEquals(Long.valueOf(5), cache.getPhotoFileId(1));
+        assertNull(cache.getPhotoFileId(2));
+    }
+
+    public void testInvalidate() {
+        final PhotoCache cache = new PhotoCache(1000);
+        final long generation = cache.getGeneration();
+        cache.putThumbnail(PhotoCache.getDataKey(1), generation, new byte[10]);
+        cache.putPhotoFileId(1, generation, 5);
+
+        cache.invalidate();
+        assertNull(cache.getThumbnail(PhotoCache.getDataKey(1)));
+        assertNull(cache.getPhotoFileId(1));
+        assertEquals(0, cache.getThumbnailBytes());
+
+        // Values read before the invalidation are not stored.
+        cache.putThumbnail(PhotoCache.getDataKey(1), generation, new byte[10]);
+        cache.putPhotoFileId(1, generation, 5);
+        assertNull(cache.getThumbnail(PhotoCache.getDataKey(1)));
+        assertNull(cache.getPhotoFileId(1));
+    }
+
+    public void testByteBudget() {
+        final PhotoCache cache = new PhotoCache(100);
+        final long generation = cache.getGeneration();
+        for (int i = 1; i <= 4; i++) {
+            cache.putThumbnail(PhotoCache.getDataKey(i), generation, new byte[25]);
+        }
+        assertEquals(100, cache.getThumbnailBytes());
+
+        // Use 1 so that 2 is the least recently used one, then go over the budget.
+        assertNotNull(cache.getThumbnail(PhotoCache.getDataKey(1)));
+        cache.putThumbnail(PhotoCache.getDataKey(5), generation, new byte[20]);
+        assertEquals(95, cache.getThumbnailBytes());
+        assertNotNull(cache.getThumbnail(PhotoCache.getDataKey(1)));
+        assertNull(cache.getThumbnail(PhotoCache.getDataKey(2)));
+        assertNotNull(cache.getThumbnail(PhotoCache.getDataKey(5)));
+
+        // Replacing an entry accounts for the old size.
+        cache.putThumbnail(PhotoCache.getDataKey(5), generation, new byte[5]);
+        assertEquals(80, cache.getThumbnailBytes());
+
+        // Thumbnails taking more than a quarter of the budget are not cached.
+        cache.putThumbnail(PhotoCache.getDataKey(6), generation, new byte[26]);
+        assertNull(cache.getThumbnail(PhotoCache.getDataKey(6)));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.os.ParcelFileDescriptor;
+import android.os.ParcelFileDescriptor.AutoCloseOutputStream;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link PhotoIngestionExecutor}.
+ */
+@SmallTest
+public class PhotoIngestionExecutorTest extends AndroidTestCase {
+
+    public void testIngestionIsBounded() throws Exception {
+        final PhotoIngestionExecutor executor = new PhotoIngestionExecutor(1, 1, 1024);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final PhotoIngestionExecutor.PhotoHandler handler =
+                new PhotoIngestionExecutor.PhotoHandler() {
+            @Override
+            public void onPhotoWritten(byte[] photoBytes) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+
+        // One photo processed and one still being written, there is no room for a third.
+        writePhoto(executor.ingest(handler), new byte[] {1});
+        final ParcelFileDescriptor second = executor.ingest(handler);
+        assertNotNull(second);
+        assertNull(executor.ingest(handler));
+
+        // A photo that is written once the open went through is not dropped.
+        writePhoto(second, new byte[] {2});
+        assertNull(executor.ingest(handler));
+
+        // Once the photos are processed, the slots are free again.
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        final long deadline = SystemClock.elapsedRealtime() + 5000;
+        ParcelFileDescriptor third;
+        while ((third = executor.ingest(handler)) == null
+                && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(third);
+        third.close();
+    }
+
+    private static void writePhoto(ParcelFileDescriptor descriptor, byte[] bytes)
+            throws IOException {
+        assertNotNull(descriptor);
+        final OutputStream os = new AutoCloseOutputStream(descriptor);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    public void testReadAtMost() throws Exception {
+        final byte[] bytes = new byte[20000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        MoreAsserts.assertEquals(bytes, PhotoIngestionExecutor.readAtMost(
+                new ByteArrayInputStream(bytes), bytes.length));
+        assertNull(PhotoIngestionExecutor.readAtMost(
+                new ByteArrayInputStream(bytes), bytes.length - 1));
+    }
+
+    public void testIngest() throws Exception {
+        final PhotoIngestionExecutor executor = new PhotoIngestionExecutor(1, 1, 1024);
+        final byte[][] written = new byte[1][];
+        final CountDownLatch done = new CountDownLatch(1);
+        final PhotoIngestionExecutor.PhotoHandler handler =
+                new PhotoIngestionExecutor.PhotoHandler() {
+            @Override
+            public void onPhotoWritten(byte[] photoBytes) {
+                written[0] = photoBytes;
+                done.countDown();
+            }
+        };
+
+        // A photo within the maximum size is handed over once the writer is done.
+        final byte[] bytes = new byte[] {1, 2, 3};
+        writePhoto(executor.ingest(handler), bytes);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        MoreAsserts.assertEquals(bytes, written[0]);
+
+        // A larger photo is refused, and the writer finds the pipe closed.
+        final OutputStream os = new AutoCloseOutputStream(executor.ingest(handler));
+        try {
+            for (int i = 0; i < 100; i++) {
+                os.write(new byte[1024]);
+            }
+            fail("Writing a photo over the maximum size should fail");
+        } catch (IOException expected) {
+        } finally {
+            try {
+                os.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
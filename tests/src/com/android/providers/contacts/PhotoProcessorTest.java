@@ -50,4 +50,18 @@ public class PhotoProcessorTest extends AndroidTestCase {
         // Make sure the transparent pixel is now 100% white.
         assertEquals(Color.argb(255, 255, 255, 255), normalized.getPixel(0, 0));
     }
+
+    public void testComputeSampleSize() {
+        // Never below the target size.
+        assertEquals(1, PhotoProcessor.computeSampleSize(100, 100, 256, false));
+        assertEquals(1, PhotoProcessor.computeSampleSize(511, 511, 256, false));
+        assertEquals(2, PhotoProcessor.computeSampleSize(512, 512, 256, false));
+        assertEquals(4, PhotoProcessor.computeSampleSize(1024, 1024, 256, false));
+        assertEquals(2, PhotoProcessor.computeSampleSize(1000, 1000, 256, false));
+
+        // The longer side is scaled to the target, or the shorter one when cropping.
+        assertEquals(4, PhotoProcessor.computeSampleSize(1024, 300, 256, false));
+        assertEquals(1, PhotoProcessor.computeSampleSize(1024, 300, 256, true));
+        assertEquals(2, PhotoProcessor.computeSampleSize(600, 2000, 256, true));
+    }
 }
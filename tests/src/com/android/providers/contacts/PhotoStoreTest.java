@@ -29,11 +29,13 @@ import com.android.providers.contacts.tests.R;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Tests for {@link PhotoStore}.
@@ -41,6 +43,13 @@ import java.util.Set;
 @MediumTest
 public class PhotoStoreTest extends PhotoLoadingTestCase {
 
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     private ContactsActor mActor;
     private SynchronousContactsProvider2 mProvider;
     private SQLiteDatabase mDb;
@@ -193,6 +202,26 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
         }
     }
 
+    public void testIdenticalPhotosShareFile() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        assertTrue(photoFileId != 0);
+        long totalSize = mPhotoStore.getTotalSize();
+
+        // The same photo again gets the same file, a different one gets its own.
+        assertEquals(photoFileId, mPhotoStore.insert(newPhotoProcessor(photo, false)));
+        assertEquals(totalSize, mPhotoStore.getTotalSize());
+        byte[] otherPhoto = loadPhotoFromResource(R.drawable.earth_large, PhotoSize.ORIGINAL);
+        long otherPhotoFileId = mPhotoStore.insert(newPhotoProcessor(otherPhoto, false));
+        assertTrue(otherPhotoFileId != 0 && otherPhotoFileId != photoFileId);
+
+        // Once the shared file is gone, the photo is stored anew.
+        mPhotoStore.remove(photoFileId);
+        long newPhotoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        assertTrue(newPhotoFileId != 0 && newPhotoFileId != photoFileId);
+        assertTrue(new File(mPhotoStore.get(newPhotoFileId).path).exists());
+    }
+
     public void testCleanup() throws IOException {
         // Load some photos into the store.
         Set<Long> photoFileIds = new HashSet<Long>();
@@ -239,4 +268,67 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
             c.close();
         }
     }
+
+    public void testShardedLayout() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        File file = new File(mPhotoStore.get(photoFileId).path);
+        assertTrue(file.exists());
+        assertEquals(String.valueOf(photoFileId), file.getName());
+        assertEquals(PhotoStore.getShardName(photoFileId), file.getParentFile().getName());
+    }
+
+    public void testShardName() {
+        assertEquals("00", PhotoStore.getShardName(0));
+        assertEquals("0f", PhotoStore.getShardName(15));
+        assertEquals("ff", PhotoStore.getShardName(255));
+        assertEquals("00", PhotoStore.getShardName(256));
+        assertEquals("2a", PhotoStore.getShardName(0x12345672aL));
+    }
+
+    public void testMigrationAndIndexReload() throws IOException {
+        final File root = new File(getContext().getCacheDir(), "photo_store_test");
+        final File photos = new File(root, "photos");
+        photos.mkdirs();
+        final ContactsDatabaseHelper helper = mProvider.getDatabaseHelper(getContext());
+        PhotoStore store = new PhotoStore(root, helper, DIRECT_EXECUTOR);
+        try {
+            // Files of the old flat layout are moved to their shard, other files are deleted.
+            writeFile(new File(photos, "300"), 10);
+            writeFile(new File(photos, "garbage"), 5);
+            store.initialize();
+
+            assertFalse(new File(photos, "300").exists());
+            assertFalse(new File(photos, "garbage").exists());
+            File migrated = new File(new File(photos, PhotoStore.getShardName(300)), "300");
+            assertTrue(migrated.exists());
+            assertEquals(migrated.getAbsolutePath(), store.get(300).path);
+            assertEquals(10, store.getTotalSize());
+            assertTrue(new File(photos, PhotoStore.INDEX_FILE_NAME).exists());
+
+            // A new store is initialized from the index, which is then verified against the
+            // files: the deleted one is dropped and the one the index missed is added.
+            assertTrue(migrated.delete());
+            File added = new File(new File(photos, PhotoStore.getShardName(301)), "301");
+            added.getParentFile().mkdirs();
+            writeFile(added, 20);
+
+            store = new PhotoStore(root, helper, DIRECT_EXECUTOR);
+            store.initialize();
+            assertNull(store.get(300));
+            assertEquals(added.getAbsolutePath(), store.get(301).path);
+            assertEquals(20, store.getTotalSize());
+        } finally {
+            store.clear();
+        }
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
 }
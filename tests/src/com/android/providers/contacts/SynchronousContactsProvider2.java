@@ -40,6 +40,7 @@ public class SynchronousContactsProvider2 extends ContactsProvider2 {
     private boolean mMetadataNetworkNotified;
     private boolean mIsPhone = true;
     private boolean mIsVoiceCapable = true;
+    private boolean mDeferredAggregationScheduled;
 
     @Override
     public ContactsDatabaseHelper getDatabaseHelper(final Context context) {
@@ -130,14 +131,34 @@ public class SynchronousContactsProvider2 extends ContactsProvider2 {
 
     @Override
     protected void scheduleBackgroundTask(int task) {
+        if (task == BACKGROUND_TASK_AGGREGATE_DEFERRED) {
+            // Scheduled while the caller's transaction commits, so it can't run right away.
+            mDeferredAggregationScheduled = true;
+            return;
+        }
         performBackgroundTask(task, null);
     }
 
+    /**
+     * Runs the deferred aggregation scheduled since the last call, until its queue is empty.
+     */
+    public void runDeferredAggregation() {
+        while (mDeferredAggregationScheduled) {
+            mDeferredAggregationScheduled = false;
+            performBackgroundTask(BACKGROUND_TASK_AGGREGATE_DEFERRED, null);
+        }
+    }
+
     @Override
     protected void scheduleBackgroundTask(int task, Object arg) {
         performBackgroundTask(task, arg);
     }
 
+    @Override
+    protected void scheduleBackgroundTaskDelayed(int task, long delayMillis) {
+        performBackgroundTask(task, null);
+    }
+
     @Override
     protected void updateLocaleInBackground() {
     }
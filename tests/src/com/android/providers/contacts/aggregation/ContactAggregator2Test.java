@@ -22,6 +22,7 @@ import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.AggregationExceptions;
@@ -34,16 +35,32 @@ import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.StatusUpdates;
 import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
 
 import com.android.providers.contacts.BaseContactsProvider2Test;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.ContactsProvider2;
+import com.android.providers.contacts.SynchronousContactsProvider2;
 import com.android.providers.contacts.TestUtils;
+import com.android.providers.contacts.aggregation.util.NameDistance;
+import com.android.providers.contacts.aggregation.util.RawContactMatcher;
 import com.android.providers.contacts.tests.R;
 import com.android.providers.contacts.testutil.DataUtil;
 import com.android.providers.contacts.testutil.RawContactUtil;
 
 import com.google.android.collect.Lists;
+import com.google.android.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * Unit tests for {@link ContactAggregator2}.
@@ -57,6 +74,7 @@ import com.google.android.collect.Lists;
  */
 @MediumTest
 public class ContactAggregator2Test extends BaseContactsProvider2Test {
+    private static final String TAG = "ContactAggregator2Test";
 
     private static final Account ACCOUNT_1 = new Account("account_name_1", "account_type_1");
     private static final Account ACCOUNT_2 = new Account("account_name_2", "account_type_2");
@@ -75,6 +93,31 @@ public class ContactAggregator2Test extends BaseContactsProvider2Test {
         cp.setNewAggregatorForTest(true);
     }
 
+    public void testDeferredAggregation() {
+        final SynchronousContactsProvider2 cp = (SynchronousContactsProvider2) getProvider();
+        cp.setDeferAggregationForTest(true);
+        try {
+            long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
+            long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
+
+            // Each raw contact keeps a contact of its own until the background task runs
+            MoreAsserts.assertNotEqual(queryContactId(rawContactId1),
+                    queryContactId(rawContactId2));
+
+            cp.runDeferredAggregation();
+            Cursor cursor = mResolver.query(Contacts.CONTENT_URI, new String[] {Contacts._ID},
+                    null, null, null);
+            try {
+                assertEquals(1, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+            assertEquals(queryContactId(rawContactId1), queryContactId(rawContactId2));
+        } finally {
+            cp.setDeferAggregationForTest(false);
+        }
+    }
+
     public void testCrudAggregationExceptions() throws Exception {
         long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "zz", "top");
         long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "aa", "bottom");
@@ -980,6 +1023,25 @@ public class ContactAggregator2Test extends BaseContactsProvider2Test {
         assertSuggestions(contactId1, contactId2);
     }
 
+    public void testAggregationSuggestionsRefreshedAfterChange() {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId1, "Lord", "Farquaad");
+        insertPhoneNumber(rawContactId1, "(888)555-1236");
+
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId2, "Talking", "Donkey");
+
+        long contactId1 = queryContactId(rawContactId1);
+        long contactId2 = queryContactId(rawContactId2);
+
+        // Query twice so that the second query is served from the cache
+        assertSuggestions(contactId1);
+        assertSuggestions(contactId1);
+
+        insertPhoneNumber(rawContactId2, "1(888)555-1236");
+        assertSuggestions(contactId1, contactId2);
+    }
+
     public void testAggregationSuggestionsBasedOnEmailAddress() {
 
         // Create two contacts that would not be aggregated because of name mismatch
@@ -1119,6 +1181,193 @@ public class ContactAggregator2Test extends BaseContactsProvider2Test {
         assertSuggestions(contactId1, new long[0]);
     }
 
+    public void testNameBlockingKeys() {
+        final HashSet<String> keys = new HashSet<>();
+        AbstractContactAggregator.addNameBlockingKeys("2a3f4a50", keys);
+        assertEquals(Sets.newHashSet("2a3f", "2a4a"), keys);
+
+        keys.clear();
+        AbstractContactAggregator.addNameBlockingKeys("2a3f2a50", keys);
+        assertEquals(Sets.newHashSet("2a3f", "2a2a"), keys);
+
+        keys.clear();
+        AbstractContactAggregator.addNameBlockingKeys("2a3f3f50", keys);
+        assertEquals(Sets.newHashSet("2a3f"), keys);
+
+        keys.clear();
+        AbstractContactAggregator.addNameBlockingKeys("2a", keys);
+        assertEquals(Sets.newHashSet("2a"), keys);
+
+        keys.clear();
+        AbstractContactAggregator.addNameBlockingKeys("", keys);
+        assertTrue(keys.isEmpty());
+    }
+
+    public void testAggregationSuggestionsBasedOnApproximateName() {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId1, "Bartholomew", null);
+
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId2, "Bartholemew", null);
+
+        // A name with the same initial that should not be suggested.
+        long rawContactId3 = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId3, "Bob", null);
+
+        long contactId1 = queryContactId(rawContactId1);
+        long contactId2 = queryContactId(rawContactId2);
+        assertTrue(contactId1 != contactId2);
+
+        assertSuggestions(contactId1, contactId2);
+    }
+
+    public void testAggregationSuggestionsBasedOnApproximateNameSecondLetterTypo() {
+        // The first and third letters are the same, so only the key made of the first and third
+        // letters is shared.
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId1, "Anabella", null);
+
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId2, "Amabella", null);
+
+        long contactId1 = queryContactId(rawContactId1);
+        long contactId2 = queryContactId(rawContactId2);
+        assertTrue(contactId1 != contactId2);
+
+        assertSuggestions(contactId1, contactId2);
+    }
+
+    /**
+     * Not a correctness test: compares the approximate name candidates read by blocking key with
+     * the ones the aggregators read by first letter before, on names that all start with the same
+     * letter, as the names under one letter of a large address book do.  Logs the share of the
+     * similar names each query returns, and the time each takes.
+     */
+    @LargeTest
+    public void testApproximateNameLookupRecall() {
+        final Random random = new Random(42);
+        final int baseNameCount = 80;
+        final int variantCount = 4;
+        for (int i = 0; i < baseNameCount; i++) {
+            final String baseName = buildRandomName(random);
+            insertRawContactWithName(baseName);
+            for (int j = 0; j < variantCount; j++) {
+                insertRawContactWithName(editRandomLetter(random, baseName));
+            }
+        }
+
+        // The collation key of every raw contact, and the raw contacts with a similar one.
+        final SQLiteDatabase db =
+                ((ContactsProvider2) getProvider()).getDatabaseHelper().getReadableDatabase();
+        final Map<Long, String> names = new HashMap<Long, String>();
+        final Cursor c = db.query(Tables.NAME_LOOKUP, new String[] {
+                NameLookupColumns.RAW_CONTACT_ID, NameLookupColumns.NORMALIZED_NAME},
+                NameLookupColumns.NAME_TYPE + "=" + NameLookupType.NAME_COLLATION_KEY,
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                names.put(c.getLong(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+
+        long similarCount = 0;
+        long blockingKeyHits = 0;
+        long firstLetterHits = 0;
+        long blockingKeyTime = 0;
+        long firstLetterTime = 0;
+        for (Map.Entry<Long, String> query : names.entrySet()) {
+            final Set<Long> similar = findSimilarNames(query.getValue(), names);
+            similar.remove(query.getKey());
+            similarCount += similar.size();
+
+            final AbstractContactAggregator.MatchCandidateList candidates =
+                    new AbstractContactAggregator.MatchCandidateList();
+            candidates.add(query.getValue(), NameLookupType.NAME_COLLATION_KEY);
+            long start = System.nanoTime();
+            final Set<Long> byBlockingKey = readRawContactIds(
+                    AbstractContactAggregator.queryApproximateNameLookup(db, candidates),
+                    AbstractContactAggregator.ApproximateNameLookupQuery.RAW_CONTACT_ID);
+            blockingKeyTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final Set<Long> byFirstLetter = readRawContactIds(db.query(
+                    Tables.NAME_LOOKUP_JOIN_RAW_CONTACTS,
+                    new String[] {NameLookupColumns.RAW_CONTACT_ID},
+                    NameLookupColumns.NORMALIZED_NAME + " GLOB '"
+                            + query.getValue().substring(0, 2) + "*' AND "
+                            + NameLookupColumns.NAME_TYPE + "="
+                            + NameLookupType.NAME_COLLATION_KEY,
+                    null, null, null, null,
+                    String.valueOf(AbstractContactAggregator.FIRST_LETTER_SUGGESTION_HIT_LIMIT)),
+                    0);
+            firstLetterTime += System.nanoTime() - start;
+
+            byBlockingKey.retainAll(similar);
+            byFirstLetter.retainAll(similar);
+            blockingKeyHits += byBlockingKey.size();
+            firstLetterHits += byFirstLetter.size();
+        }
+
+        assertTrue(similarCount > 0);
+        Log.i(TAG, "Similar names returned for " + names.size() + " queries: by blocking key "
+                + (blockingKeyHits * 100 / similarCount) + "% in "
+                + (blockingKeyTime / names.size() / 1000) + " us per query, by first letter "
+                + (firstLetterHits * 100 / similarCount) + "% in "
+                + (firstLetterTime / names.size() / 1000) + " us per query");
+        assertTrue(blockingKeyHits >= firstLetterHits);
+    }
+
+    private void insertRawContactWithName(String name) {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId, name, null);
+    }
+
+    private static String buildRandomName(Random random) {
+        final StringBuilder sb = new StringBuilder("M");
+        final int length = 5 + random.nextInt(5);
+        for (int i = 1; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns {@code name} with one of its letters, but not the first one, replaced.
+     */
+    private static String editRandomLetter(Random random, String name) {
+        final int index = 1 + random.nextInt(name.length() - 1);
+        return name.substring(0, index) + (char) ('a' + random.nextInt(26))
+                + name.substring(index + 1);
+    }
+
+    private static Set<Long> findSimilarNames(String name, Map<Long, String> names) {
+        final NameDistance distance = new NameDistance(30);
+        final byte[] decodedName = AbstractContactAggregator.decodeNormalizedName(name);
+        final Set<Long> similar = new HashSet<Long>();
+        for (Map.Entry<Long, String> entry : names.entrySet()) {
+            if (distance.getDistance(decodedName,
+                    AbstractContactAggregator.decodeNormalizedName(entry.getValue()))
+                    >= RawContactMatcher.APPROXIMATE_MATCH_THRESHOLD) {
+                similar.add(entry.getKey());
+            }
+        }
+        return similar;
+    }
+
+    private static Set<Long> readRawContactIds(Cursor c, int column) {
+        final Set<Long> ids = new HashSet<Long>();
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(column));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
     public void testChoosePhotoSetBeforeAggregation() {
         long rawContactId1 = RawContactUtil.createRawContact(mResolver);
         setContactAccount(rawContactId1, "donut", "donut_act");
@@ -1490,6 +1739,47 @@ public class ContactAggregator2Test extends BaseContactsProvider2Test {
         assertNotAggregated(rawContactId1, rawContactId2);
     }
 
+    public void testAggregationOfNewRawContactsInSameBatch() throws Exception {
+        // None of these raw contacts is visible when the aggregation pass starts, so the bulk
+        // lookup finds no match for any of them.  Aggregating the first one must still make it a
+        // match for the second one.
+        ArrayList<ContentProviderOperation> ops = Lists.newArrayList();
+        addRawContactWithNameOperations(ops, ACCOUNT_1, "Johnq", "Smithq");
+        addRawContactWithNameOperations(ops, ACCOUNT_2, "Johnq", "Smithq");
+        addRawContactWithNameOperations(ops, ACCOUNT_1, "Janeq", "Doeq");
+        addRawContactWithNameOperations(ops, ACCOUNT_3, "Janeq", "Doeq");
+        addRawContactWithNameOperations(ops, ACCOUNT_2, "Rogerq", "Rabbitq");
+
+        ContentProviderResult[] results = mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+
+        long rawContactId1 = ContentUris.parseId(results[0].uri);
+        long rawContactId2 = ContentUris.parseId(results[2].uri);
+        long rawContactId3 = ContentUris.parseId(results[4].uri);
+        long rawContactId4 = ContentUris.parseId(results[6].uri);
+        long rawContactId5 = ContentUris.parseId(results[8].uri);
+
+        assertAggregated(rawContactId1, rawContactId2, "Johnq Smithq");
+        assertAggregated(rawContactId3, rawContactId4, "Janeq Doeq");
+        assertNotAggregated(rawContactId1, rawContactId3);
+        assertNotAggregated(rawContactId1, rawContactId5);
+        assertNotAggregated(rawContactId3, rawContactId5);
+    }
+
+    private void addRawContactWithNameOperations(ArrayList<ContentProviderOperation> ops,
+            Account account, String givenName, String familyName) {
+        final int backReference = ops.size();
+        ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                .withValue(RawContacts.ACCOUNT_NAME, account.name)
+                .withValue(RawContacts.ACCOUNT_TYPE, account.type)
+                .build());
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                .withValue(StructuredName.GIVEN_NAME, givenName)
+                .withValue(StructuredName.FAMILY_NAME, familyName)
+                .build());
+    }
+
     public void testAggregationModeSuspendedOverriddenByAggException() throws Exception {
         ContentProviderOperation cpo1 = ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
                 .withValue(RawContacts.ACCOUNT_NAME, "a")
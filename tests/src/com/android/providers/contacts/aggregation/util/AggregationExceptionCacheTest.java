@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import android.provider.ContactsContract.AggregationExceptions;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.collect.Sets;
+
+@SmallTest
+public class AggregationExceptionCacheTest extends AndroidTestCase {
+
+    public void testLoading() {
+        final AggregationExceptionCache cache = new AggregationExceptionCache();
+        assertFalse(cache.isValid());
+
+        cache.startLoading();
+        cache.put(1, 2, AggregationExceptions.TYPE_KEEP_TOGETHER);
+        cache.finishLoading();
+        assertTrue(cache.isValid());
+        assertTrue(cache.contains(1));
+        assertTrue(cache.contains(2));
+        assertFalse(cache.contains(3));
+
+        cache.invalidate();
+        assertFalse(cache.isValid());
+        assertFalse(cache.contains(1));
+    }
+
+    public void testPutAndRemove() {
+        final AggregationExceptionCache cache = new AggregationExceptionCache();
+        cache.put(1, 2, AggregationExceptions.TYPE_KEEP_TOGETHER);
+        cache.put(1, 3, AggregationExceptions.TYPE_KEEP_SEPARATE);
+
+        cache.remove(2, 1);
+        assertTrue(cache.contains(1));
+        assertFalse(cache.contains(2));
+
+        cache.remove(1, 3);
+        assertFalse(cache.contains(1));
+        assertFalse(cache.contains(3));
+    }
+
+    public void testRemoveRawContact() {
+        final AggregationExceptionCache cache = new AggregationExceptionCache();
+        cache.put(1, 2, AggregationExceptions.TYPE_KEEP_TOGETHER);
+        cache.put(1, 3, AggregationExceptions.TYPE_KEEP_TOGETHER);
+        cache.put(3, 4, AggregationExceptions.TYPE_KEEP_TOGETHER);
+
+        cache.removeRawContact(1);
+        assertFalse(cache.contains(1));
+        assertFalse(cache.contains(2));
+        assertTrue(cache.contains(3));
+        assertTrue(cache.contains(4));
+    }
+
+    public void testHasExceptionWithin() {
+        final AggregationExceptionCache cache = new AggregationExceptionCache();
+        cache.put(1, 2, AggregationExceptions.TYPE_KEEP_TOGETHER);
+        cache.put(2, 3, AggregationExceptions.TYPE_KEEP_SEPARATE);
+
+        assertTrue(cache.hasExceptionWithin(Sets.newHashSet(1L, 2L),
+                AggregationExceptions.TYPE_KEEP_TOGETHER));
+        assertFalse(cache.hasExceptionWithin(Sets.newHashSet(1L, 2L),
+                AggregationExceptions.TYPE_KEEP_SEPARATE));
+        assertTrue(cache.hasExceptionWithin(Sets.newHashSet(1L, 2L, 3L),
+                AggregationExceptions.TYPE_KEEP_SEPARATE));
+        assertFalse(cache.hasExceptionWithin(Sets.newHashSet(1L, 3L),
+                AggregationExceptions.TYPE_KEEP_SEPARATE));
+
+        // Replacing an exception changes its type.
+        cache.put(3, 2, AggregationExceptions.TYPE_KEEP_TOGETHER);
+        assertFalse(cache.hasExceptionWithin(Sets.newHashSet(2L, 3L),
+                AggregationExceptions.TYPE_KEEP_SEPARATE));
+    }
+}
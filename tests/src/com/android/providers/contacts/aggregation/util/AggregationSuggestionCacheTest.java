@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+@SmallTest
+public class AggregationSuggestionCacheTest extends AndroidTestCase {
+
+    public void testPutAndGet() {
+        final AggregationSuggestionCache cache = new AggregationSuggestionCache();
+        assertNull(cache.get("1"));
+
+        cache.put("1", cache.getGeneration(), new long[] {3, 2});
+        assertTrue(Arrays.equals(new long[] {3, 2}, cache.get("1")));
+        assertNull(cache.get("2"));
+    }
+
+    public void testInvalidate() {
+        final AggregationSuggestionCache cache = new AggregationSuggestionCache();
+        cache.put("1", cache.getGeneration(), new long[] {2});
+
+        cache.invalidate();
+        assertNull(cache.get("1"));
+        assertEquals(0, cache.size());
+    }
+
+    public void testPutIgnoredAfterInvalidate() {
+        final AggregationSuggestionCache cache = new AggregationSuggestionCache();
+        final long generation = cache.getGeneration();
+
+        // The database changed while the suggestions were being computed
+        cache.invalidate();
+        cache.put("1", generation, new long[] {2});
+        assertNull(cache.get("1"));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final AggregationSuggestionCache cache = new AggregationSuggestionCache();
+        final long generation = cache.getGeneration();
+        cache.put("first", generation, new long[0]);
+        for (int i = 0; i < 100; i++) {
+            cache.get("first");
+            cache.put(String.valueOf(i), generation, new long[0]);
+        }
+        assertTrue(cache.size() < 100);
+        assertNotNull(cache.get("first"));
+        assertNull(cache.get("0"));
+    }
+}
@@ -19,11 +19,8 @@ package com.android.providers.contacts.aggregation.util;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 import com.google.android.collect.Sets;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
 import junit.framework.TestCase;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -104,42 +101,4 @@ public class ContactAggregatorHelperTest extends TestCase {
         MoreAsserts.assertContentsInAnyOrder(connectedRawContactSets, Sets.newHashSet(100l,
                 101l), Sets.newHashSet(102l), Sets.newHashSet(103l));
     }
-
-    public void testFindConnectedRawContacts() {
-        Set<Long> rawContactIdSet = new HashSet<>();
-        rawContactIdSet.addAll(Arrays.asList(1l, 2l, 3l, 4l, 5l, 6l, 7l, 8l, 9l));
-
-        Multimap<Long, Long> matchingrawIdPairs = HashMultimap.create();
-        matchingrawIdPairs.put(1l, 2l);
-        matchingrawIdPairs.put(2l, 1l);
-
-        matchingrawIdPairs.put(1l, 7l);
-        matchingrawIdPairs.put(7l, 1l);
-
-        matchingrawIdPairs.put(2l, 3l);
-        matchingrawIdPairs.put(3l, 2l);
-
-        matchingrawIdPairs.put(2l, 8l);
-        matchingrawIdPairs.put(8l, 2l);
-
-        matchingrawIdPairs.put(8l, 9l);
-        matchingrawIdPairs.put(9l, 8l);
-
-        matchingrawIdPairs.put(4l, 5l);
-        matchingrawIdPairs.put(5l, 4l);
-
-        Set<Set<Long>> actual = ContactAggregatorHelper.findConnectedComponents(rawContactIdSet,
-                matchingrawIdPairs);
-
-        Set<Set<Long>> expected = new HashSet<>();
-        Set<Long> result1 = new HashSet<>();
-        result1.addAll(Arrays.asList(1l, 2l, 3l, 7l, 8l, 9l));
-        Set<Long> result2 = new HashSet<>();
-        result2.addAll(Arrays.asList(4l, 5l));
-        Set<Long> result3 = new HashSet<>();
-        result3.addAll(Arrays.asList(6l));
-        expected.addAll(Arrays.asList(result1, result2, result3));
-
-        assertEquals(expected, actual);
-    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+@SmallTest
+public class DeferredAggregationQueueTest extends AndroidTestCase {
+
+    public void testPollInOrder() {
+        final DeferredAggregationQueue queue = new DeferredAggregationQueue();
+        queue.enqueue(3);
+        queue.enqueue(1);
+        queue.enqueue(2);
+        assertEquals(3, queue.size());
+
+        assertTrue(Arrays.equals(new long[] {3, 1}, queue.poll(2)));
+        assertTrue(Arrays.equals(new long[] {2}, queue.poll(2)));
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.poll(2).length);
+    }
+
+    public void testEnqueueAgainMovesToEnd() {
+        final DeferredAggregationQueue queue = new DeferredAggregationQueue();
+        queue.enqueue(1);
+        queue.enqueue(2);
+        queue.enqueue(1);
+        assertEquals(2, queue.size());
+        assertTrue(Arrays.equals(new long[] {2, 1}, queue.poll(10)));
+    }
+
+    public void testAwait() {
+        final DeferredAggregationQueue queue = new DeferredAggregationQueue();
+        final long sequence1 = queue.enqueue(1);
+        final long sequence2 = queue.enqueue(2);
+
+        queue.poll(1);
+        assertFalse(queue.await(sequence1, 0));
+        queue.finishSlice();
+        assertTrue(queue.await(sequence1, 0));
+        assertFalse(queue.await(sequence2, 0));
+
+        queue.poll(1);
+        queue.finishSlice();
+        assertTrue(queue.await(sequence2, 0));
+    }
+
+    public void testAwaitWokenByWorker() throws Exception {
+        final DeferredAggregationQueue queue = new DeferredAggregationQueue();
+        final long sequence = queue.enqueue(1);
+        final Thread worker = new Thread() {
+            @Override
+            public void run() {
+                queue.poll(10);
+                queue.finishSlice();
+            }
+        };
+        worker.start();
+        assertTrue(queue.await(sequence, 10000));
+        worker.join();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+@SmallTest
+public class MatchScoreTableTest extends AndroidTestCase {
+    private static final String TAG = "MatchScoreTableTest";
+
+    public void testGetOrAdd() {
+        final MatchScoreTable table = new MatchScoreTable();
+        assertNull(table.get(1));
+
+        final MatchScore score = table.getOrAdd(1, 1, 10, 100);
+        assertSame(score, table.get(1));
+        assertSame(score, table.getOrAdd(1, 2, 20, 200));
+        assertEquals(1, table.size());
+        assertEquals(10, score.getContactId());
+        assertEquals(100, score.getAccountId());
+    }
+
+    public void testManyKeys() {
+        final MatchScoreTable table = new MatchScoreTable();
+        // Include zero, negative and large keys, and enough of them to force a few rehashes.
+        for (long key = -500; key < 500; key++) {
+            table.getOrAdd(key * 0x100000001L, key, key, 0);
+        }
+        assertEquals(1000, table.size());
+        for (long key = -500; key < 500; key++) {
+            final MatchScore score = table.get(key * 0x100000001L);
+            assertNotNull(score);
+            assertEquals(key, score.getRawContactId());
+        }
+        assertNull(table.get(1000));
+    }
+
+    public void testClearReusesScores() {
+        final MatchScoreTable table = new MatchScoreTable();
+        final MatchScore score = table.getOrAdd(1, 1, 1, 1);
+        score.updatePrimaryScore(90);
+        score.keepOut();
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(1));
+
+        final MatchScore reused = table.getOrAdd(2, 2, 2, 2);
+        assertSame(score, reused);
+        assertEquals(2, reused.getRawContactId());
+        assertEquals(0, reused.getPrimaryScore());
+        assertFalse(reused.isKeepOut());
+    }
+
+    public void testSortKeepsLookups() {
+        final MatchScoreTable table = new MatchScoreTable();
+        table.getOrAdd(1, 1, 1, 0).updatePrimaryScore(50);
+        table.getOrAdd(2, 2, 2, 0).updatePrimaryScore(90);
+        table.getOrAdd(3, 3, 3, 0).updatePrimaryScore(70);
+
+        table.sort();
+        assertEquals(2, table.getAt(0).getRawContactId());
+        assertEquals(3, table.getAt(1).getRawContactId());
+        assertEquals(1, table.getAt(2).getRawContactId());
+        assertEquals(3, table.asList().size());
+
+        assertEquals(50, table.get(1).getPrimaryScore());
+        assertEquals(90, table.get(2).getPrimaryScore());
+        assertEquals(70, table.get(3).getPrimaryScore());
+    }
+
+    /**
+     * Not a correctness test: scores the same candidates with the table and with the
+     * {@code HashMap<Long, MatchScore>} and pool the matchers used before, and logs the time
+     * each takes.
+     */
+    @LargeTest
+    public void testLookupPerformance() {
+        final int rounds = 2000;
+        final int candidates = 200;
+        final int lookupsPerCandidate = 5;
+
+        // Warm up both paths before timing them.
+        runTable(rounds / 10, candidates, lookupsPerCandidate);
+        runHashMap(rounds / 10, candidates, lookupsPerCandidate);
+
+        long start = System.nanoTime();
+        final long tableSum = runTable(rounds, candidates, lookupsPerCandidate);
+        final long tableTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final long hashMapSum = runHashMap(rounds, candidates, lookupsPerCandidate);
+        final long hashMapTime = System.nanoTime() - start;
+
+        assertEquals(hashMapSum, tableSum);
+        final long lookups = (long) rounds * candidates * lookupsPerCandidate;
+        Log.i(TAG, "MatchScoreTable: " + (tableTime / lookups) + " ns per lookup, HashMap: "
+                + (hashMapTime / lookups) + " ns per lookup");
+    }
+
+    private static long runTable(int rounds, int candidates, int lookupsPerCandidate) {
+        final MatchScoreTable table = new MatchScoreTable();
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            table.clear();
+            for (int i = 0; i < lookupsPerCandidate; i++) {
+                for (long id = 1; id <= candidates; id++) {
+                    table.getOrAdd(id * 7, 0, id * 7, 0).updatePrimaryScore(i);
+                }
+            }
+            sum += table.size();
+        }
+        return sum;
+    }
+
+    /**
+     * The lookup the matchers did before {@link MatchScoreTable}.
+     */
+    private static long runHashMap(int rounds, int candidates, int lookupsPerCandidate) {
+        final HashMap<Long, MatchScore> scores = new HashMap<Long, MatchScore>();
+        final ArrayList<MatchScore> scoreList = new ArrayList<MatchScore>();
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            scores.clear();
+            int scoreCount = 0;
+            for (int i = 0; i < lookupsPerCandidate; i++) {
+                for (long id = 1; id <= candidates; id++) {
+                    final long contactId = id * 7;
+                    MatchScore score = scores.get(contactId);
+                    if (score == null) {
+                        if (scoreList.size() > scoreCount) {
+                            score = scoreList.get(scoreCount);
+                            score.reset(contactId);
+                        } else {
+                            score = new MatchScore(contactId);
+                            scoreList.add(score);
+                        }
+                        scoreCount++;
+                        scores.put(contactId, score);
+                    }
+                    score.updatePrimaryScore(i);
+                }
+            }
+            sum += scoreCount;
+        }
+        return sum;
+    }
+}
@@ -16,13 +16,18 @@
 
 package com.android.providers.contacts.aggregation.util;
 
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import com.android.providers.contacts.NameNormalizer;
 import com.android.providers.contacts.util.Hex;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * Unit tests for {@link NameDistance}.
  *
@@ -66,6 +71,76 @@ public class NameDistanceTest extends TestCase {
         assertFloat(0, "Abcd", "Efgh");
     }
 
+    public void testIdenticalToReferenceImplementation() {
+        final ReferenceNameDistance reference = new ReferenceNameDistance(30);
+        final byte[][] names = createRandomNames(new Random(42), 400);
+        for (byte[] name1 : names) {
+            for (byte[] name2 : names) {
+                final float expected = reference.getDistance(name1, name2);
+                assertEquals(expected, mNameDistance.getDistance(name1, name2));
+
+                for (float threshold : new float[] {
+                        RawContactMatcher.APPROXIMATE_MATCH_THRESHOLD,
+                        RawContactMatcher.APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL }) {
+                    final float actual = mNameDistance.getDistance(name1, name2, threshold);
+                    if (expected > threshold) {
+                        assertEquals(expected, actual);
+                    } else {
+                        assertTrue(actual <= threshold);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Not a correctness test: compares the time taken by {@link NameDistance} and by the
+     * original implementation over the same set of names, and logs the result.
+     */
+    @LargeTest
+    public void testPerformance() {
+        final ReferenceNameDistance reference = new ReferenceNameDistance(30);
+        final byte[][] names = createRandomNames(new Random(7), 1000);
+        final float threshold = RawContactMatcher.APPROXIMATE_MATCH_THRESHOLD;
+
+        long start = System.nanoTime();
+        float sum = 0;
+        for (byte[] name1 : names) {
+            for (byte[] name2 : names) {
+                sum += reference.getDistance(name1, name2);
+            }
+        }
+        final long referenceTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (byte[] name1 : names) {
+            for (byte[] name2 : names) {
+                sum += mNameDistance.getDistance(name1, name2, threshold);
+            }
+        }
+        final long time = System.nanoTime() - start;
+
+        final int count = names.length * names.length;
+        Log.i("NameDistanceTest", "getDistance: " + (time / count) + " ns, was "
+                + (referenceTime / count) + " ns (" + sum + ")");
+    }
+
+    /**
+     * Creates normalized-looking names over a small alphabet, so that many pairs are similar.
+     * Lengths go beyond the 30 byte limit of the matchers.
+     */
+    private static byte[][] createRandomNames(Random random, int count) {
+        final byte[][] names = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            final byte[] name = new byte[random.nextInt(36)];
+            for (int j = 0; j < name.length; j++) {
+                name[j] = (byte) ('A' + random.nextInt(8));
+            }
+            names[i] = name;
+        }
+        return names;
+    }
+
     private void assertFloat(float expected, String name1, String name2) {
         byte[] s1 = Hex.decodeHex(NameNormalizer.normalize(name1));
         byte[] s2 = Hex.decodeHex(NameNormalizer.normalize(name2));
@@ -74,4 +149,119 @@ public class NameDistanceTest extends TestCase {
         assertTrue("Expected Jaro-Winkler distance: " + expected + ", actual: " + actual,
                 Math.abs(actual - expected) < 0.001);
     }
+    /**
+     * The original implementation of {@link NameDistance#getDistance}, with boolean match flags.
+     */
+    private static class ReferenceNameDistance {
+        private final int mMaxLength;
+        private final boolean[] mMatchFlags1;
+        private final boolean[] mMatchFlags2;
+
+        ReferenceNameDistance(int maxLength) {
+            mMaxLength = maxLength;
+            mMatchFlags1 = new boolean[maxLength];
+            mMatchFlags2 = new boolean[maxLength];
+        }
+
+        float getDistance(byte bytes1[], byte bytes2[]) {
+            byte[] array1, array2;
+
+            if (bytes1.length > bytes2.length) {
+                array2 = bytes1;
+                array1 = bytes2;
+            } else {
+                array2 = bytes2;
+                array1 = bytes1;
+            }
+
+            int length1 = array1.length;
+            if (length1 >= 3) {
+                boolean prefix = true;
+                for (int i = 0; i < array1.length; i++) {
+                    if (array1[i] != array2[i]) {
+                        prefix = false;
+                        break;
+                    }
+                }
+                if (prefix) {
+                    return 1.0f;
+                }
+            }
+
+            if (length1 > mMaxLength) {
+                length1 = mMaxLength;
+            }
+
+            int length2 = array2.length;
+            if (length2 > mMaxLength) {
+                length2 = mMaxLength;
+            }
+
+            Arrays.fill(mMatchFlags1, 0, length1, false);
+            Arrays.fill(mMatchFlags2, 0, length2, false);
+
+            int range = length2 / 2 - 1;
+            if (range < 0) {
+                range = 0;
+            }
+
+            int matches = 0;
+            for (int i = 0; i < length1; i++) {
+                byte c1 = array1[i];
+
+                int from = i - range;
+                if (from < 0) {
+                    from = 0;
+                }
+
+                int to = i + range + 1;
+                if (to > length2) {
+                    to = length2;
+                }
+
+                for (int j = from; j < to; j++) {
+                    if (!mMatchFlags2[j] && c1 == array2[j]) {
+                        mMatchFlags1[i] = mMatchFlags2[j] = true;
+                        matches++;
+                        break;
+                    }
+                }
+            }
+
+            if (matches == 0) {
+                return 0f;
+            }
+
+            int transpositions = 0;
+            int j = 0;
+            for (int i = 0; i < length1; i++) {
+                if (mMatchFlags1[i]) {
+                    while (!mMatchFlags2[j]) {
+                        j++;
+                    }
+                    if (array1[i] != array2[j]) {
+                        transpositions++;
+                    }
+                    j++;
+                }
+            }
+
+            float m = matches;
+            float jaro = ((m / length1 + m / length2 + (m - (transpositions / 2f)) / m)) / 3;
+
+            if (jaro < 0.7f) {
+                return jaro;
+            }
+
+            int prefix = 0;
+            for (int i = 0; i < length1; i++) {
+                if (bytes1[i] != bytes2[i]) {
+                    break;
+                }
+                prefix++;
+            }
+
+            return jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
+        }
+    }
 }
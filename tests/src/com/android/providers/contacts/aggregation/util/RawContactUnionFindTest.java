@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+import com.google.android.collect.Sets;
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+@SmallTest
+public class RawContactUnionFindTest extends TestCase {
+
+    public void testComponents() {
+        final RawContactUnionFind components = new RawContactUnionFind(
+                Sets.newHashSet(1L, 2L, 3L, 4L, 5L, 6L));
+        assertEquals(6, components.getComponentCount());
+
+        assertTrue(components.union(1, 2));
+        assertTrue(components.union(3, 4));
+        assertTrue(components.union(2, 4));
+        assertFalse(components.union(1, 3));
+        // Raw contacts outside of the set are ignored.
+        assertFalse(components.union(5, 100));
+
+        assertEquals(3, components.getComponentCount());
+        assertTrue(components.isConnected(1, 3));
+        assertFalse(components.isConnected(1, 5));
+        assertFalse(components.isConnected(5, 100));
+        MoreAsserts.assertContentsInAnyOrder(components.getComponents(),
+                Sets.newHashSet(1L, 2L, 3L, 4L), Sets.newHashSet(5L), Sets.newHashSet(6L));
+    }
+
+    public void testLargeComponent() {
+        // A long chain, which a recursive traversal would struggle with.
+        final Set<Long> ids = new HashSet<>();
+        for (long id = 0; id < 10000; id++) {
+            ids.add(id);
+        }
+        final RawContactUnionFind components = new RawContactUnionFind(ids);
+        for (long id = 1; id < 10000; id++) {
+            components.union(id - 1, id);
+        }
+        assertEquals(1, components.getComponentCount());
+        assertEquals(ids, components.getComponents().iterator().next());
+    }
+}